@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs;
+
+import com.pepperonas.jxaesprefs.AesPrefs.LogMode;
+import com.pepperonas.jxaesprefs.backend.PreferencesBackend;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.Preferences;
+
+/**
+ * Every put and get of {@link AesPrefs}, hits and misses, with and without the value cache.
+ * {@link AesPrefsConcurrentBenchmark} runs the same operations from several threads.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = BenchmarkPrefs.USER_ROOT)
+public class AesPrefsBenchmark {
+
+    private static final String TEXT = "Lorem ipsum dolor sit amet";
+
+    /**
+     * The size of the value cache, 0 to disable it.
+     */
+    @Param({"0", "1000"})
+    int valueCache;
+
+    private Preferences mNode;
+    private byte[] mBytes;
+
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mNode = BenchmarkPrefs.newNode(getClass().getSimpleName());
+        AesPrefs.logMode(LogMode.NONE);
+        AesPrefs.init(new PreferencesBackend(mNode), BenchmarkPrefs.PASSWORD);
+        if (valueCache > 0) {
+            AesPrefs.enableValueCache(valueCache);
+        } else {
+            AesPrefs.disableValueCache();
+        }
+
+        mBytes = new byte[256];
+        new Random(256).nextBytes(mBytes);
+        AesPrefs.put("string", TEXT);
+        AesPrefs.putInt("int", 42);
+        AesPrefs.putLong("long", 1465422646000L);
+        AesPrefs.putFloat("float", 3.14f);
+        AesPrefs.putDouble("double", Math.E);
+        AesPrefs.putBoolean("boolean", true);
+        AesPrefs.putBytes("bytes", mBytes);
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        AesPrefs.disableValueCache();
+        BenchmarkPrefs.remove(mNode);
+    }
+
+
+    @Benchmark
+    public void putString() {
+        AesPrefs.put("string", TEXT);
+    }
+
+
+    @Benchmark
+    public String getString() {
+        return AesPrefs.get("string", null);
+    }
+
+
+    @Benchmark
+    public void putInt() {
+        AesPrefs.putInt("int", 42);
+    }
+
+
+    @Benchmark
+    public int getInt() {
+        return AesPrefs.getInt("int", 0);
+    }
+
+
+    @Benchmark
+    public void putLong() {
+        AesPrefs.putLong("long", 1465422646000L);
+    }
+
+
+    @Benchmark
+    public long getLong() {
+        return AesPrefs.getLong("long", 0);
+    }
+
+
+    @Benchmark
+    public void putFloat() {
+        AesPrefs.putFloat("float", 3.14f);
+    }
+
+
+    @Benchmark
+    public float getFloat() {
+        return AesPrefs.getFloat("float", 0);
+    }
+
+
+    @Benchmark
+    public void putDouble() {
+        AesPrefs.putDouble("double", Math.E);
+    }
+
+
+    @Benchmark
+    public double getDouble() {
+        return AesPrefs.getDouble("double", 0);
+    }
+
+
+    @Benchmark
+    public void putBoolean() {
+        AesPrefs.putBoolean("boolean", true);
+    }
+
+
+    @Benchmark
+    public boolean getBoolean() {
+        return AesPrefs.getBoolean("boolean", false);
+    }
+
+
+    @Benchmark
+    public void putBytes() {
+        AesPrefs.putBytes("bytes", mBytes);
+    }
+
+
+    @Benchmark
+    public byte[] getBytes() {
+        return AesPrefs.getBytes("bytes", null);
+    }
+
+
+    @Benchmark
+    public String getMissing() {
+        return AesPrefs.get("missing", null);
+    }
+
+
+    @Benchmark
+    public int getIntMissing() {
+        return AesPrefs.getInt("missing", -1);
+    }
+
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * The operations of {@link AesPrefsBenchmark} from four threads sharing one store, so writers of
+ * the same key contend for its lock.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+@State(Scope.Benchmark)
+@Threads(4)
+public class AesPrefsConcurrentBenchmark extends AesPrefsBenchmark {
+
+}
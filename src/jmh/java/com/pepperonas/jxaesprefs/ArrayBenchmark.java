@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs;
+
+import com.pepperonas.jxaesprefs.AesPrefs.LogMode;
+import com.pepperonas.jxaesprefs.backend.PreferencesBackend;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.Preferences;
+
+/**
+ * {@link AesPrefs#storeArray(String, List)} and {@link AesPrefs#restoreArray(String)} across list
+ * sizes, single-threaded and from four threads.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = BenchmarkPrefs.USER_ROOT)
+public class ArrayBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    int size;
+
+    private Preferences mNode;
+    private List<String> mValues;
+
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mNode = BenchmarkPrefs.newNode(getClass().getSimpleName());
+        AesPrefs.logMode(LogMode.NONE);
+        AesPrefs.init(new PreferencesBackend(mNode), BenchmarkPrefs.PASSWORD);
+        AesPrefs.disableValueCache();
+
+        mValues = new ArrayList<String>();
+        for (int i = 0; i < size; i++) {
+            mValues.add("element " + i);
+        }
+        AesPrefs.storeArray("array", mValues);
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkPrefs.remove(mNode);
+    }
+
+
+    @Benchmark
+    public void storeArray() {
+        AesPrefs.storeArray("array", mValues);
+    }
+
+
+    @Benchmark
+    public List<String> restoreArray() {
+        return AesPrefs.restoreArray("array");
+    }
+
+
+    @Benchmark
+    @Threads(4)
+    public void storeArrayConcurrent() {
+        AesPrefs.storeArray("array", mValues);
+    }
+
+
+    @Benchmark
+    @Threads(4)
+    public List<String> restoreArrayConcurrent() {
+        return AesPrefs.restoreArray("array");
+    }
+
+
+    @Benchmark
+    public List<String> restoreMissing() {
+        return AesPrefs.restoreArray("missing");
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs;
+
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+/**
+ * Isolated preferences for the benchmarks. The forks point the user root at target/jmh-prefs, so
+ * no run touches the preferences of the user, and every trial works in a fresh node of its own.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+final class BenchmarkPrefs {
+
+    /**
+     * Appended to the JVM arguments of every fork.
+     */
+    static final String USER_ROOT = "-Djava.util.prefs.userRoot=target/jmh-prefs";
+
+    static final String PASSWORD = "password";
+
+
+    private BenchmarkPrefs() {
+    }
+
+
+    /**
+     * @return a new empty node
+     */
+    static Preferences newNode(String name) {
+        return Preferences.userRoot().node("jxaesprefs-jmh").node(name + "-" + System.nanoTime());
+    }
+
+
+    static void remove(Preferences node) {
+        try {
+            Preferences parent = node.parent();
+            node.removeNode();
+            parent.flush();
+        } catch (BackingStoreException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs.utils;
+
+import com.pepperonas.jxaesprefs.utils.android.Base64;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link FastBase64} with the android {@link Base64} and {@link java.util.Base64}. The
+ * sizes are a short sealed value, a typical one and a stream chunk.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Base64Benchmark {
+
+    @Param({"34", "130", "6144"})
+    int size;
+
+    private byte[] mBytes;
+    private String mEncoded;
+    private byte[] mByteOut;
+    private char[] mCharOut;
+
+
+    @Setup
+    public void setup() {
+        mBytes = new byte[size];
+        new Random(size).nextBytes(mBytes);
+        mEncoded = java.util.Base64.getEncoder().encodeToString(mBytes);
+        mByteOut = new byte[FastBase64.encodedLength(size)];
+        mCharOut = new char[FastBase64.encodedLength(size)];
+    }
+
+
+    @Benchmark
+    public String encodeAndroid() {
+        return Base64.encodeToString(mBytes, Base64.NO_WRAP);
+    }
+
+
+    @Benchmark
+    public String encodeJdk() {
+        return java.util.Base64.getEncoder().encodeToString(mBytes);
+    }
+
+
+    @Benchmark
+    public String encodeFast() {
+        return FastBase64.encodeToString(mBytes);
+    }
+
+
+    @Benchmark
+    public int encodeFastInto() {
+        return FastBase64.encode(mBytes, 0, mBytes.length, mCharOut, 0);
+    }
+
+
+    @Benchmark
+    public byte[] decodeAndroidDefault() {
+        return Base64.decode(mEncoded, Base64.DEFAULT);
+    }
+
+
+    @Benchmark
+    public byte[] decodeAndroid() {
+        return Base64.decode(mEncoded, Base64.NO_WRAP);
+    }
+
+
+    @Benchmark
+    public byte[] decodeJdk() {
+        return java.util.Base64.getDecoder().decode(mEncoded);
+    }
+
+
+    @Benchmark
+    public byte[] decodeFast() {
+        return FastBase64.decode(mEncoded);
+    }
+
+
+    @Benchmark
+    public int decodeFastInto() {
+        return FastBase64.decode(mEncoded, 0, mEncoded.length(), mByteOut, 0);
+    }
+
+}
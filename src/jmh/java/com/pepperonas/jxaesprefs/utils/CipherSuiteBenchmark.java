@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cipher suites on the raw byte API the sealed values use. Every encryption takes a
+ * fresh nonce, GCM refuses to reuse one.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CipherSuiteBenchmark {
+
+    @Param({"CBC", "GCM", "CTR"})
+    CipherSuite suite;
+
+    @Param({"16", "256", "4096"})
+    int size;
+
+    private CryptContext mCrypt;
+    private byte[] mBytes;
+    private byte[] mNonce;
+    private byte[] mEncrypted;
+
+
+    @Setup
+    public void setup() {
+        mCrypt = new CryptContext("password");
+        mBytes = new byte[size];
+        Arrays.fill(mBytes, (byte) 'x');
+        mNonce = mCrypt.newNonce(suite);
+        mEncrypted = mCrypt.encrypt(suite, mNonce, mBytes, 0, mBytes.length);
+    }
+
+
+    @Benchmark
+    public byte[] encrypt() {
+        return mCrypt.encrypt(suite, mCrypt.newNonce(suite), mBytes, 0, mBytes.length);
+    }
+
+
+    @Benchmark
+    public byte[] decrypt() {
+        return mCrypt.decrypt(suite, mNonce, mEncrypted, 0, mEncrypted.length);
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per-call setup of {@link Crypt} with the reusable {@link CryptContext} across
+ * payload sizes, and the raw byte API the sealed values use.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptBenchmark {
+
+    private static final String PASSWORD = "password";
+
+    @Param({"16", "256", "4096"})
+    int size;
+
+    private final long mIv = 1465422646000L;
+    private CryptContext mCrypt;
+    private String mText;
+    private String mEncrypted;
+    private byte[] mBytes;
+    private byte[] mByteIv;
+    private byte[] mEncryptedBytes;
+
+
+    @Setup
+    public void setup() {
+        char[] chars = new char[size];
+        Arrays.fill(chars, 'x');
+        mText = new String(chars);
+        mCrypt = new CryptContext(PASSWORD);
+        mEncrypted = mCrypt.encrypt(mText, mIv);
+        mBytes = mText.getBytes();
+        mByteIv = mCrypt.newIv();
+        mEncryptedBytes = mCrypt.encrypt(mByteIv, mBytes, 0, mBytes.length);
+    }
+
+
+    @Benchmark
+    public String encrypt() {
+        return Crypt.encrypt(PASSWORD, mText, mIv);
+    }
+
+
+    @Benchmark
+    public String decrypt() {
+        return Crypt.decrypt(PASSWORD, mEncrypted, mIv);
+    }
+
+
+    @Benchmark
+    public String contextEncrypt() {
+        return mCrypt.encrypt(mText, mIv);
+    }
+
+
+    @Benchmark
+    public String contextDecrypt() {
+        return mCrypt.decrypt(mEncrypted, mIv);
+    }
+
+
+    @Benchmark
+    public byte[] contextEncryptBytes() {
+        return mCrypt.encrypt(mByteIv, mBytes, 0, mBytes.length);
+    }
+
+
+    @Benchmark
+    public byte[] contextDecryptBytes() {
+        return mCrypt.decrypt(mByteIv, mEncryptedBytes, 0, mEncryptedBytes.length);
+    }
+
+
+    @Benchmark
+    @Threads(4)
+    public String contextDecryptConcurrent() {
+        return mCrypt.decrypt(mEncrypted, mIv);
+    }
+
+}
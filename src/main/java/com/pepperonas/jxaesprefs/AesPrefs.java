@@ -16,24 +16,25 @@
 
 package com.pepperonas.jxaesprefs;
 
-import com.pepperonas.jxaesprefs.utils.Crypt;
-import com.pepperonas.jxaesprefs.utils.Log;
-import com.pepperonas.jxaesprefs.utils.NumberFormatUtils;
-import com.pepperonas.jxaesprefs.utils.TimeFormatUtils;
+import com.pepperonas.jxaesprefs.backend.PrefsBackend;
+import com.pepperonas.jxaesprefs.utils.CacheStats;
+import com.pepperonas.jxaesprefs.utils.CipherSuite;
+import com.pepperonas.jxaesprefs.utils.LatencyStats;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.prefs.BackingStoreException;
 import java.util.prefs.NodeChangeListener;
 import java.util.prefs.PreferenceChangeListener;
-import java.util.prefs.Preferences;
-
-import static java.util.prefs.Preferences.userNodeForPackage;
 
 /**
+ * Static access to a default {@link AesStore}, which is replaced on every call of init.
+ *
  * @author Martin Pfeffer (pepperonas)
  */
 public class AesPrefs {
@@ -41,21 +42,19 @@ public class AesPrefs {
     /**
      * Constants
      */
-    private static final String TAG = "AesPrefs";
-
-    private static final String TAIL = "=";
     public static final String AES_APP_LAUNCHES = "aes_app_launches";
     public static final String AES_INST_DATE = "aes_inst_date";
 
     /**
      * Member
      */
-    private static Class<?> mClazz;
-    private static String mPassword;
+    private static volatile AesStore mStore;
+
+    private static volatile LogMode mLog = LogMode.DEFAULT;
 
-    private static long mIv;
+    private static volatile AesStore.Durability mDurability = AesStore.Durability.NONE;
 
-    private static long mDuration = 0;
+    private static volatile CipherSuite mCipherSuite = CipherSuite.CBC;
 
 
     public enum LogMode {
@@ -70,11 +69,80 @@ public class AesPrefs {
     }
 
 
-    private static LogMode mLog = LogMode.DEFAULT;
-
-
     public static void logMode(LogMode logMode) {
         mLog = logMode;
+        AesStore store = mStore;
+        if (store != null) {
+            store.setLogMode(logMode);
+        }
+    }
+
+
+    /**
+     * Set the durability of writes through the static methods.
+     *
+     * @param durability the durability
+     * @see AesStore#setDurability(AesStore.Durability)
+     */
+    public static void durability(AesStore.Durability durability) {
+        if (durability == null) {
+            throw new NullPointerException("durability must not be null");
+        }
+        mDurability = durability;
+        AesStore store = mStore;
+        if (store != null) {
+            store.setDurability(durability);
+        }
+    }
+
+
+    /**
+     * Set the suite new values are sealed with, from the next call of init on. Values sealed with
+     * any suite are always read. Streams are always CBC.
+     *
+     * @param suite the suite, {@link CipherSuite#CBC} by default
+     * @see AesStore.Builder#cipherSuite(CipherSuite)
+     */
+    public static void cipherSuite(CipherSuite suite) {
+        if (suite == null) {
+            throw new NullPointerException("suite must not be null");
+        }
+        mCipherSuite = suite;
+    }
+
+
+    /**
+     * Write with a durability of its own, e.g. {@code AesPrefs.withDurability(SYNC).put(...)}.
+     *
+     * @param durability the durability
+     * @return a view on the default store
+     */
+    public static AesStore.DurableView withDurability(AesStore.Durability durability) {
+        return getStore().withDurability(durability);
+    }
+
+
+    /**
+     * Prepare a background migration of the store to the current format and cipher suite.
+     *
+     * @return the migration, not started yet
+     * @see AesStore#newMigration()
+     */
+    public static Migration newMigration() {
+        return getStore().newMigration();
+    }
+
+
+    /**
+     * Change the password of the store and start moving its entries to it in the background. The
+     * store stays in use meanwhile, pass the new password to {@link #init} from now on.
+     *
+     * @param newPassword the new password
+     * @return the running migration
+     * @see AesStore#rekey(String)
+     */
+    public static Migration rekey(String newPassword) {
+        return getStore().rekey(newPassword).start();
     }
 
 
@@ -93,58 +161,100 @@ public class AesPrefs {
 
 
     public static void init(Class<?> clazz, String password) {
-        if (mLog != LogMode.NONE) {
-            Log.i(TAG, "Initializing AesPrefs...");
-        }
+        init(new AesStore.Builder(clazz, password));
+    }
 
-        mClazz = clazz;
-        mPassword = password;
-        mIv = System.currentTimeMillis();
 
-        if (nodeExists("aes_iv")) {
+    /**
+     * Store the values of the static methods in the given backend.
+     *
+     * @param backend  the backend
+     * @param password the password
+     */
+    public static void init(PrefsBackend backend, String password) {
+        init(new AesStore.Builder(backend, password));
+    }
 
-            if (mLog != LogMode.NONE) {
-                Log.i(TAG, "IV found {" + mIv + "}");
-            }
 
-            //  retrieving an IV we can rely on.
-            mIv = Preferences.userNodeForPackage(mClazz).getLong("aes_iv", -1);
+    private static synchronized void init(AesStore.Builder builder) {
+        AesStore previous = mStore;
+        builder.logMode(mLog).durability(mDurability).cipherSuite(mCipherSuite);
+        if (previous != null) {
+            builder.valueCache(previous.getValueCacheSize());
+            previous.disableValueCache();
+        }
+        AesStore store = builder.build();
+        if (previous != null) {
+            // the execution time has always been counted across calls of init.
+            store.addExecutionTime(previous.getExecutionTime());
+            previous.unregisterMBean();
+        }
+        store.registerMBean();
+        mStore = store;
+    }
 
-        } else {
-            // this IV will be used to keep track of your preference keys.
-            // preference values have their own IVs.
-            if (mLog != LogMode.NONE) {
-                Log.w(TAG, "New IV set {" + mIv + "}");
-            }
 
-            mIv = System.currentTimeMillis();
-            Preferences.userNodeForPackage(mClazz).putLong("aes_iv", mIv);
+    /**
+     * Gets the store behind the static methods.
+     *
+     * @return the default store
+     * @throws IllegalStateException if {@link #init(Class, String)} was not called yet
+     */
+    public static AesStore getStore() {
+        AesStore store = mStore;
+        if (store == null) {
+            throw new IllegalStateException("AesPrefs not initialized, call init() first");
         }
+        return store;
+    }
+
+
+    /**
+     * Keep up to maxSize decrypted values in memory.
+     *
+     * @param maxSize the maximum number of cached values
+     * @see AesStore#enableValueCache(int)
+     */
+    public static void enableValueCache(int maxSize) {
+        getStore().enableValueCache(maxSize);
+    }
+
+
+    /**
+     * Disable value cache and drop all cached values.
+     */
+    public static void disableValueCache() {
+        getStore().disableValueCache();
     }
 
 
-    private static boolean nodeExists(String key) {
-        return Preferences.userNodeForPackage(mClazz).get(key, null) != null;
+    /**
+     * Gets value cache stats.
+     *
+     * @return the value cache stats, or null if the value cache is disabled
+     */
+    public static CacheStats getValueCacheStats() {
+        return getStore().getValueCacheStats();
     }
 
 
     public static void registerNodeChangeListener(NodeChangeListener nodeChangeListener) {
-        userNodeForPackage(mClazz).addNodeChangeListener(nodeChangeListener);
+        getStore().registerNodeChangeListener(nodeChangeListener);
     }
 
 
     public static void unregisterNodeChangeListener(NodeChangeListener nodeChangeListener) {
-        userNodeForPackage(mClazz).removeNodeChangeListener(nodeChangeListener);
+        getStore().unregisterNodeChangeListener(nodeChangeListener);
     }
 
 
     public static void registerPreferenceChangeListener(PreferenceChangeListener preferenceChangeListener) {
-        userNodeForPackage(mClazz).addPreferenceChangeListener(preferenceChangeListener);
+        getStore().registerPreferenceChangeListener(preferenceChangeListener);
     }
 
 
     public static void unregisterPreferenceChangeListener(PreferenceChangeListener preferenceChangeListener) {
-        userNodeForPackage(mClazz).removePreferenceChangeListener(preferenceChangeListener);
+        getStore().unregisterPreferenceChangeListener(preferenceChangeListener);
     }
 
 
@@ -155,20 +265,7 @@ public class AesPrefs {
      * @param value the value
      */
     public static void put(String key, String value) {
-        long start = System.currentTimeMillis();
-
-        long iv = System.currentTimeMillis();
-
-        String encryptedKey = Crypt.encrypt(mPassword, key, mIv);
-        String encryptedValue = Crypt.encrypt(mPassword, value, iv);
-        Preferences.userNodeForPackage(mClazz).put(encryptedKey, encryptedValue);
-        Preferences.userNodeForPackage(mClazz).putLong(encryptedKey + TAIL, iv);
-
-        if (mLog == LogMode.ALL || mLog == LogMode.SET) {
-            Log.d(TAG, "put " + key + " <- " + value);
-        }
-
-        mDuration += System.currentTimeMillis() - start;
+        getStore().put(key, value);
     }
 
 
@@ -179,37 +276,8 @@ public class AesPrefs {
      * @param defaultValue the default value
      * @return the string
      */
-
     public static String get(String key, String defaultValue) {
-        long start = System.currentTimeMillis();
-        String param = key;
-
-        String _key = Crypt.encrypt(mPassword, key, mIv) + TAIL;
-        long iv = Preferences.userNodeForPackage(mClazz).getLong(_key, 0);
-        key = _key.substring(0, _key.length() - 1);
-
-        if (!nodeExists(key)) {
-            if (mLog != LogMode.NONE) {
-                if (defaultValue == null) {
-                    Log.e(TAG, "WARNING: Key '" + param + "' not found (return:  null)");
-                } else
-                    Log.e(TAG, "WARNING: Key '" + param + "' not found (return: " + (defaultValue.equals("") ? "\"\"" :
-                            defaultValue) + ")");
-            }
-            return defaultValue;
-        }
-
-        try {
-            mDuration += System.currentTimeMillis() - start;
-            String value = Crypt.decrypt(mPassword, Preferences.userNodeForPackage(mClazz).get(key, ""), iv);
-            if (mLog == LogMode.ALL || mLog == LogMode.GET) {
-                Log.d(TAG, "get  " + param + " -> " + value);
-            }
-            return value;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return defaultValue;
-        }
+        return getStore().get(key, defaultValue);
     }
 
 
@@ -220,21 +288,7 @@ public class AesPrefs {
      * @param value the value
      */
     public static void putInt(String key, int value) {
-        long start = System.currentTimeMillis();
-
-        long iv = System.currentTimeMillis();
-
-        String encryptedKey = Crypt.encrypt(mPassword, key, mIv);
-        String encryptedValue = Crypt.encrypt(mPassword, String.valueOf(value), iv);
-
-        Preferences.userNodeForPackage(mClazz).put(encryptedKey, encryptedValue);
-        Preferences.userNodeForPackage(mClazz).putLong(encryptedKey + TAIL, iv);
-
-        if (mLog == LogMode.ALL || mLog == LogMode.SET) {
-            Log.d(TAG, "putInt " + key + " <- " + value);
-        }
-
-        mDuration += System.currentTimeMillis() - start;
+        getStore().putInt(key, value);
     }
 
 
@@ -246,32 +300,7 @@ public class AesPrefs {
      * @return the int
      */
     public static int getInt(String key, int defaultValue) {
-        long start = System.currentTimeMillis();
-        String param = key;
-
-
-        String _key = Crypt.encrypt(mPassword, key, mIv) + TAIL;
-        long iv = Preferences.userNodeForPackage(mClazz).getLong(_key, 0);
-        key = _key.substring(0, _key.length() - 1);
-
-        if (!nodeExists(key)) {
-            if (mLog != LogMode.NONE) {
-                Log.e(TAG, "WARNING: Key '" + param + "' not found (return: " + defaultValue + ")");
-            }
-            return defaultValue;
-        }
-
-        try {
-            mDuration += System.currentTimeMillis() - start;
-            int value = Integer.parseInt(Crypt.decrypt(mPassword, Preferences.userNodeForPackage(mClazz).get(key, ""), iv));
-            if (mLog == LogMode.ALL || mLog == LogMode.GET) {
-                Log.d(TAG, "getInt  " + param + " -> " + value);
-            }
-            return value;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return defaultValue;
-        }
+        return getStore().getInt(key, defaultValue);
     }
 
 
@@ -282,21 +311,7 @@ public class AesPrefs {
      * @param value the value
      */
     public static void putLong(String key, long value) {
-        long start = System.currentTimeMillis();
-
-        long iv = System.currentTimeMillis();
-
-        String encryptedKey = Crypt.encrypt(mPassword, key, mIv);
-        String encryptedValue = Crypt.encrypt(mPassword, String.valueOf(value), iv);
-
-        Preferences.userNodeForPackage(mClazz).put(encryptedKey, encryptedValue);
-        Preferences.userNodeForPackage(mClazz).putLong(encryptedKey + TAIL, iv);
-
-        if (mLog == LogMode.ALL || mLog == LogMode.SET) {
-            Log.d(TAG, "putLong " + key + " <- " + value);
-        }
-
-        mDuration += System.currentTimeMillis() - start;
+        getStore().putLong(key, value);
     }
 
 
@@ -308,31 +323,7 @@ public class AesPrefs {
      * @return the long
      */
     public static long getLong(String key, long defaultValue) {
-        long start = System.currentTimeMillis();
-        String param = key;
-
-        String _key = Crypt.encrypt(mPassword, key, mIv) + TAIL;
-        long iv = Preferences.userNodeForPackage(mClazz).getLong(_key, 0);
-        key = _key.substring(0, _key.length() - 1);
-
-        if (!nodeExists(key)) {
-            if (mLog != LogMode.NONE) {
-                Log.e(TAG, "WARNING: Key '" + param + "' not found (return: " + defaultValue + ")");
-            }
-            return defaultValue;
-        }
-
-        try {
-            mDuration += System.currentTimeMillis() - start;
-            long value = Long.parseLong(Crypt.decrypt(mPassword, Preferences.userNodeForPackage(mClazz).get(key, ""), iv));
-            if (mLog == LogMode.ALL || mLog == LogMode.GET) {
-                Log.d(TAG, "getLong  " + param + " -> " + value);
-            }
-            return value;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return defaultValue;
-        }
+        return getStore().getLong(key, defaultValue);
     }
 
 
@@ -343,21 +334,7 @@ public class AesPrefs {
      * @param value the value
      */
     public static void putDouble(String key, double value) {
-        long start = System.currentTimeMillis();
-
-        long iv = System.currentTimeMillis();
-
-        String encryptedKey = Crypt.encrypt(mPassword, key, mIv);
-        String encryptedValue = Crypt.encrypt(mPassword, String.valueOf(value), iv);
-
-        Preferences.userNodeForPackage(mClazz).put(encryptedKey, encryptedValue);
-        Preferences.userNodeForPackage(mClazz).putLong(encryptedKey + TAIL, iv);
-
-        if (mLog == LogMode.ALL || mLog == LogMode.SET) {
-            Log.d(TAG, "putDouble " + key + " <- " + value);
-        }
-
-        mDuration += System.currentTimeMillis() - start;
+        getStore().putDouble(key, value);
     }
 
 
@@ -369,31 +346,7 @@ public class AesPrefs {
      * @return the double
      */
     public static double getDouble(String key, double defaultValue) {
-        long start = System.currentTimeMillis();
-        String param = key;
-
-        String _key = Crypt.encrypt(mPassword, key, mIv) + TAIL;
-        long iv = Preferences.userNodeForPackage(mClazz).getLong(_key, 0);
-        key = _key.substring(0, _key.length() - 1);
-
-        if (!nodeExists(key)) {
-            if (mLog != LogMode.NONE) {
-                Log.e(TAG, "WARNING: Key '" + param + "' not found (return: " + defaultValue + ")");
-            }
-            return defaultValue;
-        }
-
-        try {
-            mDuration += System.currentTimeMillis() - start;
-            double value = Double.parseDouble(Crypt.decrypt(mPassword, Preferences.userNodeForPackage(mClazz).get(key, ""), iv));
-            if (mLog == LogMode.ALL || mLog == LogMode.GET) {
-                Log.d(TAG, "getDouble  " + param + " -> " + value);
-            }
-            return value;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return defaultValue;
-        }
+        return getStore().getDouble(key, defaultValue);
     }
 
 
@@ -404,21 +357,7 @@ public class AesPrefs {
      * @param value the value
      */
     public static void putFloat(String key, float value) {
-        long start = System.currentTimeMillis();
-
-        long iv = System.currentTimeMillis();
-
-        String encryptedKey = Crypt.encrypt(mPassword, key, mIv);
-        String encryptedValue = Crypt.encrypt(mPassword, String.valueOf(value), iv);
-
-        Preferences.userNodeForPackage(mClazz).put(encryptedKey, encryptedValue);
-        Preferences.userNodeForPackage(mClazz).putLong(encryptedKey + TAIL, iv);
-
-        if (mLog == LogMode.ALL || mLog == LogMode.SET) {
-            Log.d(TAG, "putFloat " + key + " <- " + value);
-        }
-
-        mDuration += System.currentTimeMillis() - start;
+        getStore().putFloat(key, value);
     }
 
 
@@ -430,31 +369,7 @@ public class AesPrefs {
      * @return the float
      */
     public static float getFloat(String key, float defaultValue) {
-        long start = System.currentTimeMillis();
-        String param = key;
-
-        String _key = Crypt.encrypt(mPassword, key, mIv) + TAIL;
-        long iv = Preferences.userNodeForPackage(mClazz).getLong(_key, 0);
-        key = _key.substring(0, _key.length() - 1);
-
-        if (!nodeExists(key)) {
-            if (mLog != LogMode.NONE) {
-                Log.e(TAG, "WARNING: Key '" + param + "' not found (return: " + defaultValue + ")");
-            }
-            return defaultValue;
-        }
-
-        try {
-            mDuration += System.currentTimeMillis() - start;
-            float value = Float.parseFloat(Crypt.decrypt(mPassword, Preferences.userNodeForPackage(mClazz).get(key, ""), iv));
-            if (mLog == LogMode.ALL || mLog == LogMode.GET) {
-                Log.d(TAG, "getFloat  " + param + " -> " + value);
-            }
-            return value;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return defaultValue;
-        }
+        return getStore().getFloat(key, defaultValue);
     }
 
 
@@ -465,143 +380,181 @@ public class AesPrefs {
      * @param value the value
      */
     public static void putBoolean(String key, boolean value) {
-        long start = System.currentTimeMillis();
+        getStore().putBoolean(key, value);
+    }
 
-        long iv = System.currentTimeMillis();
 
-        String encryptedKey = Crypt.encrypt(mPassword, key, mIv);
-        String encryptedValue = Crypt.encrypt(mPassword, String.valueOf(value), iv);
+    /**
+     * Gets boolean.
+     *
+     * @param key          the key
+     * @param defaultValue the default value
+     * @return the boolean
+     */
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        return getStore().getBoolean(key, defaultValue);
+    }
 
-        Preferences.userNodeForPackage(mClazz).put(encryptedKey, encryptedValue);
-        Preferences.userNodeForPackage(mClazz).putLong(encryptedKey + TAIL, iv);
 
-        if (mLog == LogMode.ALL || mLog == LogMode.SET) {
-            Log.d(TAG, "putBoolean " + key + " <- " + value);
-        }
+    /**
+     * Put bytes.
+     *
+     * @param key   the key
+     * @param value the value
+     */
+    public static void putBytes(String key, byte[] value) {
+        getStore().putBytes(key, value);
+    }
+
 
-        mDuration += System.currentTimeMillis() - start;
+    /**
+     * Put the remaining bytes of a buffer.
+     *
+     * @param key   the key
+     * @param value the value
+     */
+    public static void putBytes(String key, ByteBuffer value) {
+        getStore().putBytes(key, value);
     }
 
 
     /**
-     * Gets boolean.
+     * Gets bytes.
      *
      * @param key          the key
      * @param defaultValue the default value
-     * @return the boolean
+     * @return the bytes
      */
-    public static boolean getBoolean(String key, boolean defaultValue) {
-        long start = System.currentTimeMillis();
-        String param = key;
+    public static byte[] getBytes(String key, byte[] defaultValue) {
+        return getStore().getBytes(key, defaultValue);
+    }
 
-        String _key = Crypt.encrypt(mPassword, key, mIv) + TAIL;
-        long iv = Preferences.userNodeForPackage(mClazz).getLong(_key, 0);
-        key = _key.substring(0, _key.length() - 1);
 
-        if (!nodeExists(key)) {
-            if (mLog != LogMode.NONE) {
-                Log.e(TAG, "WARNING: Key '" + param + "' not found (return: " + defaultValue + ")");
-            }
-            return defaultValue;
-        }
+    /**
+     * Gets bytes as a buffer.
+     *
+     * @param key the key
+     * @return a buffer wrapping the bytes, or null if the key does not exist
+     */
+    public static ByteBuffer getByteBuffer(String key) {
+        return getStore().getByteBuffer(key);
+    }
 
-        try {
-            mDuration += System.currentTimeMillis() - start;
-            boolean value = Boolean.parseBoolean(Crypt.decrypt(mPassword, Preferences.userNodeForPackage(mClazz).get(key, ""),
-                    iv));
-            if (mLog == LogMode.ALL || mLog == LogMode.GET) {
-                Log.d(TAG, "getBoolean  " + param + " -> " + value);
-            }
-            return value;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return defaultValue;
-        }
+
+    /**
+     * Open a stream that encrypts a value of any size incrementally.
+     *
+     * @param key the key
+     * @return the stream, the value is replaced when it is closed
+     * @throws IOException if the cipher is not available
+     * @see AesStore#openOutputStream(String)
+     */
+    public static OutputStream openOutputStream(String key) throws IOException {
+        return getStore().openOutputStream(key);
     }
 
 
-    public static void storeArray(String key, List<String> values) {
-        long start = System.currentTimeMillis();
+    /**
+     * Open a stream that decrypts a streamed value incrementally.
+     *
+     * @param key the key
+     * @return the stream, or null if the key has no streamed value
+     * @throws IOException if the cipher is not available or the value is damaged
+     * @see AesStore#openInputStream(String)
+     */
+    public static InputStream openInputStream(String key) throws IOException {
+        return getStore().openInputStream(key);
+    }
 
-        long iv = System.currentTimeMillis();
 
-        String encryptedKey = Crypt.encrypt(mPassword, key, mIv);
-        Preferences sp = Preferences.userNodeForPackage(mClazz);
+    /**
+     * Get all values of the given keys in one pass.
+     *
+     * @param keys the keys
+     * @return the values of the keys that exist
+     * @see AesStore#getAll(Collection, boolean)
+     */
+    public static Map<String, String> getAll(Collection<String> keys) {
+        return getStore().getAll(keys);
+    }
 
-        sp.putInt(encryptedKey + "_size", values.size());
-        sp.putLong(encryptedKey + TAIL, iv);
 
-        for (int i = 0; i < values.size(); i++) {
-            String encryptedValue = Crypt.encrypt(mPassword, values.get(i), iv);
-            sp.put(encryptedKey + "_" + i, encryptedValue);
-        }
+    /**
+     * Put all entries and flush the node once.
+     *
+     * @param entries the entries
+     * @return true if the node was flushed to the backing store
+     * @see AesStore#putAll(Map)
+     */
+    public static boolean putAll(Map<String, ?> entries) {
+        return getStore().putAll(entries);
+    }
+
 
-        mDuration += System.currentTimeMillis() - start;
+    /**
+     * Begin a batch of puts on the default store.
+     *
+     * @return a new batch
+     */
+    public static AesStore.Batch beginBatch() {
+        return getStore().beginBatch();
     }
 
 
-    public static List<String> restoreArray(String key) {
-        long start = System.currentTimeMillis();
+    /**
+     * Flush the default store.
+     *
+     * @return true if the node was flushed to the backing store
+     * @see AesStore#flush()
+     */
+    public static boolean flush() {
+        return getStore().flush();
+    }
 
-        Preferences sp = Preferences.userNodeForPackage(mClazz);
 
-        String _key = Crypt.encrypt(mPassword, key, mIv) + TAIL;
-        long iv = sp.getLong(_key, 0);
-        key = _key.substring(0, _key.length() - 1);
-        int size = sp.getInt(key + "_size", 0);
+    /**
+     * @return the number of flushes of the default store
+     */
+    public static long getFlushCount() {
+        return getStore().getFlushCount();
+    }
 
-        List<String> strings = new ArrayList<String>();
-        for (int i = 0; i < size; i++) {
 
-            if (nodeExists((_key + "_" + i)) && mLog != LogMode.NONE) {
-                Log.e(TAG, "WARNING: Key '" + key + "_" + i + "' not found.\n" +
-                        "Return value: " + "new ArrayList<String>(0)");
-                mDuration += System.currentTimeMillis() - start;
-                return new ArrayList<String>();
-            }
+    /**
+     * @return the total time the default store spent flushing in nanoseconds
+     */
+    public static long getFlushNanos() {
+        return getStore().getFlushNanos();
+    }
 
-            strings.add(Crypt.decrypt(mPassword, sp.get(key + "_" + i, ""), iv));
-        }
-        mDuration += System.currentTimeMillis() - start;
-        return strings;
+
+    public static void storeArray(String key, List<String> values) {
+        getStore().storeArray(key, values);
+    }
+
+
+    public static List<String> restoreArray(String key) {
+        return getStore().restoreArray(key);
     }
 
 
     public static String getEncryptedContent() {
-        String result = null;
-
-        Preferences sp = Preferences.userNodeForPackage(mClazz);
-        try {
-            String[] keys = sp.keys();
-            for (String key : keys) {
-                Object value = sp.get(key, null);
-                result += key + " : " + value + "\n";
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "getEncryptedContent ");
-        }
-        return result;
+        return getStore().getEncryptedContent();
     }
 
 
     public static String getEncryptedKey(String key) {
-        String _key = Crypt.encrypt(mPassword, key, mIv) + TAIL;
-        return _key.substring(0, _key.length() - 1);
+        return getStore().getEncryptedKey(key);
     }
 
 
     /**
-     * Count entries int.
+     * Count the stored values, without IVs and chunks.
      *
-     * @return the int
+     * @return the number of values, or -1 if the backend failed
      */
     public static int countEntries() {
-        try {
-            return Preferences.userNodeForPackage(mClazz).keys().length;
-        } catch (BackingStoreException e) {
-            e.printStackTrace();
-        }
-        return -1;
+        return getStore().countEntries();
     }
 
 
@@ -609,11 +562,7 @@ public class AesPrefs {
      * Delete all.
      */
     public static void deleteAll() {
-        try {
-            userNodeForPackage(mClazz).clear();
-        } catch (BackingStoreException e) {
-            e.printStackTrace();
-        }
+        getStore().deleteAll();
     }
 
 
@@ -621,15 +570,7 @@ public class AesPrefs {
      * Init or increment launch counter.
      */
     public static void initOrIncrementLaunchCounter() {
-        LogMode tmp = mLog;
-        mLog = LogMode.NONE;
-        if (getInt("aes_app_launches", -1) == -1) {
-            // first launch insert 0
-            putInt("aes_app_launches", 0);
-        } else {
-            putInt("aes_app_launches", (getInt("aes_app_launches", 0) + 1));
-        }
-        mLog = tmp;
+        getStore().initOrIncrementLaunchCounter();
     }
 
 
@@ -639,7 +580,7 @@ public class AesPrefs {
      * @return the launch counter
      */
     public static int getLaunchCounter() {
-        return AesPrefs.getInt("aes_app_launches", 0);
+        return getStore().getLaunchCounter();
     }
 
 
@@ -647,12 +588,7 @@ public class AesPrefs {
      * Init installation date.
      */
     public static void initInstallationDate() {
-        LogMode tmp = mLog;
-        mLog = LogMode.NONE;
-        if (getLong("aes_inst_date", -1) == -1) {
-            putLong("aes_inst_date", System.currentTimeMillis());
-        }
-        mLog = tmp;
+        getStore().initInstallationDate();
     }
 
 
@@ -662,7 +598,7 @@ public class AesPrefs {
      * @return the installation date
      */
     public static long getInstallationDate() {
-        return getLong("aes_inst_date", 0L);
+        return getStore().getInstallationDate();
     }
 
 
@@ -670,11 +606,7 @@ public class AesPrefs {
      * Print installation date.
      */
     public static void printInstallationDate() {
-        LogMode tmp = mLog;
-        mLog = LogMode.NONE;
-        Log.i(TAG, "Installation date: " + TimeFormatUtils.formatTime(getLong("aes_inst_date", 0L), TimeFormatUtils
-                .DEFAULT_FORMAT));
-        mLog = tmp;
+        getStore().printInstallationDate();
     }
 
 
@@ -682,7 +614,7 @@ public class AesPrefs {
      * Reset execution time.
      */
     public static void resetExecutionTime() {
-        mDuration = 0L;
+        getStore().resetExecutionTime();
     }
 
 
@@ -692,15 +624,85 @@ public class AesPrefs {
      * @return the execution time
      */
     public static long getExecutionTime() {
-        return mDuration;
+        return getStore().getExecutionTime();
+    }
+
+
+    /**
+     * Gets a snapshot of the latencies of one operation.
+     *
+     * @param operation the operation
+     * @return the count and latencies in nanoseconds
+     * @see AesStore#getLatencyStats(AesStore.Operation)
+     */
+    public static LatencyStats getLatencyStats(AesStore.Operation operation) {
+        return getStore().getLatencyStats(operation);
+    }
+
+
+    /**
+     * Gets a snapshot of the latencies of all operations.
+     *
+     * @return the count and latencies in nanoseconds of every operation
+     */
+    public static Map<AesStore.Operation, LatencyStats> getLatencyStats() {
+        return getStore().getLatencyStats();
+    }
+
+
+    /**
+     * Gets the number of key name lookups served from the cache.
+     *
+     * @return the hit count
+     */
+    public static long getKeyNameCacheHits() {
+        return getStore().getKeyNameCacheHits();
+    }
+
+
+    /**
+     * Gets the number of key names that had to be encrypted.
+     *
+     * @return the miss count
+     */
+    public static long getKeyNameCacheMisses() {
+        return getStore().getKeyNameCacheMisses();
+    }
+
+
+    /**
+     * Gets the number of values that could not be decrypted or converted and of failed backend
+     * calls.
+     *
+     * @return the error count
+     */
+    public static long getErrorCount() {
+        return getStore().getErrorCount();
+    }
+
+
+    /**
+     * Drop all cached values and key names.
+     */
+    public static void clearCaches() {
+        getStore().clearCaches();
+    }
+
+
+    /**
+     * Reset all counters, histograms and cache statistics of the store.
+     */
+    public static void resetStatistics() {
+        getStore().resetStatistics();
     }
 
 
     /**
-     * Print execution time.
+     * Print execution time. The same and more is exposed through the {@link AesStoreMXBean} of the
+     * store.
      */
     public static void printExecutionTime() {
-        Log.i(TAG, "Execution time: " + String.valueOf(NumberFormatUtils.decimalPlaces((double) mDuration / 1000, 3) + " sec."));
+        getStore().printExecutionTime();
     }
 
 
@@ -0,0 +1,3525 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs;
+
+import com.pepperonas.jxaesprefs.AesPrefs.LogMode;
+import com.pepperonas.jxaesprefs.backend.PreferencesBackend;
+import com.pepperonas.jxaesprefs.backend.PrefsBackend;
+import com.pepperonas.jxaesprefs.backend.ShardedPreferencesBackend;
+import com.pepperonas.jxaesprefs.jfr.Tracer;
+import com.pepperonas.jxaesprefs.utils.CacheStats;
+import com.pepperonas.jxaesprefs.utils.CipherSuite;
+import com.pepperonas.jxaesprefs.utils.CryptContext;
+import com.pepperonas.jxaesprefs.utils.FastBase64;
+import com.pepperonas.jxaesprefs.utils.LatencyHistogram;
+import com.pepperonas.jxaesprefs.utils.LatencyStats;
+import com.pepperonas.jxaesprefs.utils.Log;
+import com.pepperonas.jxaesprefs.utils.LruCache;
+import com.pepperonas.jxaesprefs.utils.NumberFormatUtils;
+import com.pepperonas.jxaesprefs.utils.TimeFormatUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.NodeChangeListener;
+import java.util.prefs.PreferenceChangeListener;
+import java.util.prefs.Preferences;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * An encrypted preferences store backed by a {@link PrefsBackend}, by default one
+ * {@link Preferences} node.
+ * <p>
+ * All state but the password is fixed when the store is built, so one instance can be shared by
+ * any number of threads. Each value and its IV are written and read under a lock striped by
+ * encrypted key name, so readers never see a value paired with the IV of a concurrent write.
+ * <p>
+ * The password is changed online by {@link #rekey(String)}: writers wait a moment while the key
+ * is switched, then a {@link Migration} moves the entries to the new password in the background
+ * and reads fall back to the entries of the previous one until it is done.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+public class AesStore {
+
+    /**
+     * Constants
+     */
+    private static final String TAG = "AesStore";
+
+    /**
+     * The tag of the warnings about keys that were not found. Unless a limit was set before the
+     * first store was loaded, at most {@link #MISS_LOG_RATE} of them are printed per second.
+     */
+    public static final String MISS_TAG = TAG + ".miss";
+
+    public static final int MISS_LOG_RATE = 10;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final String TAIL = "=";
+    static final String IV_KEY = "aes_iv";
+
+    /**
+     * The entry marking a rekey that is not finished, it holds the encrypted name of this entry
+     * under the new and the previous password.
+     */
+    static final String REKEY_KEY = "aes_rekey";
+
+    private static final int DEFAULT_KEY_NAME_CACHE_SIZE = 1024;
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * Names the entries of arrays and marks pending arrays in the write-behind queue, '[' is never
+     * part of an encrypted name.
+     */
+    private static final String ARRAY_SUFFIX = "[]";
+
+    /**
+     * Names the entries of streamed values, '{' is never part of an encrypted name either.
+     */
+    private static final String STREAM_SUFFIX = "{}";
+
+    private static final long DEFAULT_WRITE_BEHIND_DELAY = 50;
+
+    /**
+     * Below this many values getAll decrypts in the calling thread.
+     */
+    private static final int PARALLEL_THRESHOLD = 64;
+
+    static {
+        Log.setDefaultRateLimit(MISS_TAG, MISS_LOG_RATE);
+    }
+
+
+    /**
+     * What a put does when the write-behind queue is full.
+     */
+    public enum Backpressure {
+        /**
+         * Wait until the flusher has made room.
+         */
+        BLOCK,
+        /**
+         * Write synchronously in the calling thread.
+         */
+        CALLER_RUNS,
+        /**
+         * Throw an {@link IllegalStateException}.
+         */
+        FAIL
+    }
+
+    /**
+     * When a write reaches the backing store.
+     */
+    public enum Durability {
+        /**
+         * Leave it to the backend, a preferences node is synced by the JDK's timer.
+         */
+        NONE,
+        /**
+         * Flush on a background thread, writes that come in meanwhile share the flush.
+         */
+        ASYNC,
+        /**
+         * Flush before the write returns. With write-behind the pending writes are written first,
+         * if that fails the write throws and its value stays pending.
+         */
+        SYNC
+    }
+
+    /**
+     * The operations with a latency histogram of their own, see {@link #getLatencyStats()}.
+     * Getters count hits only, a key that was not found counts as {@link #MISS}.
+     */
+    public enum Operation {
+        PUT, GET, PUT_INT, GET_INT, PUT_LONG, GET_LONG, PUT_FLOAT, GET_FLOAT, PUT_DOUBLE, GET_DOUBLE,
+        PUT_BOOLEAN, GET_BOOLEAN, PUT_BYTES, GET_BYTES, PUT_ALL, GET_ALL, STORE_ARRAY, RESTORE_ARRAY, MISS
+    }
+
+    private static final AtomicLong MBEAN_IDS = new AtomicLong();
+
+    /**
+     * Runs the flushes of all stores in ASYNC mode.
+     */
+    private static final ExecutorService FLUSHER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, TAG + "-flush");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Member
+     */
+    /**
+     * The backend as it was configured.
+     */
+    private final PrefsBackend mConfiguredBackend;
+
+    /**
+     * The backend all reads and writes go through, it adds their time to flight recordings if the
+     * JVM supports them.
+     */
+    private final PrefsBackend mBackend;
+
+    /**
+     * The key of the password, replaced by {@link #rekey(String)}.
+     */
+    private volatile CryptContext mCrypt;
+
+    /**
+     * The key of the previous password while a rekey moves the entries, else null.
+     */
+    private volatile CryptContext mPreviousCrypt;
+
+    private final long mIv;
+
+    /**
+     * Shared by writes in progress, held exclusively while a rekey switches the key.
+     */
+    private final ReadWriteLock mWriteGate = new ReentrantReadWriteLock();
+
+    private volatile LogMode mLog;
+
+    private volatile Durability mDurability;
+
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+
+    private final Runnable mScheduledFlush = new Runnable() {
+        @Override
+        public void run() {
+            // writes from now on need another flush.
+            mFlushScheduled.set(false);
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    };
+
+    private final AtomicLong mFlushes = new AtomicLong();
+    private final AtomicLong mFlushNanos = new AtomicLong();
+    private final AtomicLong mMaxFlushNanos = new AtomicLong();
+
+    /**
+     * One histogram per {@link Operation}, by ordinal.
+     */
+    private final LatencyHistogram[] mLatencies = new LatencyHistogram[Operation.values().length];
+
+    /**
+     * The time spent in all operations since {@link #resetExecutionTime()}, in nanoseconds.
+     */
+    private final LongAdder mExecutionNanos = new LongAdder();
+
+    /**
+     * Values that could not be decrypted or converted and failures of the backend.
+     */
+    private final LongAdder mErrors = new LongAdder();
+
+    private ObjectName mMBeanName;
+
+    /**
+     * Striped by encrypted key name. Locks are only ever taken in this order: the write gate of
+     * {@link #beginWrite()}, the drain of the write-behind queue, then stripes in ascending order.
+     * While a stripe is held nothing may wait for the gate or for room in the write-behind queue,
+     * the flusher and a rekey need the stripe to get past them.
+     */
+    private final ReadWriteLock[] mLocks = new ReadWriteLock[LOCK_STRIPES];
+
+    /**
+     * Pending writes by encrypted key name, null if write-behind is disabled.
+     */
+    private final WriteBehindQueue mWriteBehind;
+
+    private final boolean mMigrateOnRead;
+
+    /**
+     * The suite values are sealed with. Key names are always encrypted with CBC and the fixed IV,
+     * so they stay stable, and streams are always CBC, see {@link #openOutputStream(String)}.
+     */
+    private final CipherSuite mCipherSuite;
+
+    /**
+     * Plain key to encrypted key name, replaced together with the key by a rekey.
+     */
+    private volatile LruCache<String, String> mKeyNames;
+
+    /**
+     * Encrypted key name to decrypted value, null while the value cache is disabled.
+     */
+    private volatile LruCache<String, CachedValue> mValues;
+
+    /**
+     * Drops cached values when the backend is changed by anyone but this cache's own writes.
+     */
+    private final PrefsBackend.ChangeListener mValueInvalidator = new PrefsBackend.ChangeListener() {
+        @Override
+        public void changed(String name, String newValue) {
+            LruCache<String, CachedValue> values = mValues;
+            if (values == null) {
+                return;
+            }
+
+            // encrypted names are Base64, so their length is a multiple of 4 and an IV entry is one longer.
+            if (name.length() % 4 == 1 && name.endsWith(TAIL)) {
+                name = name.substring(0, name.length() - 1);
+                CachedValue cached = values.peek(name);
+                if (cached != null && !String.valueOf(cached.iv).equals(newValue)) {
+                    values.remove(name, cached);
+                }
+            } else {
+                CachedValue cached = values.peek(name);
+                if (cached != null && !cached.cipherText.equals(newValue)) {
+                    values.remove(name, cached);
+                }
+            }
+        }
+    };
+
+
+    private AesStore(Builder builder) {
+        mConfiguredBackend = builder.backend();
+        mBackend = Tracer.isAvailable() ? new TracingBackend(mConfiguredBackend) : mConfiguredBackend;
+        mLog = builder.mLogMode;
+        mDurability = builder.mDurability;
+        mCrypt = new CryptContext(builder.mPassword);
+        mKeyNames = new LruCache<String, String>(builder.mKeyNameCacheSize);
+        mMigrateOnRead = builder.mMigrateOnRead;
+        mCipherSuite = builder.mCipherSuite;
+        for (int i = 0; i < mLocks.length; i++) {
+            mLocks[i] = new ReentrantReadWriteLock();
+        }
+        for (int i = 0; i < mLatencies.length; i++) {
+            mLatencies[i] = new LatencyHistogram();
+        }
+
+        if (mLog != LogMode.NONE) {
+            Log.i(TAG, "Initializing " + mBackend.name() + "...");
+        }
+        mIv = initIv();
+        if (mBackend.get(REKEY_KEY) != null && mLog != LogMode.NONE) {
+            Log.w(TAG, "A rekey of " + mBackend.name() + " is not finished, see rekey(String) and "
+                    + "resumeRekey(String)");
+        }
+
+        if (builder.mValueCacheSize > 0) {
+            enableValueCache(builder.mValueCacheSize);
+        }
+
+        if (builder.mWriteBehindCapacity > 0) {
+            mWriteBehind = new WriteBehindQueue(mBackend.name(), builder.mWriteBehindCapacity,
+                    builder.mBackpressure, builder.mWriteBehindDelay, new WriteBehindQueue.Writer() {
+                @Override
+                public void write(Map<String, Object> entries) {
+                    writeBehind(entries);
+                }
+            });
+        } else {
+            mWriteBehind = null;
+        }
+    }
+
+
+    private long initIv() {
+        synchronized (AesStore.class) {
+            long iv = readLong(IV_KEY, -1);
+            if (iv != -1) {
+                if (mLog != LogMode.NONE) {
+                    Log.i(TAG, "IV found {" + iv + "}");
+                }
+                return iv;
+            }
+
+            // this IV will be used to keep track of your preference keys.
+            // preference values have their own IVs.
+            iv = System.currentTimeMillis();
+            if (mLog != LogMode.NONE) {
+                Log.w(TAG, "New IV set {" + iv + "}");
+            }
+            mBackend.put(IV_KEY, String.valueOf(iv));
+            return iv;
+        }
+    }
+
+
+    /**
+     * @return the backend of this store
+     */
+    public PrefsBackend backend() {
+        return mConfiguredBackend;
+    }
+
+
+    /**
+     * @return the preferences node of this store, which holds the shards if sharding is enabled,
+     * or null if the backend is not a node
+     */
+    public Preferences node() {
+        if (mConfiguredBackend instanceof PreferencesBackend) {
+            return ((PreferencesBackend) mConfiguredBackend).node();
+        } else if (mConfiguredBackend instanceof ShardedPreferencesBackend) {
+            return ((ShardedPreferencesBackend) mConfiguredBackend).node();
+        }
+        return null;
+    }
+
+
+    /**
+     * @return the node, if it holds all entries
+     */
+    private Preferences requireNode() {
+        if (!(mConfiguredBackend instanceof PreferencesBackend)) {
+            throw new UnsupportedOperationException(mBackend.name() + " is not a single preferences node");
+        }
+        return ((PreferencesBackend) mConfiguredBackend).node();
+    }
+
+
+    /**
+     * Reads a number stored in plain text, like the IV entries. As with {@link Preferences#getLong},
+     * a value that is not a number reads as the default.
+     */
+    private long readLong(String name, long defaultValue) {
+        String value = mBackend.get(name);
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return defaultValue;
+    }
+
+
+    /**
+     * @return the suite new values are sealed with
+     */
+    public CipherSuite getCipherSuite() {
+        return mCipherSuite;
+    }
+
+
+    public LogMode getLogMode() {
+        return mLog;
+    }
+
+
+    public void setLogMode(LogMode logMode) {
+        mLog = logMode;
+    }
+
+
+    public Durability getDurability() {
+        return mDurability;
+    }
+
+
+    /**
+     * @param durability the durability of writes that don't ask for their own
+     * @see #withDurability(Durability)
+     */
+    public void setDurability(Durability durability) {
+        if (durability == null) {
+            throw new NullPointerException("durability must not be null");
+        }
+        mDurability = durability;
+    }
+
+
+    /**
+     * Writes through the returned view have the given durability, whatever the durability of this
+     * store is. Use it e.g. to write credentials with {@link Durability#SYNC} to a store that
+     * doesn't flush otherwise.
+     *
+     * @param durability the durability
+     * @return a view on this store
+     */
+    public DurableView withDurability(Durability durability) {
+        if (durability == null) {
+            throw new NullPointerException("durability must not be null");
+        }
+        return new DurableView(durability);
+    }
+
+
+    /**
+     * Keep up to maxSize decrypted values in memory. Cached values are replaced by put* and dropped
+     * when another writer changes the node.
+     *
+     * @param maxSize the maximum number of cached values
+     */
+    public synchronized void enableValueCache(int maxSize) {
+        disableValueCache();
+        mBackend.addChangeListener(mValueInvalidator);
+        mValues = new LruCache<String, CachedValue>(maxSize);
+    }
+
+
+    /**
+     * Disable value cache and drop all cached values.
+     */
+    public synchronized void disableValueCache() {
+        if (mValues != null) {
+            mBackend.removeChangeListener(mValueInvalidator);
+            mValues = null;
+        }
+    }
+
+
+    /**
+     * Gets value cache stats.
+     *
+     * @return the value cache stats, or null if the value cache is disabled
+     */
+    public CacheStats getValueCacheStats() {
+        LruCache<String, CachedValue> values = mValues;
+        return values == null ? null : values.stats();
+    }
+
+
+    /**
+     * @return the maximum size of the value cache, or 0 if it is disabled
+     */
+    int getValueCacheSize() {
+        LruCache<String, CachedValue> values = mValues;
+        return values == null ? 0 : values.maxSize();
+    }
+
+
+    /**
+     * Encrypts a key with the fixed IV, which makes the result a stable storage key name.
+     */
+    private String encryptKey(String key) {
+        long start = Tracer.startPhase();
+        LruCache<String, String> names = mKeyNames;
+        String encryptedKey = names.get(key);
+        if (encryptedKey == null) {
+            // the key is read after the cache, a rekey replaces it before the cache.
+            encryptedKey = mCrypt.encrypt(key, mIv);
+            names.put(key, encryptedKey);
+        }
+        Tracer.endPhase(Tracer.Phase.KEY_NAME, start);
+        return encryptedKey;
+    }
+
+
+    private static int stripeOf(String encryptedKey) {
+        int h = encryptedKey.hashCode();
+        h ^= (h >>> 16);
+        return h & (LOCK_STRIPES - 1);
+    }
+
+
+    private ReadWriteLock lockFor(String encryptedKey) {
+        return mLocks[stripeOf(encryptedKey)];
+    }
+
+
+    /**
+     * Enters a write, waiting while a rekey switches the key, so the name and the value of a write
+     * are always encrypted with the same key. No lock of a key may be held here, see
+     * {@link #mLocks}.
+     */
+    private void beginWrite() {
+        mWriteGate.readLock().lock();
+    }
+
+
+    private void endWrite() {
+        mWriteGate.readLock().unlock();
+    }
+
+
+    /**
+     * Holds new writes back, waits for those in progress and the write-behind queue, then replaces
+     * the key and drops all cached names and values.
+     */
+    private void switchKey(CryptContext crypt, CryptContext previous) {
+        // blocks new writes, queued behind it, until the writes in progress are done.
+        mWriteGate.writeLock().lock();
+        try {
+            if (mWriteBehind != null) {
+                // pending entries are named with the old key, if they can't be written the key stays.
+                mWriteBehind.drain();
+            }
+            // readers that see the new key must see the previous one, and the new key before the new names.
+            mPreviousCrypt = previous;
+            mCrypt = crypt;
+            mKeyNames = new LruCache<String, String>(mKeyNames.maxSize());
+            LruCache<String, CachedValue> values = mValues;
+            if (values != null) {
+                values.clear();
+            }
+        } finally {
+            mWriteGate.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Reads and decrypts a value, using the value cache if enabled.
+     *
+     * @return the value, or null if the key does not exist
+     */
+    private Object readValue(String encryptedKey) {
+        LruCache<String, CachedValue> values = mValues;
+        if (values != null) {
+            CachedValue cached = values.get(encryptedKey);
+            if (cached != null) {
+                return cached.value;
+            }
+        }
+
+        long start = System.nanoTime();
+        CachedValue stored = fetchValue(encryptedKey);
+        if (stored == null) {
+            return null;
+        }
+        Object value = decryptValue(stored);
+        if (value == null) {
+            return null;
+        }
+        if (mMigrateOnRead && needsMigration(stored.cipherText)) {
+            stored = migrateValue(encryptedKey, stored, value);
+        }
+
+        if (values != null) {
+            cacheLoaded(values, encryptedKey, stored.withValue(value), System.nanoTime() - start);
+        }
+        return value;
+    }
+
+
+    /**
+     * Caches a value that was read and decrypted outside the lock of its key, unless a write
+     * replaced it in the meantime. Writes store and cache under the write lock, so checking the
+     * cipher text under the read lock keeps a slow reader from caching over a newer value.
+     *
+     * @param loadTime the load time in nanoseconds, or a negative value to record no load
+     */
+    private void cacheLoaded(LruCache<String, CachedValue> values, String encryptedKey, CachedValue loaded,
+                             long loadTime) {
+        ReadWriteLock lock = lockFor(encryptedKey);
+        lock.readLock().lock();
+        try {
+            if (!loaded.cipherText.equals(mBackend.get(encryptedKey))) {
+                return;
+            }
+            if (loadTime < 0) {
+                values.put(encryptedKey, loaded);
+            } else {
+                values.putLoaded(encryptedKey, loaded, loadTime);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Reads the stored value, and the IV entry only for values in the legacy format.
+     *
+     * @return the stored value with a null plain value, or null if the key does not exist
+     */
+    private CachedValue fetchValue(String encryptedKey) {
+        ReadWriteLock lock = lockFor(encryptedKey);
+        lock.readLock().lock();
+        try {
+            return loadStored(encryptedKey);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Like {@link #fetchValue(String)}, for callers that hold the lock of the key.
+     */
+    private CachedValue loadStored(String encryptedKey) {
+        String cipherText = mBackend.get(encryptedKey);
+        if (cipherText == null) {
+            return null;
+        }
+        if (Envelope.isSealed(cipherText)) {
+            return new CachedValue(cipherText, 0, null);
+        }
+        return new CachedValue(cipherText, readLong(encryptedKey + TAIL, 0), null);
+    }
+
+
+    /**
+     * @return the plain value, a String or a boxed primitive, or null if it can't be decrypted
+     */
+    private Object decryptValue(CachedValue stored) {
+        return decryptValue(mCrypt, stored);
+    }
+
+
+    private Object decryptValue(CryptContext crypt, CachedValue stored) {
+        Object value = Envelope.isSealed(stored.cipherText)
+                ? Envelope.openValue(crypt, stored.cipherText)
+                : Envelope.openLegacy(crypt, stored.cipherText, stored.iv);
+        if (value == null) {
+            mErrors.increment();
+        }
+        return value;
+    }
+
+
+    /**
+     * @return true if the value is in the legacy format or sealed with another suite
+     */
+    private boolean needsMigration(String cipherText) {
+        return Envelope.suiteOf(cipherText) != mCipherSuite;
+    }
+
+
+    /**
+     * Rewrites a legacy value, or one sealed with another suite, in the single-entry format with
+     * the suite of this store, unless it was changed since it was read. Nothing is rewritten while
+     * a rekey runs, it seals all values with the suite of this store anyway.
+     *
+     * @return the value as it is stored now
+     */
+    private CachedValue migrateValue(String encryptedKey, CachedValue legacy, Object value) {
+        beginWrite();
+        try {
+            if (mPreviousCrypt != null) {
+                return legacy;
+            }
+            // sealed values keep their type, bytes must not become text.
+            String cipherText = Envelope.isSealed(legacy.cipherText)
+                    ? Envelope.reseal(mCrypt, mCipherSuite, legacy.cipherText)
+                    : Envelope.sealValue(mCrypt, mCipherSuite, value);
+            if (cipherText == null) {
+                return legacy;
+            }
+            CachedValue sealed = new CachedValue(cipherText, 0, value);
+            ReadWriteLock lock = lockFor(encryptedKey);
+            lock.writeLock().lock();
+            try {
+                if (legacy.cipherText.equals(mBackend.get(encryptedKey))) {
+                    storeValue(encryptedKey, sealed);
+                    return sealed;
+                }
+                return legacy;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            endWrite();
+        }
+    }
+
+
+    /**
+     * Reads a value, preferring a pending write-behind entry over the node.
+     *
+     * @return the value, a String or a boxed primitive, or null if the key does not exist
+     */
+    private Object read(String key) {
+        String encryptedKey = encryptKey(key);
+        if (mWriteBehind != null) {
+            Object pending = mWriteBehind.get(encryptedKey);
+            if (pending != null) {
+                return pending instanceof byte[] ? new String((byte[]) pending, UTF_8) : pending;
+            }
+        }
+        Object value = readValue(encryptedKey);
+        if (value == null && mPreviousCrypt != null) {
+            value = readPrevious(key, encryptedKey);
+        }
+        return value;
+    }
+
+
+    /**
+     * Reads a value that a running rekey has not moved yet: the entry under the name of the
+     * previous password, then the current name again in case it was moved meanwhile.
+     *
+     * @return the value, or null if the key does not exist
+     */
+    private Object readPrevious(String key, String encryptedKey) {
+        CryptContext previous = mPreviousCrypt;
+        if (previous != null) {
+            CachedValue stored = fetchValue(previous.encrypt(key, mIv));
+            Object value = stored == null ? null : decryptValue(previous, stored);
+            if (value != null) {
+                return value;
+            }
+        }
+        return readValue(encryptedKey);
+    }
+
+
+    /**
+     * Reads a value as bytes, text values are returned UTF-8 encoded.
+     *
+     * @return the bytes, or null if the key does not exist
+     */
+    private byte[] readBytes(String key) {
+        String encryptedKey = encryptKey(key);
+        if (mWriteBehind != null) {
+            Object pending = mWriteBehind.get(encryptedKey);
+            if (pending != null) {
+                return pending instanceof byte[] ? ((byte[]) pending).clone() : String.valueOf(pending).getBytes(UTF_8);
+            }
+        }
+
+        byte[] value = openBytes(mCrypt, fetchValue(encryptedKey));
+        CryptContext previous = mPreviousCrypt;
+        if (value == null && previous != null) {
+            // not moved by the rekey yet, or just moved.
+            value = openBytes(previous, fetchValue(previous.encrypt(key, mIv)));
+            if (value == null) {
+                value = openBytes(mCrypt, fetchValue(encryptedKey));
+            }
+        }
+        return value;
+    }
+
+
+    /**
+     * @return the bytes of a stored value, or null if there is none or it can't be decrypted
+     */
+    private static byte[] openBytes(CryptContext crypt, CachedValue stored) {
+        if (stored == null) {
+            return null;
+        }
+        if (Envelope.isSealed(stored.cipherText)) {
+            return Envelope.openBytes(crypt, stored.cipherText);
+        }
+        String text = Envelope.openLegacy(crypt, stored.cipherText, stored.iv);
+        return text == null ? null : text.getBytes(UTF_8);
+    }
+
+
+    /**
+     * Encrypts bytes and stores them in the single-entry format.
+     */
+    private void writeBytes(String encryptedKey, byte[] value, int offset, int length) {
+        String sealed = Envelope.seal(mCrypt, mCipherSuite, Envelope.TYPE_BYTES, value, offset, length);
+
+        ReadWriteLock lock = lockFor(encryptedKey);
+        lock.writeLock().lock();
+        try {
+            // bytes are not cached, so the entry must not keep a stale text.
+            storeValue(encryptedKey, new CachedValue(sealed, 0, null));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Writes a String or a boxed primitive, through the write-behind queue if enabled.
+     */
+    private void write(String key, Object value) {
+        beginWrite();
+        try {
+            String encryptedKey = encryptKey(key);
+            if (mWriteBehind == null || !mWriteBehind.offer(encryptedKey, value)) {
+                writeValue(encryptedKey, value);
+            }
+        } finally {
+            endWrite();
+        }
+    }
+
+
+    /**
+     * Encrypts a value with a fresh IV and stores both, updating the value cache if enabled.
+     */
+    private void writeValue(String encryptedKey, Object value) {
+        CachedValue entry = encryptValue(value);
+
+        ReadWriteLock lock = lockFor(encryptedKey);
+        lock.writeLock().lock();
+        try {
+            storeValue(encryptedKey, entry);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    private CachedValue encryptValue(Object value) {
+        return new CachedValue(Envelope.sealValue(mCrypt, mCipherSuite, value), 0, value);
+    }
+
+
+    private static int toInt(Object value) {
+        return value instanceof Integer ? (Integer) value : Integer.parseInt(String.valueOf(value));
+    }
+
+
+    private static long toLong(Object value) {
+        return value instanceof Long ? (Long) value : Long.parseLong(String.valueOf(value));
+    }
+
+
+    private static double toDouble(Object value) {
+        return value instanceof Double ? (Double) value : Double.parseDouble(String.valueOf(value));
+    }
+
+
+    private static float toFloat(Object value) {
+        return value instanceof Float ? (Float) value : Float.parseFloat(String.valueOf(value));
+    }
+
+
+    private static boolean toBoolean(Object value) {
+        return value instanceof Boolean ? (Boolean) value : Boolean.parseBoolean(String.valueOf(value));
+    }
+
+
+    /**
+     * Stores an encrypted value and drops the IV entry of the legacy format. The caller must hold
+     * the write lock of the key.
+     */
+    private void storeValue(String encryptedKey, CachedValue entry) {
+        if (hasLegacyIv(encryptedKey)) {
+            Map<String, String> changes = new LinkedHashMap<String, String>(4);
+            changes.put(encryptedKey, entry.cipherText);
+            changes.put(encryptedKey + TAIL, null);
+            mBackend.batch(changes);
+        } else {
+            mBackend.put(encryptedKey, entry.cipherText);
+        }
+        cacheValue(encryptedKey, entry);
+    }
+
+
+    /**
+     * @return true if the key has an IV entry of the legacy format that no legacy array needs
+     */
+    private boolean hasLegacyIv(String encryptedKey) {
+        // arrays share the IV entry of their key.
+        return mBackend.get(encryptedKey + TAIL) != null && mBackend.get(encryptedKey + "_size") == null;
+    }
+
+
+    private void cacheValue(String encryptedKey, CachedValue entry) {
+        LruCache<String, CachedValue> values = mValues;
+        if (values != null) {
+            if (entry.value == null) {
+                values.remove(encryptedKey);
+            } else {
+                values.put(encryptedKey, entry);
+            }
+        }
+    }
+
+
+    /**
+     * @throws UnsupportedOperationException if the backend is not a single preferences node
+     */
+    public void registerNodeChangeListener(NodeChangeListener nodeChangeListener) {
+        requireNode().addNodeChangeListener(nodeChangeListener);
+    }
+
+
+    public void unregisterNodeChangeListener(NodeChangeListener nodeChangeListener) {
+        requireNode().removeNodeChangeListener(nodeChangeListener);
+    }
+
+
+    /**
+     * @throws UnsupportedOperationException if the backend is not a single preferences node
+     */
+    public void registerPreferenceChangeListener(PreferenceChangeListener preferenceChangeListener) {
+        requireNode().addPreferenceChangeListener(preferenceChangeListener);
+    }
+
+
+    public void unregisterPreferenceChangeListener(PreferenceChangeListener preferenceChangeListener) {
+        requireNode().removePreferenceChangeListener(preferenceChangeListener);
+    }
+
+
+    /**
+     * Put.
+     *
+     * @param key   the key
+     * @param value the value
+     */
+    public void put(String key, String value) {
+        put(key, value, mDurability);
+    }
+
+
+    private void put(String key, String value, Durability durability) {
+        long start = begin();
+
+        write(key, value);
+        complete(durability);
+
+        if (mLog == LogMode.ALL || mLog == LogMode.SET) {
+            Log.d(TAG, "put " + key + " <- " + value);
+        }
+
+        record(Operation.PUT, start, key, value);
+    }
+
+
+    /**
+     * Get string.
+     *
+     * @param key          the key
+     * @param defaultValue the default value
+     * @return the string
+     */
+    public String get(String key, String defaultValue) {
+        long start = begin();
+
+        Object value = read(key);
+        if (value == null) {
+            record(Operation.MISS, start, key, null);
+            logMiss(key, defaultValue);
+            return defaultValue;
+        }
+
+        String decrypted = String.valueOf(value);
+        record(Operation.GET, start, key, decrypted);
+        if (mLog == LogMode.ALL || mLog == LogMode.GET) {
+            Log.d(TAG, "get  " + key + " -> " + decrypted);
+        }
+        return decrypted;
+    }
+
+
+    /**
+     * Put int.
+     *
+     * @param key   the key
+     * @param value the value
+     */
+    public void putInt(String key, int value) {
+        putInt(key, value, mDurability);
+    }
+
+
+    private void putInt(String key, int value, Durability durability) {
+        long start = begin();
+
+        write(key, value);
+        complete(durability);
+
+        if (mLog == LogMode.ALL || mLog == LogMode.SET) {
+            Log.d(TAG, "putInt " + key + " <- " + value);
+        }
+
+        record(Operation.PUT_INT, start, key, value);
+    }
+
+
+    /**
+     * Gets int.
+     *
+     * @param key          the key
+     * @param defaultValue the default value
+     * @return the int
+     */
+    public int getInt(String key, int defaultValue) {
+        long start = begin();
+
+        Object decrypted = read(key);
+        if (decrypted == null) {
+            record(Operation.MISS, start, key, null);
+            logMiss(key, defaultValue);
+            return defaultValue;
+        }
+
+        try {
+            int value = toInt(decrypted);
+            record(Operation.GET_INT, start, key, value);
+            if (mLog == LogMode.ALL || mLog == LogMode.GET) {
+                Log.d(TAG, "getInt  " + key + " -> " + value);
+            }
+            return value;
+        } catch (Exception e) {
+            mErrors.increment();
+            e.printStackTrace();
+            return defaultValue;
+        }
+    }
+
+
+    /**
+     * Put long.
+     *
+     * @param key   the key
+     * @param value the value
+     */
+    public void putLong(String key, long value) {
+        putLong(key, value, mDurability);
+    }
+
+
+    private void putLong(String key, long value, Durability durability) {
+        long start = begin();
+
+        write(key, value);
+        complete(durability);
+
+        if (mLog == LogMode.ALL || mLog == LogMode.SET) {
+            Log.d(TAG, "putLong " + key + " <- " + value);
+        }
+
+        record(Operation.PUT_LONG, start, key, value);
+    }
+
+
+    /**
+     * Gets long.
+     *
+     * @param key          the key
+     * @param defaultValue the default value
+     * @return the long
+     */
+    public long getLong(String key, long defaultValue) {
+        long start = begin();
+
+        Object decrypted = read(key);
+        if (decrypted == null) {
+            record(Operation.MISS, start, key, null);
+            logMiss(key, defaultValue);
+            return defaultValue;
+        }
+
+        try {
+            long value = toLong(decrypted);
+            record(Operation.GET_LONG, start, key, value);
+            if (mLog == LogMode.ALL || mLog == LogMode.GET) {
+                Log.d(TAG, "getLong  " + key + " -> " + value);
+            }
+            return value;
+        } catch (Exception e) {
+            mErrors.increment();
+            e.printStackTrace();
+            return defaultValue;
+        }
+    }
+
+
+    /**
+     * Put double.
+     *
+     * @param key   the key
+     * @param value the value
+     */
+    public void putDouble(String key, double value) {
+        putDouble(key, value, mDurability);
+    }
+
+
+    private void putDouble(String key, double value, Durability durability) {
+        long start = begin();
+
+        write(key, value);
+        complete(durability);
+
+        if (mLog == LogMode.ALL || mLog == LogMode.SET) {
+            Log.d(TAG, "putDouble " + key + " <- " + value);
+        }
+
+        record(Operation.PUT_DOUBLE, start, key, value);
+    }
+
+
+    /**
+     * Gets double.
+     *
+     * @param key          the key
+     * @param defaultValue the default value
+     * @return the double
+     */
+    public double getDouble(String key, double defaultValue) {
+        long start = begin();
+
+        Object decrypted = read(key);
+        if (decrypted == null) {
+            record(Operation.MISS, start, key, null);
+            logMiss(key, defaultValue);
+            return defaultValue;
+        }
+
+        try {
+            double value = toDouble(decrypted);
+            record(Operation.GET_DOUBLE, start, key, value);
+            if (mLog == LogMode.ALL || mLog == LogMode.GET) {
+                Log.d(TAG, "getDouble  " + key + " -> " + value);
+            }
+            return value;
+        } catch (Exception e) {
+            mErrors.increment();
+            e.printStackTrace();
+            return defaultValue;
+        }
+    }
+
+
+    /**
+     * Put float.
+     *
+     * @param key   the key
+     * @param value the value
+     */
+    public void putFloat(String key, float value) {
+        putFloat(key, value, mDurability);
+    }
+
+
+    private void putFloat(String key, float value, Durability durability) {
+        long start = begin();
+
+        write(key, value);
+        complete(durability);
+
+        if (mLog == LogMode.ALL || mLog == LogMode.SET) {
+            Log.d(TAG, "putFloat " + key + " <- " + value);
+        }
+
+        record(Operation.PUT_FLOAT, start, key, value);
+    }
+
+
+    /**
+     * Gets float.
+     *
+     * @param key          the key
+     * @param defaultValue the default value
+     * @return the float
+     */
+    public float getFloat(String key, float defaultValue) {
+        long start = begin();
+
+        Object decrypted = read(key);
+        if (decrypted == null) {
+            record(Operation.MISS, start, key, null);
+            logMiss(key, defaultValue);
+            return defaultValue;
+        }
+
+        try {
+            float value = toFloat(decrypted);
+            record(Operation.GET_FLOAT, start, key, value);
+            if (mLog == LogMode.ALL || mLog == LogMode.GET) {
+                Log.d(TAG, "getFloat  " + key + " -> " + value);
+            }
+            return value;
+        } catch (Exception e) {
+            mErrors.increment();
+            e.printStackTrace();
+            return defaultValue;
+        }
+    }
+
+
+    /**
+     * Put boolean.
+     *
+     * @param key   the key
+     * @param value the value
+     */
+    public void putBoolean(String key, boolean value) {
+        putBoolean(key, value, mDurability);
+    }
+
+
+    private void putBoolean(String key, boolean value, Durability durability) {
+        long start = begin();
+
+        write(key, value);
+        complete(durability);
+
+        if (mLog == LogMode.ALL || mLog == LogMode.SET) {
+            Log.d(TAG, "putBoolean " + key + " <- " + value);
+        }
+
+        record(Operation.PUT_BOOLEAN, start, key, value);
+    }
+
+
+    /**
+     * Gets boolean.
+     *
+     * @param key          the key
+     * @param defaultValue the default value
+     * @return the boolean
+     */
+    public boolean getBoolean(String key, boolean defaultValue) {
+        long start = begin();
+
+        Object decrypted = read(key);
+        if (decrypted == null) {
+            record(Operation.MISS, start, key, null);
+            logMiss(key, defaultValue);
+            return defaultValue;
+        }
+
+        try {
+            boolean value = toBoolean(decrypted);
+            record(Operation.GET_BOOLEAN, start, key, value);
+            if (mLog == LogMode.ALL || mLog == LogMode.GET) {
+                Log.d(TAG, "getBoolean  " + key + " -> " + value);
+            }
+            return value;
+        } catch (Exception e) {
+            mErrors.increment();
+            e.printStackTrace();
+            return defaultValue;
+        }
+    }
+
+
+    /**
+     * Put bytes. They are encrypted as they are, without a detour through a String.
+     *
+     * @param key   the key
+     * @param value the value
+     */
+    public void putBytes(String key, byte[] value) {
+        putBytes(key, value, 0, value.length, mDurability);
+    }
+
+
+    /**
+     * Put the remaining bytes of a buffer. The position of the buffer is not changed.
+     *
+     * @param key   the key
+     * @param value the value
+     */
+    public void putBytes(String key, ByteBuffer value) {
+        putBytes(key, value, mDurability);
+    }
+
+
+    private void putBytes(String key, ByteBuffer value, Durability durability) {
+        if (value.hasArray()) {
+            putBytes(key, value.array(), value.arrayOffset() + value.position(), value.remaining(), durability);
+        } else {
+            byte[] bytes = new byte[value.remaining()];
+            value.duplicate().get(bytes);
+            putBytes(key, bytes, 0, bytes.length, durability);
+        }
+    }
+
+
+    /**
+     * Put a range of bytes.
+     *
+     * @param key    the key
+     * @param value  the value
+     * @param offset the offset of the range
+     * @param length the length of the range
+     */
+    public void putBytes(String key, byte[] value, int offset, int length) {
+        putBytes(key, value, offset, length, mDurability);
+    }
+
+
+    private void putBytes(String key, byte[] value, int offset, int length, Durability durability) {
+        long start = begin();
+
+        beginWrite();
+        try {
+            String encryptedKey = encryptKey(key);
+            if (mWriteBehind == null
+                    || !mWriteBehind.offer(encryptedKey, Arrays.copyOfRange(value, offset, offset + length))) {
+                writeBytes(encryptedKey, value, offset, length);
+            }
+        } finally {
+            endWrite();
+        }
+        complete(durability);
+
+        if (mLog == LogMode.ALL || mLog == LogMode.SET) {
+            Log.d(TAG, "putBytes " + key + " <- " + length + " bytes");
+        }
+
+        record(Operation.PUT_BYTES, start, key, length);
+    }
+
+
+    /**
+     * Gets bytes. Values that were stored as text are returned UTF-8 encoded.
+     *
+     * @param key          the key
+     * @param defaultValue the default value
+     * @return the bytes
+     */
+    public byte[] getBytes(String key, byte[] defaultValue) {
+        long start = begin();
+
+        byte[] value = readBytes(key);
+        if (value == null) {
+            record(Operation.MISS, start, key, null);
+            logMiss(key, defaultValue);
+            return defaultValue;
+        }
+
+        record(Operation.GET_BYTES, start, key, value);
+        if (mLog == LogMode.ALL || mLog == LogMode.GET) {
+            Log.d(TAG, "getBytes  " + key + " -> " + value.length + " bytes");
+        }
+        return value;
+    }
+
+
+    /**
+     * Gets bytes as a buffer.
+     *
+     * @param key the key
+     * @return a buffer wrapping the bytes, or null if the key does not exist
+     */
+    public ByteBuffer getByteBuffer(String key) {
+        byte[] value = getBytes(key, null);
+        return value == null ? null : ByteBuffer.wrap(value);
+    }
+
+
+    /**
+     * Open a stream that encrypts a value of any size incrementally. The bytes are spread over
+     * chunk entries of the node and replace the previous value of the key when the stream is
+     * closed, a stream that is never closed leaves no value behind. Streams bypass the write-behind
+     * queue.
+     * <p>
+     * Streams are always encrypted with AES-CBC, whatever {@link Builder#cipherSuite(CipherSuite)}
+     * is set to, and a migration or rekey keeps them on CBC. They are not authenticated, a modified
+     * chunk decrypts to garbage instead of failing. Store values that need GCM with putBytes.
+     *
+     * @param key the key
+     * @return the stream
+     * @throws IOException if the cipher is not available
+     */
+    public OutputStream openOutputStream(String key) throws IOException {
+        return openOutputStream(key, mDurability);
+    }
+
+
+    private OutputStream openOutputStream(final String key, final Durability durability) throws IOException {
+        final String encryptedKey;
+        final CryptContext crypt;
+        final byte[] iv;
+        Cipher cipher;
+        beginWrite();
+        try {
+            encryptedKey = encryptKey(key);
+            crypt = mCrypt;
+            iv = crypt.newIv();
+            cipher = crypt.newCipher(Cipher.ENCRYPT_MODE, iv);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        } finally {
+            endWrite();
+        }
+        final String generation = streamGeneration(iv);
+
+        if (mLog == LogMode.ALL || mLog == LogMode.SET) {
+            Log.d(TAG, "openOutputStream " + key);
+        }
+
+        return new CipherOutputStream(new ChunkOutputStream(mBackend, streamPrefix(encryptedKey, generation)) {
+            @Override
+            protected void onClose(int chunks) {
+                commitStream(encryptedKey, generation + ":" + chunks + ":" + FastBase64.encodeToString(iv));
+                if (crypt != mCrypt) {
+                    // the password was changed while the stream was open.
+                    moveKey(key, crypt, encryptedKey);
+                }
+                complete(durability);
+            }
+        }, cipher);
+    }
+
+
+    /**
+     * @return the part of the chunk names that keeps the chunks of a new value from overwriting
+     * those of the current one
+     */
+    private static String streamGeneration(byte[] iv) {
+        return Integer.toString(ByteBuffer.wrap(iv).getInt() & Integer.MAX_VALUE, 36);
+    }
+
+
+    /**
+     * Open a stream that decrypts a value written by {@link #openOutputStream(String)}, one chunk
+     * at a time. Reading fails with an IOException if the value is replaced meanwhile.
+     *
+     * @param key the key
+     * @return the stream, or null if the key has no streamed value
+     * @throws IOException if the cipher is not available or the value is damaged
+     */
+    public InputStream openInputStream(String key) throws IOException {
+        String encryptedKey = encryptKey(key);
+        CryptContext crypt = mCrypt;
+        String head = readStreamHead(encryptedKey);
+        CryptContext previous = mPreviousCrypt;
+        if (head == null && previous != null) {
+            // not moved by the rekey yet, or just moved.
+            String previousKey = previous.encrypt(key, mIv);
+            head = readStreamHead(previousKey);
+            if (head != null) {
+                encryptedKey = previousKey;
+                crypt = previous;
+            } else {
+                crypt = mCrypt;
+                head = readStreamHead(encryptedKey);
+            }
+        }
+        if (head == null) {
+            if (mLog != LogMode.NONE) {
+                Log.e(MISS_TAG, "WARNING: Stream '" + key + "' not found (return: null)");
+            }
+            return null;
+        }
+
+        String[] parts = head.split(":");
+        Cipher cipher;
+        int chunks;
+        try {
+            chunks = Integer.parseInt(parts[1]);
+            cipher = crypt.newCipher(Cipher.DECRYPT_MODE, FastBase64.decode(parts[2]));
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        } catch (RuntimeException e) {
+            throw new IOException("Stream '" + key + "' is damaged", e);
+        }
+
+        if (mLog == LogMode.ALL || mLog == LogMode.GET) {
+            Log.d(TAG, "openInputStream " + key + " (" + chunks + " chunks)");
+        }
+
+        return new CipherInputStream(new ChunkInputStream(mBackend, streamPrefix(encryptedKey, parts[0]), chunks),
+                cipher);
+    }
+
+
+    private String readStreamHead(String encryptedKey) {
+        ReadWriteLock lock = lockFor(encryptedKey);
+        lock.readLock().lock();
+        try {
+            return mBackend.get(encryptedKey + STREAM_SUFFIX);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    private static String streamPrefix(String encryptedKey, String generation) {
+        return encryptedKey + "{" + generation + "}";
+    }
+
+
+    /**
+     * Points the key to the chunks of a closed stream and removes the chunks of the previous value.
+     */
+    private void commitStream(String encryptedKey, String head) {
+        String generation = head.substring(0, head.indexOf(':'));
+        ReadWriteLock lock = lockFor(encryptedKey);
+        lock.writeLock().lock();
+        try {
+            String previous = mBackend.get(encryptedKey + STREAM_SUFFIX);
+            mBackend.put(encryptedKey + STREAM_SUFFIX, head);
+            if (previous != null) {
+                String[] parts = previous.split(":");
+                if (parts.length == 3 && !parts[0].equals(generation)) {
+                    Map<String, String> removed = new LinkedHashMap<String, String>();
+                    int chunks = chunkCount(parts[1]);
+                    for (int i = 0; i < chunks; i++) {
+                        removed.put(streamPrefix(encryptedKey, parts[0]) + i, null);
+                    }
+                    mBackend.batch(removed);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Get all values of the given keys in one pass.
+     *
+     * @param keys the keys
+     * @return the values of the keys that exist, in the iteration order of keys
+     */
+    public Map<String, String> getAll(Collection<String> keys) {
+        return getAll(keys, false);
+    }
+
+
+    /**
+     * Get all values of the given keys in one pass. Key names are resolved and the cipher texts are
+     * read first, then all values are decrypted, in parallel on the common fork-join pool if
+     * requested and there are enough of them.
+     *
+     * @param keys     the keys
+     * @param parallel decrypt in parallel
+     * @return the values of the keys that exist, in the iteration order of keys
+     */
+    public Map<String, String> getAll(Collection<String> keys, boolean parallel) {
+        Map<String, Object> values = readAll(keys, parallel);
+        Map<String, String> result = new LinkedHashMap<String, String>(values.size() * 4 / 3 + 1);
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            result.put(entry.getKey(), String.valueOf(entry.getValue()));
+        }
+        return result;
+    }
+
+
+    /**
+     * @return the values of the keys that exist, a String or a boxed primitive each
+     */
+    private Map<String, Object> readAll(Collection<String> keys, boolean parallel) {
+        long start = begin();
+
+        List<String> plainKeys = new ArrayList<String>(new LinkedHashSet<String>(keys));
+        final int n = plainKeys.size();
+        String[] encryptedKeys = new String[n];
+        Object[] decrypted = new Object[n];
+        CachedValue[] stored = new CachedValue[n];
+        LruCache<String, CachedValue> values = mValues;
+
+        for (int i = 0; i < n; i++) {
+            encryptedKeys[i] = encryptKey(plainKeys.get(i));
+            Object pending = mWriteBehind == null ? null : mWriteBehind.get(encryptedKeys[i]);
+            if (pending != null) {
+                decrypted[i] = pending instanceof byte[] ? new String((byte[]) pending, UTF_8) : pending;
+                continue;
+            }
+            CachedValue cached = values == null ? null : values.get(encryptedKeys[i]);
+            if (cached != null) {
+                decrypted[i] = cached.value;
+            } else {
+                stored[i] = fetchValue(encryptedKeys[i]);
+            }
+        }
+
+        DecryptTask task = new DecryptTask(stored, decrypted, 0, n);
+        if (parallel && n >= PARALLEL_THRESHOLD) {
+            ForkJoinPool.commonPool().invoke(task);
+        } else {
+            task.compute();
+        }
+        if (mPreviousCrypt != null) {
+            for (int i = 0; i < n; i++) {
+                if (decrypted[i] == null) {
+                    // a value of the previous password is neither cached nor migrated.
+                    stored[i] = null;
+                    decrypted[i] = readPrevious(plainKeys.get(i), encryptedKeys[i]);
+                }
+            }
+        }
+
+        Map<String, Object> result = new LinkedHashMap<String, Object>(n * 4 / 3 + 1);
+        for (int i = 0; i < n; i++) {
+            if (decrypted[i] == null) {
+                continue;
+            }
+            result.put(plainKeys.get(i), decrypted[i]);
+            if (stored[i] == null) {
+                continue;
+            }
+            if (mMigrateOnRead && needsMigration(stored[i].cipherText)) {
+                stored[i] = migrateValue(encryptedKeys[i], stored[i], decrypted[i]);
+            }
+            if (values != null) {
+                cacheLoaded(values, encryptedKeys[i], stored[i].withValue(decrypted[i]), -1);
+            }
+        }
+
+        if (result.size() < n && mLog != LogMode.NONE) {
+            final int missing = n - result.size();
+            Log.e(MISS_TAG, new Supplier<String>() {
+                @Override
+                public String get() {
+                    return "WARNING: " + missing + " of " + n + " keys not found";
+                }
+            });
+        }
+        if (mLog == LogMode.ALL || mLog == LogMode.GET) {
+            Log.d(TAG, "getAll " + result.size() + " values");
+        }
+
+        record(Operation.GET_ALL, start, null, result);
+        return result;
+    }
+
+
+    /**
+     * Get all int values of the given keys in one pass, values that are not an int are left out.
+     *
+     * @param keys the keys
+     * @return the values of the keys that exist
+     */
+    public Map<String, Integer> getAllInts(Collection<String> keys) {
+        Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+        for (Map.Entry<String, Object> entry : readAll(keys, false).entrySet()) {
+            try {
+                result.put(entry.getKey(), toInt(entry.getValue()));
+            } catch (NumberFormatException e) {
+                if (mLog != LogMode.NONE) {
+                    Log.w(TAG, "getAllInts: '" + entry.getKey() + "' is not an int");
+                }
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Get all long values of the given keys in one pass, values that are not a long are left out.
+     *
+     * @param keys the keys
+     * @return the values of the keys that exist
+     */
+    public Map<String, Long> getAllLongs(Collection<String> keys) {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Object> entry : readAll(keys, false).entrySet()) {
+            try {
+                result.put(entry.getKey(), toLong(entry.getValue()));
+            } catch (NumberFormatException e) {
+                if (mLog != LogMode.NONE) {
+                    Log.w(TAG, "getAllLongs: '" + entry.getKey() + "' is not a long");
+                }
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Get all double values of the given keys in one pass, values that are not a double are left
+     * out.
+     *
+     * @param keys the keys
+     * @return the values of the keys that exist
+     */
+    public Map<String, Double> getAllDoubles(Collection<String> keys) {
+        Map<String, Double> result = new LinkedHashMap<String, Double>();
+        for (Map.Entry<String, Object> entry : readAll(keys, false).entrySet()) {
+            try {
+                result.put(entry.getKey(), toDouble(entry.getValue()));
+            } catch (NumberFormatException e) {
+                if (mLog != LogMode.NONE) {
+                    Log.w(TAG, "getAllDoubles: '" + entry.getKey() + "' is not a double");
+                }
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Get all float values of the given keys in one pass, values that are not a float are left out.
+     *
+     * @param keys the keys
+     * @return the values of the keys that exist
+     */
+    public Map<String, Float> getAllFloats(Collection<String> keys) {
+        Map<String, Float> result = new LinkedHashMap<String, Float>();
+        for (Map.Entry<String, Object> entry : readAll(keys, false).entrySet()) {
+            try {
+                result.put(entry.getKey(), toFloat(entry.getValue()));
+            } catch (NumberFormatException e) {
+                if (mLog != LogMode.NONE) {
+                    Log.w(TAG, "getAllFloats: '" + entry.getKey() + "' is not a float");
+                }
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Get all boolean values of the given keys in one pass.
+     *
+     * @param keys the keys
+     * @return the values of the keys that exist
+     */
+    public Map<String, Boolean> getAllBooleans(Collection<String> keys) {
+        Map<String, Boolean> result = new LinkedHashMap<String, Boolean>();
+        for (Map.Entry<String, Object> entry : readAll(keys, false).entrySet()) {
+            result.put(entry.getKey(), toBoolean(entry.getValue()));
+        }
+        return result;
+    }
+
+
+    /**
+     * Decrypts a range of stored values, splitting large ranges for the fork-join pool.
+     */
+    private class DecryptTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final CachedValue[] mStored;
+        private final Object[] mDecrypted;
+        private final int mFrom;
+        private final int mTo;
+
+
+        DecryptTask(CachedValue[] stored, Object[] decrypted, int from, int to) {
+            mStored = stored;
+            mDecrypted = decrypted;
+            mFrom = from;
+            mTo = to;
+        }
+
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom > PARALLEL_THRESHOLD && getPool() != null) {
+                int mid = (mFrom + mTo) >>> 1;
+                invokeAll(new DecryptTask(mStored, mDecrypted, mFrom, mid),
+                        new DecryptTask(mStored, mDecrypted, mid, mTo));
+                return;
+            }
+            for (int i = mFrom; i < mTo; i++) {
+                if (mStored[i] != null) {
+                    mDecrypted[i] = decryptValue(mStored[i]);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Put all entries and flush the node once.
+     *
+     * @param entries the entries, values must be a String, Integer, Long, Double, Float or Boolean
+     * @return true if the node was flushed to the backing store
+     * @see #beginBatch()
+     */
+    public boolean putAll(Map<String, ?> entries) {
+        return beginBatch().putAll(entries).commit();
+    }
+
+
+    /**
+     * Begin a batch of puts that is written on {@link Batch#commit()}.
+     *
+     * @return a new batch
+     */
+    public Batch beginBatch() {
+        return new Batch();
+    }
+
+
+    private boolean commitBatch(Map<String, Object> entries) {
+        long start = begin();
+
+        Map<String, Object> encryptedKeys = new LinkedHashMap<String, Object>(entries.size() * 4 / 3 + 1);
+        beginWrite();
+        try {
+            for (Map.Entry<String, Object> entry : entries.entrySet()) {
+                encryptedKeys.put(encryptKey(entry.getKey()), entry.getValue());
+            }
+            if (mWriteBehind != null) {
+                // pending entries would shadow the batch, so it has to go through the queue.
+                for (Map.Entry<String, Object> entry : encryptedKeys.entrySet()) {
+                    if (!mWriteBehind.offer(entry.getKey(), entry.getValue())) {
+                        writeValue(entry.getKey(), entry.getValue());
+                    }
+                }
+            } else {
+                writeAll(encryptedKeys);
+            }
+        } finally {
+            endWrite();
+        }
+        boolean flushed = flush();
+
+        if (mLog == LogMode.ALL || mLog == LogMode.SET) {
+            Log.d(TAG, "commit " + entries.size() + " entries");
+        }
+
+        record(Operation.PUT_ALL, start, null, entries);
+        return flushed;
+    }
+
+
+    /**
+     * Encrypts and stores all values.
+     *
+     * @param entries encrypted key name to plain value, a String or a boxed primitive
+     */
+    private void writeAll(Map<String, Object> entries) {
+        // encrypt everything before any lock is taken.
+        Map<String, CachedValue> encrypted = new LinkedHashMap<String, CachedValue>(entries.size() * 4 / 3 + 1);
+        boolean[] stripes = new boolean[LOCK_STRIPES];
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            encrypted.put(entry.getKey(), encryptValue(entry.getValue()));
+            stripes[stripeOf(entry.getKey())] = true;
+        }
+
+        // always lock in ascending order, so concurrent batches can't deadlock.
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            if (stripes[i]) mLocks[i].writeLock().lock();
+        }
+        try {
+            Map<String, String> changes = new LinkedHashMap<String, String>(encrypted.size() * 4 / 3 + 1);
+            for (Map.Entry<String, CachedValue> entry : encrypted.entrySet()) {
+                changes.put(entry.getKey(), entry.getValue().cipherText);
+                if (hasLegacyIv(entry.getKey())) {
+                    changes.put(entry.getKey() + TAIL, null);
+                }
+            }
+            mBackend.batch(changes);
+            for (Map.Entry<String, CachedValue> entry : encrypted.entrySet()) {
+                cacheValue(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            for (int i = LOCK_STRIPES - 1; i >= 0; i--) {
+                if (stripes[i]) mLocks[i].writeLock().unlock();
+            }
+        }
+    }
+
+
+    /**
+     * Write all pending write-behind entries and flush the node.
+     *
+     * @return true if the node was flushed to the backing store
+     * @throws RuntimeException if pending entries can't be written, they stay pending
+     */
+    public boolean flush() {
+        if (mWriteBehind != null) {
+            mWriteBehind.drain();
+        }
+        return flushNode();
+    }
+
+
+    private boolean flushNode() {
+        long start = System.nanoTime();
+        try {
+            mBackend.flush();
+            return true;
+        } catch (BackingStoreException e) {
+            mErrors.increment();
+            e.printStackTrace();
+            return false;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            mFlushes.incrementAndGet();
+            mFlushNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = mMaxFlushNanos.get()) && !mMaxFlushNanos.compareAndSet(max, nanos)) {
+                // raced with another flush, compare again.
+            }
+        }
+    }
+
+
+    /**
+     * Makes a write as durable as requested.
+     */
+    private void complete(Durability durability) {
+        switch (durability) {
+            case SYNC:
+                flush();
+                break;
+            case ASYNC:
+                if (mFlushScheduled.compareAndSet(false, true)) {
+                    FLUSHER.execute(mScheduledFlush);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+
+    /**
+     * @return the number of flushes of the backend
+     */
+    public long getFlushCount() {
+        return mFlushes.get();
+    }
+
+
+    /**
+     * @return the total time spent flushing the backend in nanoseconds
+     */
+    public long getFlushNanos() {
+        return mFlushNanos.get();
+    }
+
+
+    /**
+     * @return the longest flush of the backend in nanoseconds
+     */
+    public long getMaxFlushNanos() {
+        return mMaxFlushNanos.get();
+    }
+
+
+    /**
+     * Write all pending entries, stop the write-behind flusher and release the listeners of this
+     * store. Writes after closing are rejected if write-behind is enabled.
+     *
+     * @throws RuntimeException if pending entries can't be written
+     */
+    public void close() {
+        try {
+            if (mWriteBehind != null) {
+                mWriteBehind.close();
+            }
+        } finally {
+            flushNode();
+            disableValueCache();
+        }
+    }
+
+
+    /**
+     * @return the number of writes waiting in the write-behind queue
+     */
+    public int getPendingWrites() {
+        return mWriteBehind == null ? 0 : mWriteBehind.size();
+    }
+
+
+    /**
+     * Receives the batches drained from the write-behind queue.
+     */
+    private void writeBehind(Map<String, Object> entries) {
+        Map<String, Object> values = new LinkedHashMap<String, Object>(entries.size() * 4 / 3 + 1);
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            String name = entry.getKey();
+            if (name.endsWith(ARRAY_SUFFIX)) {
+                @SuppressWarnings("unchecked")
+                List<String> list = (List<String>) entry.getValue();
+                writeArray(name.substring(0, name.length() - ARRAY_SUFFIX.length()), list);
+            } else if (entry.getValue() instanceof byte[]) {
+                byte[] bytes = (byte[]) entry.getValue();
+                writeBytes(name, bytes, 0, bytes.length);
+            } else {
+                values.put(name, entry.getValue());
+            }
+        }
+        writeAll(values);
+        flushNode();
+    }
+
+
+    public void storeArray(String key, List<String> values) {
+        storeArray(key, values, mDurability);
+    }
+
+
+    private void storeArray(String key, List<String> values, Durability durability) {
+        long start = begin();
+
+        beginWrite();
+        try {
+            String encryptedKey = encryptKey(key);
+            if (mWriteBehind == null
+                    || !mWriteBehind.offer(encryptedKey + ARRAY_SUFFIX, new ArrayList<String>(values))) {
+                writeArray(encryptedKey, values);
+            }
+        } finally {
+            endWrite();
+        }
+        complete(durability);
+
+        record(Operation.STORE_ARRAY, start, key, values);
+    }
+
+
+    /**
+     * Encrypts all elements at once and stores them packed, in as few entries as the value length
+     * limit of the backend allows. The first entry holds the sealed list itself, or the number of
+     * chunks if it had to be split.
+     */
+    private void writeArray(String encryptedKey, List<String> values) {
+        String sealed = Envelope.sealList(mCrypt, mCipherSuite, values);
+        int chunkLength = mBackend.maxValueLength();
+        int chunks = (sealed.length() + chunkLength - 1) / chunkLength;
+
+        ReadWriteLock lock = lockFor(encryptedKey);
+        lock.writeLock().lock();
+        try {
+            Map<String, String> changes = new LinkedHashMap<String, String>();
+            int previousChunks = chunkCount(mBackend.get(encryptedKey + ARRAY_SUFFIX));
+            if (chunks == 1) {
+                changes.put(encryptedKey + ARRAY_SUFFIX, sealed);
+            } else {
+                for (int i = 0; i < chunks; i++) {
+                    int from = i * chunkLength;
+                    changes.put(encryptedKey + "[" + i + "]",
+                            sealed.substring(from, Math.min(from + chunkLength, sealed.length())));
+                }
+                changes.put(encryptedKey + ARRAY_SUFFIX, String.valueOf(chunks));
+            }
+            for (int i = chunks == 1 ? 0 : chunks; i < previousChunks; i++) {
+                changes.put(encryptedKey + "[" + i + "]", null);
+            }
+            removeLegacyArray(encryptedKey, changes);
+            mBackend.batch(changes);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * @return the number of chunk entries behind the first entry of a packed list
+     */
+    private static int chunkCount(String head) {
+        if (head == null || Envelope.isSealed(head)) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(head);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+
+    /**
+     * Adds the removal of the per-element entries of the legacy array format to changes. The
+     * caller must hold the write lock of the key.
+     */
+    private void removeLegacyArray(String encryptedKey, Map<String, String> changes) {
+        int size = (int) readLong(encryptedKey + "_size", -1);
+        if (size < 0) {
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            changes.put(encryptedKey + "_" + i, null);
+        }
+        changes.put(encryptedKey + "_size", null);
+        // a legacy value of the same key still needs the IV entry.
+        String value = mBackend.get(encryptedKey);
+        if (value == null || Envelope.isSealed(value)) {
+            changes.put(encryptedKey + TAIL, null);
+        }
+    }
+
+
+    public List<String> restoreArray(String key) {
+        long start = begin();
+
+        String encryptedKey = encryptKey(key);
+        if (mWriteBehind != null) {
+            @SuppressWarnings("unchecked")
+            List<String> pending = (List<String>) mWriteBehind.get(encryptedKey + ARRAY_SUFFIX);
+            if (pending != null) {
+                record(Operation.RESTORE_ARRAY, start, key, pending);
+                return new ArrayList<String>(pending);
+            }
+        }
+
+        List<String> strings = restoreArray(key, encryptedKey, mCrypt, mMigrateOnRead);
+        CryptContext previous = mPreviousCrypt;
+        if (strings == null && previous != null) {
+            // not moved by the rekey yet, or just moved.
+            strings = restoreArray(key, previous.encrypt(key, mIv), previous, false);
+            if (strings == null) {
+                strings = restoreArray(key, encryptedKey, mCrypt, mMigrateOnRead);
+            }
+        }
+        if (strings == null) {
+            strings = new ArrayList<String>();
+        }
+        record(Operation.RESTORE_ARRAY, start, key, strings);
+        return strings;
+    }
+
+
+    /**
+     * @return the elements of the packed or legacy array of the key, or null if it has neither
+     */
+    private List<String> restoreArray(String key, String encryptedKey, CryptContext crypt, boolean migrate) {
+        String sealed;
+        ReadWriteLock lock = lockFor(encryptedKey);
+        lock.readLock().lock();
+        try {
+            sealed = readPackedArray(encryptedKey);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (sealed == null) {
+            return mBackend.get(encryptedKey + "_size") == null
+                    ? null : restoreLegacyArray(key, encryptedKey, crypt, migrate);
+        }
+        List<String> strings = Envelope.openList(crypt, sealed);
+        if (strings == null) {
+            mErrors.increment();
+            if (mLog != LogMode.NONE) {
+                Log.e(TAG, "WARNING: Array '" + key + "' can't be decrypted.\n" +
+                        "Return value: " + "new ArrayList<String>(0)");
+            }
+            strings = new ArrayList<String>();
+        }
+        return strings;
+    }
+
+
+    /**
+     * Reads the sealed list of a packed array, joining its chunks. The caller must hold the read
+     * lock of the key.
+     *
+     * @return the sealed list, or null if the key has no packed array
+     */
+    private String readPackedArray(String encryptedKey) {
+        String head = mBackend.get(encryptedKey + ARRAY_SUFFIX);
+        if (head == null || Envelope.isSealed(head)) {
+            return head;
+        }
+
+        int chunks = chunkCount(head);
+        StringBuilder sealed = new StringBuilder(chunks * mBackend.maxValueLength());
+        for (int i = 0; i < chunks; i++) {
+            String chunk = mBackend.get(encryptedKey + "[" + i + "]");
+            if (chunk == null) {
+                return "";
+            }
+            sealed.append(chunk);
+        }
+        return sealed.toString();
+    }
+
+
+    private List<String> restoreLegacyArray(String key, String encryptedKey, CryptContext crypt, boolean migrate) {
+        List<String> encryptedValues;
+        long iv;
+        int size;
+
+        ReadWriteLock lock = lockFor(encryptedKey);
+        lock.readLock().lock();
+        try {
+            iv = readLong(encryptedKey + TAIL, 0);
+            size = (int) readLong(encryptedKey + "_size", 0);
+
+            encryptedValues = new ArrayList<String>(size);
+            for (int i = 0; i < size; i++) {
+                String encryptedValue = mBackend.get(encryptedKey + "_" + i);
+                if (encryptedValue == null) {
+                    if (mLog != LogMode.NONE) {
+                        Log.e(TAG, "WARNING: Key '" + key + "_" + i + "' not found.\n" +
+                                "Return value: " + "new ArrayList<String>(0)");
+                    }
+                    return new ArrayList<String>();
+                }
+                encryptedValues.add(encryptedValue);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<String> strings = new ArrayList<String>(encryptedValues.size());
+        boolean complete = true;
+        for (String encryptedValue : encryptedValues) {
+            String value = Envelope.openLegacy(crypt, encryptedValue, iv);
+            if (value == null) {
+                complete = false;
+                value = "";
+            }
+            strings.add(value);
+        }
+
+        if (migrate && complete && size > 0) {
+            migrateArray(encryptedKey, encryptedValues, strings);
+        }
+        return strings;
+    }
+
+
+    /**
+     * Rewrites a legacy array packed, unless it was changed since it was read.
+     */
+    private void migrateArray(String encryptedKey, List<String> legacy, List<String> values) {
+        beginWrite();
+        ReadWriteLock lock = lockFor(encryptedKey);
+        lock.writeLock().lock();
+        try {
+            if (mPreviousCrypt != null
+                    || mBackend.get(encryptedKey + ARRAY_SUFFIX) != null
+                    || readLong(encryptedKey + "_size", -1) != legacy.size()
+                    || !legacy.get(0).equals(mBackend.get(encryptedKey + "_0"))) {
+                return;
+            }
+            // the write lock is reentrant.
+            writeArray(encryptedKey, values);
+        } finally {
+            lock.writeLock().unlock();
+            endWrite();
+        }
+    }
+
+
+    /**
+     * Prepare a migration that rewrites all values, packed arrays and legacy arrays of the backend
+     * in the single-entry format and the suite of this store, see {@link Migration}.
+     *
+     * @return the migration, not started yet
+     */
+    public Migration newMigration() {
+        return new Migration(this);
+    }
+
+
+    /**
+     * Rewrites one entry of the backend if it is in the legacy format or sealed with another
+     * suite. Streams keep their format, entries that are no values are ignored.
+     *
+     * @param name the name of the entry in the backend
+     */
+    Migration.Outcome migrateEntry(String name) {
+        if (mPreviousCrypt != null) {
+            // a rekey seals all values with the suite of this store anyway.
+            return Migration.Outcome.CURRENT;
+        }
+        if (name.endsWith("_size") && name.indexOf('_') == name.length() - 5) {
+            String encryptedKey = name.substring(0, name.length() - 5);
+            if (restoreLegacyArray(encryptedKey, encryptedKey, mCrypt, true).isEmpty()) {
+                return Migration.Outcome.CURRENT;
+            }
+            return mBackend.get(encryptedKey + ARRAY_SUFFIX) != null
+                    ? Migration.Outcome.MIGRATED : Migration.Outcome.FAILED;
+        } else if (name.endsWith(ARRAY_SUFFIX)) {
+            return migratePackedArray(name.substring(0, name.length() - ARRAY_SUFFIX.length()));
+        } else if (name.endsWith(STREAM_SUFFIX) || !isValueEntry(name)) {
+            return Migration.Outcome.CURRENT;
+        }
+
+        CachedValue stored = fetchValue(name);
+        if (stored == null || !needsMigration(stored.cipherText)) {
+            return Migration.Outcome.CURRENT;
+        }
+        Object value = decryptValue(stored);
+        if (value == null) {
+            return Migration.Outcome.FAILED;
+        }
+        return migrateValue(name, stored, value) != stored ? Migration.Outcome.MIGRATED : Migration.Outcome.CURRENT;
+    }
+
+
+    private Migration.Outcome migratePackedArray(String encryptedKey) {
+        String sealed;
+        ReadWriteLock lock = lockFor(encryptedKey);
+        lock.readLock().lock();
+        try {
+            sealed = readPackedArray(encryptedKey);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (sealed == null || Envelope.suiteOf(sealed) == mCipherSuite) {
+            return Migration.Outcome.CURRENT;
+        }
+        List<String> values = Envelope.openList(mCrypt, sealed);
+        if (values == null) {
+            mErrors.increment();
+            return Migration.Outcome.FAILED;
+        }
+
+        beginWrite();
+        lock.writeLock().lock();
+        try {
+            if (mPreviousCrypt != null || !sealed.equals(readPackedArray(encryptedKey))) {
+                // rewritten or rekeyed in the meantime.
+                return Migration.Outcome.CURRENT;
+            }
+            // the write lock is reentrant.
+            writeArray(encryptedKey, values);
+            return Migration.Outcome.MIGRATED;
+        } finally {
+            lock.writeLock().unlock();
+            endWrite();
+        }
+    }
+
+
+    /**
+     * Change the password while the store stays in use. Writes are held back for a moment while
+     * the key is switched, from then on all names and values are encrypted with the new password.
+     * The returned migration moves the existing entries to the new password in parallel batches,
+     * until it is done reads fall back to the entries of the previous password.
+     * <p>
+     * A marker entry is flushed before the switch and removed when all entries are moved. If the
+     * process ends before, call this method again with the same password on a store built with the
+     * previous password, or {@link #resumeRekey(String)} on one built with the new password, and
+     * start the returned migration. Entries not moved yet can't be read until then.
+     *
+     * @param newPassword the new password
+     * @return the migration that moves the entries, not started yet
+     * @throws IllegalArgumentException if the new password is the current one
+     * @throws IllegalStateException    if a rekey to another password is not finished, or the marker
+     *                                  can't be flushed
+     */
+    public synchronized Migration rekey(String newPassword) {
+        CryptContext crypt = new CryptContext(newPassword);
+        String verifier = crypt.encrypt(REKEY_KEY, mIv);
+        String current = mCrypt.encrypt(REKEY_KEY, mIv);
+        String marker = mBackend.get(REKEY_KEY);
+        if (verifier.equals(current)) {
+            if (mPreviousCrypt != null) {
+                // the migration of this rekey was stopped.
+                return Migration.rekey(this, verifier);
+            }
+            if (marker != null && marker.startsWith(verifier + ":")) {
+                throw new IllegalStateException("A rekey to this password is not finished, see resumeRekey(String)");
+            }
+            throw new IllegalArgumentException("The new password is the current one");
+        }
+        if (mPreviousCrypt != null || (marker != null && !marker.equals(verifier + ":" + current))) {
+            throw new IllegalStateException("A rekey to another password is not finished");
+        }
+
+        mBackend.put(REKEY_KEY, verifier + ":" + current);
+        if (!flushNode()) {
+            throw new IllegalStateException("The rekey marker can't be flushed");
+        }
+        switchKey(crypt, mCrypt);
+
+        if (mLog != LogMode.NONE) {
+            Log.i(TAG, "Rekeying " + mBackend.name() + "...");
+        }
+        return Migration.rekey(this, verifier);
+    }
+
+
+    /**
+     * Resume a rekey to the password of this store that was not finished, see
+     * {@link #rekey(String)}.
+     *
+     * @param previousPassword the password before the rekey
+     * @return the migration that moves the remaining entries, not started yet
+     * @throws IllegalStateException if no rekey from the given password to the current one is
+     *                               pending
+     */
+    public synchronized Migration resumeRekey(String previousPassword) {
+        CryptContext previous = new CryptContext(previousPassword);
+        String current = mCrypt.encrypt(REKEY_KEY, mIv);
+        if (!(current + ":" + previous.encrypt(REKEY_KEY, mIv)).equals(mBackend.get(REKEY_KEY))) {
+            throw new IllegalStateException("No rekey from this password to the current one is pending");
+        }
+        if (mPreviousCrypt == null) {
+            mPreviousCrypt = previous;
+        }
+        return Migration.rekey(this, current);
+    }
+
+
+    /**
+     * @return true while the entries of a rekey are not all moved, also after a restart
+     */
+    public boolean isRekeyPending() {
+        return mBackend.get(REKEY_KEY) != null;
+    }
+
+
+    /**
+     * Ends a rekey once its migration has moved all entries.
+     */
+    synchronized void finishRekey() {
+        mBackend.remove(REKEY_KEY);
+        mPreviousCrypt = null;
+        if (mLog != LogMode.NONE) {
+            Log.i(TAG, "Rekeyed " + mBackend.name());
+        }
+    }
+
+
+    /**
+     * Moves all entries of a key to the current password if the given entry of the backend is named
+     * with the previous one. Entries named with the current password and those that are no values
+     * are ignored.
+     *
+     * @param name the name of the entry in the backend
+     */
+    Migration.Outcome rekeyEntry(String name) {
+        CryptContext previous = mPreviousCrypt;
+        if (previous == null || !isValueEntry(name)) {
+            return Migration.Outcome.CURRENT;
+        }
+        String encryptedKey = name;
+        if (name.endsWith("_size")) {
+            encryptedKey = name.substring(0, name.length() - 5);
+        } else if (name.endsWith(ARRAY_SUFFIX) || name.endsWith(STREAM_SUFFIX)) {
+            encryptedKey = name.substring(0, name.length() - 2);
+        }
+        String key = plainKey(previous, encryptedKey);
+        return key == null ? Migration.Outcome.CURRENT : moveKey(key, previous, encryptedKey);
+    }
+
+
+    /**
+     * @return the key a name was encrypted from with the given key, or null if it was not
+     */
+    private String plainKey(CryptContext crypt, String encryptedKey) {
+        String key = crypt.tryDecrypt(encryptedKey, mIv);
+        return key != null && encryptedKey.equals(crypt.encrypt(key, mIv)) ? key : null;
+    }
+
+
+    /**
+     * Moves the value, the array and the streamed value of a key from its name under another
+     * password to its current name. Under the write lock of the current name, each entry is
+     * written there before the old entries are removed, so a crash leaves at worst both, and an
+     * entry written there in the meantime wins over the old one. Old names are only ever changed
+     * here, so they are read without their lock.
+     *
+     * @param key     the key
+     * @param from    the key of the other password
+     * @param oldName the name of the key under the other password
+     */
+    private Migration.Outcome moveKey(String key, CryptContext from, String oldName) {
+        beginWrite();
+        try {
+            String encryptedKey = encryptKey(key);
+            ReadWriteLock lock = lockFor(encryptedKey);
+            lock.writeLock().lock();
+            try {
+                Migration.Outcome outcome = moveValue(from, oldName, encryptedKey);
+                outcome = worse(outcome, moveArray(from, oldName, encryptedKey));
+                outcome = worse(outcome, moveStream(from, oldName, encryptedKey));
+                if (mBackend.get(oldName) == null && mBackend.get(oldName + "_size") == null
+                        && mBackend.get(oldName + TAIL) != null) {
+                    mBackend.remove(oldName + TAIL);
+                }
+                return outcome;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            endWrite();
+        }
+    }
+
+
+    private static Migration.Outcome worse(Migration.Outcome a, Migration.Outcome b) {
+        return a.compareTo(b) >= 0 ? a : b;
+    }
+
+
+    private Migration.Outcome moveValue(CryptContext from, String oldName, String encryptedKey) {
+        String cipherText = mBackend.get(oldName);
+        if (cipherText == null) {
+            return Migration.Outcome.CURRENT;
+        }
+        if (mBackend.get(encryptedKey) == null) {
+            String sealed;
+            if (Envelope.isSealed(cipherText)) {
+                sealed = Envelope.reseal(from, mCrypt, mCipherSuite, cipherText);
+            } else {
+                String text = Envelope.openLegacy(from, cipherText, readLong(oldName + TAIL, 0));
+                sealed = text == null ? null : Envelope.sealText(mCrypt, mCipherSuite, text);
+            }
+            if (sealed == null) {
+                mErrors.increment();
+                return Migration.Outcome.FAILED;
+            }
+            storeValue(encryptedKey, new CachedValue(sealed, 0, null));
+        }
+        mBackend.remove(oldName);
+        return Migration.Outcome.MIGRATED;
+    }
+
+
+    private Migration.Outcome moveArray(CryptContext from, String oldName, String encryptedKey) {
+        Map<String, String> removed = new LinkedHashMap<String, String>();
+        List<String> values;
+        String sealed = readPackedArray(oldName);
+        if (sealed != null) {
+            int chunks = chunkCount(mBackend.get(oldName + ARRAY_SUFFIX));
+            for (int i = 0; i < chunks; i++) {
+                removed.put(oldName + "[" + i + "]", null);
+            }
+            removed.put(oldName + ARRAY_SUFFIX, null);
+            values = Envelope.openList(from, sealed);
+        } else {
+            int size = (int) readLong(oldName + "_size", -1);
+            if (size < 0) {
+                return Migration.Outcome.CURRENT;
+            }
+            long iv = readLong(oldName + TAIL, 0);
+            values = new ArrayList<String>(size);
+            for (int i = 0; i < size && values != null; i++) {
+                String encryptedValue = mBackend.get(oldName + "_" + i);
+                String value = encryptedValue == null ? null : Envelope.openLegacy(from, encryptedValue, iv);
+                if (value == null) {
+                    values = null;
+                } else {
+                    values.add(value);
+                    removed.put(oldName + "_" + i, null);
+                }
+            }
+            removed.put(oldName + "_size", null);
+        }
+        if (values == null) {
+            mErrors.increment();
+            return Migration.Outcome.FAILED;
+        }
+
+        if (mBackend.get(encryptedKey + ARRAY_SUFFIX) == null && mBackend.get(encryptedKey + "_size") == null) {
+            // the write lock is reentrant.
+            writeArray(encryptedKey, values);
+        }
+        mBackend.batch(removed);
+        return Migration.Outcome.MIGRATED;
+    }
+
+
+    private Migration.Outcome moveStream(CryptContext from, String oldName, String encryptedKey) {
+        String head = mBackend.get(oldName + STREAM_SUFFIX);
+        if (head == null) {
+            return Migration.Outcome.CURRENT;
+        }
+        String[] parts = head.split(":");
+        if (parts.length != 3) {
+            mErrors.increment();
+            return Migration.Outcome.FAILED;
+        }
+        int chunks = chunkCount(parts[1]);
+
+        if (mBackend.get(encryptedKey + STREAM_SUFFIX) == null) {
+            byte[] iv = mCrypt.newIv();
+            String generation = streamGeneration(iv);
+            String prefix = streamPrefix(encryptedKey, generation);
+            try {
+                int written = copyStream(from, streamPrefix(oldName, parts[0]), chunks, parts[2], prefix, iv);
+                // the write lock is reentrant.
+                commitStream(encryptedKey, generation + ":" + written + ":" + FastBase64.encodeToString(iv));
+            } catch (IOException e) {
+                mErrors.increment();
+                e.printStackTrace();
+                Map<String, String> partial = new LinkedHashMap<String, String>();
+                for (int i = 0; mBackend.get(prefix + i) != null; i++) {
+                    partial.put(prefix + i, null);
+                }
+                mBackend.batch(partial);
+                return Migration.Outcome.FAILED;
+            }
+        }
+
+        Map<String, String> removed = new LinkedHashMap<String, String>();
+        removed.put(oldName + STREAM_SUFFIX, null);
+        for (int i = 0; i < chunks; i++) {
+            removed.put(streamPrefix(oldName, parts[0]) + i, null);
+        }
+        mBackend.batch(removed);
+        return Migration.Outcome.MIGRATED;
+    }
+
+
+    /**
+     * Decrypts the chunks of a streamed value with one key and encrypts them into new chunks with
+     * the current key.
+     *
+     * @return the number of new chunks
+     */
+    private int copyStream(CryptContext from, String fromPrefix, int chunks, String fromIv, String prefix, byte[] iv)
+            throws IOException {
+        Cipher decrypt;
+        Cipher encrypt;
+        try {
+            decrypt = from.newCipher(Cipher.DECRYPT_MODE, FastBase64.decode(fromIv));
+            encrypt = mCrypt.newCipher(Cipher.ENCRYPT_MODE, iv);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        } catch (RuntimeException e) {
+            throw new IOException("Stream '" + fromPrefix + "' is damaged", e);
+        }
+
+        final int[] written = new int[1];
+        InputStream in = new CipherInputStream(new ChunkInputStream(mBackend, fromPrefix, chunks), decrypt);
+        OutputStream out = new CipherOutputStream(new ChunkOutputStream(mBackend, prefix) {
+            @Override
+            protected void onClose(int count) {
+                written[0] = count;
+            }
+        }, encrypt);
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        out.close();
+        return written[0];
+    }
+
+
+    public String getEncryptedContent() {
+        String result = null;
+
+        try {
+            String[] keys = mBackend.keys();
+            for (String key : keys) {
+                Object value = mBackend.get(key);
+                result += key + " : " + value + "\n";
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "getEncryptedContent ");
+        }
+        return result;
+    }
+
+
+    public String getEncryptedKey(String key) {
+        return encryptKey(key);
+    }
+
+
+    /**
+     * Count the stored values. IVs and the chunks of arrays and streams are not counted, see
+     * {@link #countBackendEntries()}.
+     *
+     * @return the number of values, or -1 if the backend failed
+     */
+    public int countEntries() {
+        try {
+            int count = 0;
+            for (String name : mBackend.keys()) {
+                if (isValueEntry(name)) {
+                    count++;
+                }
+            }
+            return count;
+        } catch (BackingStoreException e) {
+            mErrors.increment();
+            e.printStackTrace();
+        }
+        return -1;
+    }
+
+
+    /**
+     * Count all entries of the backend, including IVs and chunks.
+     *
+     * @return the number of entries, or -1 if the backend failed
+     */
+    public int countBackendEntries() {
+        try {
+            return mBackend.keys().length;
+        } catch (BackingStoreException e) {
+            mErrors.increment();
+            e.printStackTrace();
+        }
+        return -1;
+    }
+
+
+    /**
+     * @return false for the store IV, IV entries of legacy values, legacy array elements and the
+     * chunks of arrays and streams
+     */
+    static boolean isValueEntry(String name) {
+        if (name.equals(IV_KEY)) {
+            return false;
+        }
+        // '_', '[' and '{' are never part of an encrypted name.
+        if (name.indexOf('_') >= 0) {
+            return name.endsWith("_size");
+        }
+        if (name.endsWith(ARRAY_SUFFIX) || name.endsWith(STREAM_SUFFIX)) {
+            return true;
+        }
+        if (name.indexOf('[') >= 0 || name.indexOf('{') >= 0) {
+            return false;
+        }
+        return !(name.length() % 4 == 1 && name.endsWith(TAIL));
+    }
+
+
+    /**
+     * Delete all.
+     */
+    public void deleteAll() {
+        if (mWriteBehind != null) {
+            mWriteBehind.discard();
+        }
+        try {
+            mBackend.clear();
+            LruCache<String, CachedValue> values = mValues;
+            if (values != null) {
+                values.clear();
+            }
+        } catch (BackingStoreException e) {
+            mErrors.increment();
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * Init or increment launch counter.
+     */
+    public void initOrIncrementLaunchCounter() {
+        beginWrite();
+        try {
+            String encryptedKey = encryptKey(AesPrefs.AES_APP_LAUNCHES);
+            ReadWriteLock lock = lockFor(encryptedKey);
+            lock.writeLock().lock();
+            try {
+                Object launches = readLocked(AesPrefs.AES_APP_LAUNCHES, encryptedKey);
+                if (launches == null) {
+                    // first launch insert 0
+                    writeLocked(encryptedKey, 0);
+                } else {
+                    writeLocked(encryptedKey, toInt(launches) + 1);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (NumberFormatException e) {
+            mErrors.increment();
+            e.printStackTrace();
+        } finally {
+            endWrite();
+        }
+    }
+
+
+    /**
+     * Gets launch counter.
+     *
+     * @return the launch counter
+     */
+    public int getLaunchCounter() {
+        return getInt(AesPrefs.AES_APP_LAUNCHES, 0);
+    }
+
+
+    /**
+     * Init installation date.
+     */
+    public void initInstallationDate() {
+        beginWrite();
+        try {
+            String encryptedKey = encryptKey(AesPrefs.AES_INST_DATE);
+            ReadWriteLock lock = lockFor(encryptedKey);
+            lock.writeLock().lock();
+            try {
+                if (readLocked(AesPrefs.AES_INST_DATE, encryptedKey) == null) {
+                    writeLocked(encryptedKey, System.currentTimeMillis());
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            endWrite();
+        }
+    }
+
+
+    /**
+     * Reads a value for a read-modify-write. The caller is inside {@link #beginWrite()} and holds
+     * the write lock of the key, so nothing here takes a lock or waits. A rekey moves entries under
+     * the lock of their current name, so the entry of the previous password can't change meanwhile.
+     *
+     * @return the value, a String or a boxed primitive, or null if the key does not exist
+     */
+    private Object readLocked(String key, String encryptedKey) {
+        if (mWriteBehind != null) {
+            Object pending = mWriteBehind.get(encryptedKey);
+            if (pending != null) {
+                return pending instanceof byte[] ? new String((byte[]) pending, UTF_8) : pending;
+            }
+        }
+        CachedValue stored = loadStored(encryptedKey);
+        Object value = stored == null ? null : decryptValue(stored);
+        CryptContext previous = mPreviousCrypt;
+        if (value == null && previous != null) {
+            stored = loadStored(previous.encrypt(key, mIv));
+            value = stored == null ? null : decryptValue(previous, stored);
+        }
+        return value;
+    }
+
+
+    /**
+     * Writes a value for a read-modify-write, see {@link #readLocked(String, String)}. A pending
+     * write-behind entry of the key is replaced, else the value is stored right away instead of
+     * waiting for room in the queue.
+     */
+    private void writeLocked(String encryptedKey, Object value) {
+        if (mWriteBehind == null || !mWriteBehind.replace(encryptedKey, value)) {
+            storeValue(encryptedKey, encryptValue(value));
+        }
+    }
+
+
+    /**
+     * Gets installation date.
+     *
+     * @return the installation date
+     */
+    public long getInstallationDate() {
+        return getLong(AesPrefs.AES_INST_DATE, 0L);
+    }
+
+
+    /**
+     * Print installation date.
+     */
+    public void printInstallationDate() {
+        Object installationDate = read(AesPrefs.AES_INST_DATE);
+        Log.i(TAG, "Installation date: " + TimeFormatUtils.formatTime(installationDate == null ? 0L : toLong
+                (installationDate), TimeFormatUtils.DEFAULT_FORMAT));
+    }
+
+
+    /**
+     * Reset execution time. The latency histograms are kept, see {@link #resetLatencyStats()}.
+     */
+    public void resetExecutionTime() {
+        mExecutionNanos.reset();
+    }
+
+
+    /**
+     * Gets execution time, the sum of the latencies of all operations.
+     *
+     * @return the execution time in milliseconds
+     */
+    public long getExecutionTime() {
+        return TimeUnit.NANOSECONDS.toMillis(mExecutionNanos.sum());
+    }
+
+
+    void addExecutionTime(long duration) {
+        mExecutionNanos.add(TimeUnit.MILLISECONDS.toNanos(duration));
+    }
+
+
+    /**
+     * Print execution time.
+     */
+    public void printExecutionTime() {
+        Log.i(TAG, "Execution time: " + String.valueOf(NumberFormatUtils.decimalPlaces((double) mExecutionNanos.sum()
+                / 1000000000, 3) + " sec."));
+    }
+
+
+    /**
+     * Gets a snapshot of the latencies of one operation.
+     *
+     * @param operation the operation
+     * @return the count and latencies in nanoseconds
+     */
+    public LatencyStats getLatencyStats(Operation operation) {
+        return mLatencies[operation.ordinal()].snapshot();
+    }
+
+
+    /**
+     * Gets a snapshot of the latencies of all operations.
+     *
+     * @return the count and latencies in nanoseconds of every operation, in the order of
+     * {@link Operation}
+     */
+    public Map<Operation, LatencyStats> getLatencyStats() {
+        Map<Operation, LatencyStats> stats = new EnumMap<Operation, LatencyStats>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, getLatencyStats(operation));
+        }
+        return Collections.unmodifiableMap(stats);
+    }
+
+
+    /**
+     * Clear the latency histograms of all operations.
+     */
+    public void resetLatencyStats() {
+        for (LatencyHistogram histogram : mLatencies) {
+            histogram.reset();
+        }
+    }
+
+
+    /**
+     * Warn about a key that was not found, the message is only built if the level and rate limit
+     * of {@link #MISS_TAG} let it through.
+     */
+    private void logMiss(final String key, final Object defaultValue) {
+        if (mLog == LogMode.NONE) {
+            return;
+        }
+        Log.e(MISS_TAG, new Supplier<String>() {
+            @Override
+            public String get() {
+                String returned;
+                if (defaultValue instanceof byte[]) {
+                    returned = ((byte[]) defaultValue).length + " bytes";
+                } else if ("".equals(defaultValue)) {
+                    returned = "\"\"";
+                } else {
+                    returned = String.valueOf(defaultValue);
+                }
+                return "WARNING: Key '" + key + "' not found (return: " + returned + ")";
+            }
+        });
+    }
+
+
+    /**
+     * @return the start of an operation, to be passed to record
+     */
+    private static long begin() {
+        Tracer.beginOperation();
+        return System.nanoTime();
+    }
+
+
+    private void record(Operation operation, long start, String key, Object value) {
+        long nanos = System.nanoTime() - start;
+        mLatencies[operation.ordinal()].record(nanos);
+        mExecutionNanos.add(nanos);
+        Tracer.endOperation(operation.name(), key, value);
+    }
+
+
+    private void record(Operation operation, long start, String key, int size) {
+        long nanos = System.nanoTime() - start;
+        mLatencies[operation.ordinal()].record(nanos);
+        mExecutionNanos.add(nanos);
+        Tracer.endOperation(operation.name(), key, size);
+    }
+
+
+    /**
+     * Gets the number of key name lookups served from the cache.
+     *
+     * @return the hit count
+     */
+    public long getKeyNameCacheHits() {
+        return mKeyNames.hitCount();
+    }
+
+
+    /**
+     * Gets the number of key names that had to be encrypted.
+     *
+     * @return the miss count
+     */
+    public long getKeyNameCacheMisses() {
+        return mKeyNames.missCount();
+    }
+
+
+    /**
+     * Gets the number of values that could not be decrypted or converted and of failed backend
+     * calls.
+     *
+     * @return the error count
+     */
+    public long getErrorCount() {
+        return mErrors.sum();
+    }
+
+
+    /**
+     * Drop all cached values and key names, they are loaded again on the next access.
+     */
+    public void clearCaches() {
+        LruCache<String, CachedValue> values = mValues;
+        if (values != null) {
+            values.clear();
+        }
+        mKeyNames.clear();
+    }
+
+
+    /**
+     * Reset the execution time, the latency histograms, the error and flush counters and the
+     * statistics of both caches.
+     */
+    public void resetStatistics() {
+        resetExecutionTime();
+        resetLatencyStats();
+        mErrors.reset();
+        mFlushes.set(0);
+        mFlushNanos.set(0);
+        mMaxFlushNanos.set(0);
+        mKeyNames.resetStats();
+        LruCache<String, CachedValue> values = mValues;
+        if (values != null) {
+            values.resetStats();
+        }
+    }
+
+
+    /**
+     * Register an {@link AesStoreMXBean} for this store with the platform MBean server, named
+     * {@code com.pepperonas.jxaesprefs:type=AesStore,name=<backend>,id=<n>}.
+     *
+     * @return the name of the MBean, or null if it could not be registered
+     */
+    public synchronized ObjectName registerMBean() {
+        if (mMBeanName != null) {
+            return mMBeanName;
+        }
+        try {
+            ObjectName name = new ObjectName("com.pepperonas.jxaesprefs:type=AesStore,name="
+                    + ObjectName.quote(mBackend.name()) + ",id=" + MBEAN_IDS.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new AesStoreMonitor(this), name);
+            mMBeanName = name;
+        } catch (JMException e) {
+            mErrors.increment();
+            e.printStackTrace();
+        }
+        return mMBeanName;
+    }
+
+
+    /**
+     * Remove the MBean registered by {@link #registerMBean()}, if any.
+     */
+    public synchronized void unregisterMBean() {
+        if (mMBeanName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mMBeanName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        mMBeanName = null;
+    }
+
+
+    int getKeyNameCacheEntries() {
+        return mKeyNames.size();
+    }
+
+
+    /**
+     * @return the number of cached values, or 0 if the value cache is disabled
+     */
+    int getValueCacheEntries() {
+        LruCache<String, CachedValue> values = mValues;
+        return values == null ? 0 : values.size();
+    }
+
+
+    private static class CachedValue {
+
+        final String cipherText;
+        final long iv;
+        final Object value;
+
+
+        CachedValue(String cipherText, long iv, Object value) {
+            this.cipherText = cipherText;
+            this.iv = iv;
+            this.value = value;
+        }
+
+
+        CachedValue withValue(Object value) {
+            return new CachedValue(cipherText, iv, value);
+        }
+    }
+
+
+    /**
+     * The writes of the store with a durability of their own.
+     */
+    public class DurableView {
+
+        private final Durability mDurability;
+
+
+        private DurableView(Durability durability) {
+            mDurability = durability;
+        }
+
+
+        public Durability getDurability() {
+            return mDurability;
+        }
+
+
+        public void put(String key, String value) {
+            AesStore.this.put(key, value, mDurability);
+        }
+
+
+        public void putInt(String key, int value) {
+            AesStore.this.putInt(key, value, mDurability);
+        }
+
+
+        public void putLong(String key, long value) {
+            AesStore.this.putLong(key, value, mDurability);
+        }
+
+
+        public void putDouble(String key, double value) {
+            AesStore.this.putDouble(key, value, mDurability);
+        }
+
+
+        public void putFloat(String key, float value) {
+            AesStore.this.putFloat(key, value, mDurability);
+        }
+
+
+        public void putBoolean(String key, boolean value) {
+            AesStore.this.putBoolean(key, value, mDurability);
+        }
+
+
+        public void putBytes(String key, byte[] value) {
+            AesStore.this.putBytes(key, value, 0, value.length, mDurability);
+        }
+
+
+        public void putBytes(String key, ByteBuffer value) {
+            AesStore.this.putBytes(key, value, mDurability);
+        }
+
+
+        public void putBytes(String key, byte[] value, int offset, int length) {
+            AesStore.this.putBytes(key, value, offset, length, mDurability);
+        }
+
+
+        public void storeArray(String key, List<String> values) {
+            AesStore.this.storeArray(key, values, mDurability);
+        }
+
+
+        /**
+         * @see AesStore#openOutputStream(String)
+         */
+        public OutputStream openOutputStream(String key) throws IOException {
+            return AesStore.this.openOutputStream(key, mDurability);
+        }
+    }
+
+
+    /**
+     * Collects puts that are encrypted in one pass and written with a single flush of the node.
+     * A batch is not thread-safe and can be reused after {@link #commit()}.
+     */
+    public class Batch {
+
+        private final Map<String, Object> mEntries = new LinkedHashMap<String, Object>();
+
+
+        private Batch() {
+        }
+
+
+        public Batch put(String key, String value) {
+            return add(key, value);
+        }
+
+
+        public Batch putInt(String key, int value) {
+            return add(key, value);
+        }
+
+
+        public Batch putLong(String key, long value) {
+            return add(key, value);
+        }
+
+
+        public Batch putDouble(String key, double value) {
+            return add(key, value);
+        }
+
+
+        public Batch putFloat(String key, float value) {
+            return add(key, value);
+        }
+
+
+        public Batch putBoolean(String key, boolean value) {
+            return add(key, value);
+        }
+
+
+        /**
+         * @param entries the entries, values must be a String, Integer, Long, Double, Float or Boolean
+         * @throws IllegalArgumentException if a value has an unsupported type
+         */
+        public Batch putAll(Map<String, ?> entries) {
+            for (Map.Entry<String, ?> entry : entries.entrySet()) {
+                Object value = entry.getValue();
+                if (value instanceof String || value instanceof Integer || value instanceof Long
+                        || value instanceof Double || value instanceof Float || value instanceof Boolean) {
+                    add(entry.getKey(), value);
+                } else {
+                    throw new IllegalArgumentException("Unsupported value for key '" + entry.getKey() + "': "
+                            + (value == null ? "null" : value.getClass().getName()));
+                }
+            }
+            return this;
+        }
+
+
+        private Batch add(String key, Object value) {
+            if (key == null || value == null) {
+                throw new NullPointerException("key and value must not be null");
+            }
+            mEntries.put(key, value);
+            return this;
+        }
+
+
+        /**
+         * @return the number of pending entries
+         */
+        public int size() {
+            return mEntries.size();
+        }
+
+
+        /**
+         * Encrypt and write all pending entries, then flush the node.
+         *
+         * @return true if the node was flushed to the backing store
+         */
+        public boolean commit() {
+            try {
+                return commitBatch(mEntries);
+            } finally {
+                mEntries.clear();
+            }
+        }
+    }
+
+
+    /**
+     * Builds an {@link AesStore}.
+     */
+    public static class Builder {
+
+        private final Preferences mNode;
+        private final PrefsBackend mBackend;
+        private final String mPassword;
+
+        private LogMode mLogMode = LogMode.DEFAULT;
+        private Durability mDurability = Durability.NONE;
+        private int mKeyNameCacheSize = DEFAULT_KEY_NAME_CACHE_SIZE;
+        private int mValueCacheSize = 0;
+        private int mWriteBehindCapacity = 0;
+        private Backpressure mBackpressure = Backpressure.BLOCK;
+        private long mWriteBehindDelay = DEFAULT_WRITE_BEHIND_DELAY;
+        private boolean mMigrateOnRead = true;
+        private CipherSuite mCipherSuite = CipherSuite.CBC;
+        private int mShards = 0;
+
+
+        /**
+         * Store the values in the user node of the package of the given class.
+         *
+         * @param clazz    the class
+         * @param password the password
+         */
+        public Builder(Class<?> clazz, String password) {
+            this(Preferences.userNodeForPackage(clazz), password);
+        }
+
+
+        /**
+         * Store the values in the given node.
+         *
+         * @param node     the node
+         * @param password the password
+         */
+        public Builder(Preferences node, String password) {
+            this(node, new PreferencesBackend(node), password);
+        }
+
+
+        /**
+         * Store the values in the given backend.
+         *
+         * @param backend  the backend
+         * @param password the password
+         */
+        public Builder(PrefsBackend backend, String password) {
+            this(null, backend, password);
+        }
+
+
+        private Builder(Preferences node, PrefsBackend backend, String password) {
+            if (backend == null || password == null) {
+                throw new NullPointerException("backend and password must not be null");
+            }
+            mNode = node;
+            mBackend = backend;
+            mPassword = password;
+        }
+
+
+        public Builder logMode(LogMode logMode) {
+            mLogMode = logMode;
+            return this;
+        }
+
+
+        /**
+         * @param durability the durability of writes, {@link Durability#NONE} by default
+         */
+        public Builder durability(Durability durability) {
+            if (durability == null) {
+                throw new NullPointerException("durability must not be null");
+            }
+            mDurability = durability;
+            return this;
+        }
+
+
+        /**
+         * @param size the maximum number of cached encrypted key names
+         */
+        public Builder keyNameCacheSize(int size) {
+            mKeyNameCacheSize = size;
+            return this;
+        }
+
+
+        /**
+         * @param size the maximum number of cached decrypted values, 0 disables the value cache
+         */
+        public Builder valueCache(int size) {
+            mValueCacheSize = size;
+            return this;
+        }
+
+
+        /**
+         * Let writers return right after enqueuing, a background thread encrypts and writes the
+         * values in batches. Call {@link AesStore#flush()} or {@link AesStore#close()} to drain.
+         *
+         * @param capacity     the maximum number of distinct pending keys
+         * @param backpressure what a put does when the queue is full
+         */
+        public Builder writeBehind(int capacity, Backpressure backpressure) {
+            mWriteBehindCapacity = capacity;
+            mBackpressure = backpressure;
+            return this;
+        }
+
+
+        /**
+         * @param millis how long the flusher waits for more writes to coalesce before it writes a batch
+         */
+        public Builder writeBehindDelay(long millis) {
+            mWriteBehindDelay = millis;
+            return this;
+        }
+
+
+        /**
+         * @param migrate rewrite values of the legacy two-entry format in the single-entry format
+         *                when they are read, enabled by default
+         */
+        public Builder migrateOnRead(boolean migrate) {
+            mMigrateOnRead = migrate;
+            return this;
+        }
+
+
+        /**
+         * Values of every suite are read, so the suite can be changed at any time. With
+         * migrateOnRead values of other suites are rewritten with this one when they are read.
+         * Key names and streams are always encrypted with CBC, see
+         * {@link AesStore#openOutputStream(String)}.
+         *
+         * @param suite the suite new values are sealed with, {@link CipherSuite#CBC} by default
+         */
+        public Builder cipherSuite(CipherSuite suite) {
+            if (suite == null) {
+                throw new NullPointerException("suite must not be null");
+            }
+            mCipherSuite = suite;
+            return this;
+        }
+
+
+        /**
+         * Spread the entries over child nodes of the node, so each flush only rewrites small
+         * nodes. Must not be changed once entries were written.
+         *
+         * @param shards the number of child nodes, 0 keeps all entries in the node
+         * @throws IllegalStateException if the builder was created with a backend
+         * @see ShardedPreferencesBackend
+         */
+        public Builder shards(int shards) {
+            if (mNode == null) {
+                throw new IllegalStateException("Sharding needs a preferences node");
+            }
+            mShards = shards;
+            return this;
+        }
+
+
+        public AesStore build() {
+            return new AesStore(this);
+        }
+
+
+        private PrefsBackend backend() {
+            return mShards > 0 ? new ShardedPreferencesBackend(mNode, mShards) : mBackend;
+        }
+    }
+
+}
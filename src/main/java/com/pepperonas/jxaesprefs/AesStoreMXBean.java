@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs;
+
+import java.util.Map;
+
+/**
+ * The management interface of an {@link AesStore}, see {@link AesStore#registerMBean()}. All
+ * latencies are in nanoseconds, the maps are keyed by {@link AesStore.Operation} name.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+public interface AesStoreMXBean {
+
+    String getBackendName();
+
+    /**
+     * @return the number of all operations, misses included
+     */
+    long getOperationCount();
+
+    /**
+     * @return the number of lookups that found no value
+     */
+    long getMissCount();
+
+    /**
+     * @return the number of values that could not be decrypted or converted and of failed backend
+     * calls
+     */
+    long getErrorCount();
+
+    /**
+     * @return the average latency of all operations
+     */
+    double getAverageLatency();
+
+    Map<String, Long> getOperationCounts();
+
+    Map<String, Double> getMeanLatencies();
+
+    Map<String, Long> getP50Latencies();
+
+    Map<String, Long> getP99Latencies();
+
+    Map<String, Long> getMaxLatencies();
+
+    /**
+     * @return the time spent in all operations in milliseconds, see {@link AesStore#getExecutionTime()}
+     */
+    long getExecutionTime();
+
+    /**
+     * @return the number of stored values, without IVs and chunks
+     */
+    int getEntryCount();
+
+    /**
+     * @return the number of entries in the backend
+     */
+    int getBackendEntryCount();
+
+    /**
+     * @return the number of cached values, 0 while the value cache is disabled
+     */
+    int getValueCacheSize();
+
+    /**
+     * @return the maximum number of cached values, 0 while the value cache is disabled
+     */
+    int getValueCacheMaxSize();
+
+    double getValueCacheHitRatio();
+
+    int getKeyNameCacheSize();
+
+    double getKeyNameCacheHitRatio();
+
+    long getFlushCount();
+
+    long getMaxFlushLatency();
+
+    /**
+     * Drop all cached values and key names.
+     */
+    void clearCaches();
+
+    /**
+     * Write all pending changes to the backing store.
+     *
+     * @return true if the backend was flushed
+     */
+    boolean flush();
+
+    /**
+     * Reset all counters, histograms and cache statistics.
+     */
+    void resetStatistics();
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs;
+
+import com.pepperonas.jxaesprefs.utils.CacheStats;
+import com.pepperonas.jxaesprefs.utils.LatencyStats;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The {@link AesStoreMXBean} of one store, it reads everything from the store on each call.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+class AesStoreMonitor implements AesStoreMXBean {
+
+    private final AesStore mStore;
+
+
+    AesStoreMonitor(AesStore store) {
+        mStore = store;
+    }
+
+
+    @Override
+    public String getBackendName() {
+        return mStore.backend().name();
+    }
+
+
+    @Override
+    public long getOperationCount() {
+        long count = 0;
+        for (LatencyStats stats : mStore.getLatencyStats().values()) {
+            count += stats.count();
+        }
+        return count;
+    }
+
+
+    @Override
+    public long getMissCount() {
+        return mStore.getLatencyStats(AesStore.Operation.MISS).count();
+    }
+
+
+    @Override
+    public long getErrorCount() {
+        return mStore.getErrorCount();
+    }
+
+
+    @Override
+    public double getAverageLatency() {
+        long count = 0;
+        long total = 0;
+        for (LatencyStats stats : mStore.getLatencyStats().values()) {
+            count += stats.count();
+            total += stats.totalTime();
+        }
+        return count == 0 ? 0.0 : (double) total / count;
+    }
+
+
+    @Override
+    public Map<String, Long> getOperationCounts() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (Map.Entry<AesStore.Operation, LatencyStats> entry : mStore.getLatencyStats().entrySet()) {
+            counts.put(entry.getKey().name(), entry.getValue().count());
+        }
+        return counts;
+    }
+
+
+    @Override
+    public Map<String, Double> getMeanLatencies() {
+        Map<String, Double> means = new LinkedHashMap<String, Double>();
+        for (Map.Entry<AesStore.Operation, LatencyStats> entry : mStore.getLatencyStats().entrySet()) {
+            means.put(entry.getKey().name(), entry.getValue().mean());
+        }
+        return means;
+    }
+
+
+    @Override
+    public Map<String, Long> getP50Latencies() {
+        Map<String, Long> latencies = new LinkedHashMap<String, Long>();
+        for (Map.Entry<AesStore.Operation, LatencyStats> entry : mStore.getLatencyStats().entrySet()) {
+            latencies.put(entry.getKey().name(), entry.getValue().p50());
+        }
+        return latencies;
+    }
+
+
+    @Override
+    public Map<String, Long> getP99Latencies() {
+        Map<String, Long> latencies = new LinkedHashMap<String, Long>();
+        for (Map.Entry<AesStore.Operation, LatencyStats> entry : mStore.getLatencyStats().entrySet()) {
+            latencies.put(entry.getKey().name(), entry.getValue().p99());
+        }
+        return latencies;
+    }
+
+
+    @Override
+    public Map<String, Long> getMaxLatencies() {
+        Map<String, Long> latencies = new LinkedHashMap<String, Long>();
+        for (Map.Entry<AesStore.Operation, LatencyStats> entry : mStore.getLatencyStats().entrySet()) {
+            latencies.put(entry.getKey().name(), entry.getValue().max());
+        }
+        return latencies;
+    }
+
+
+    @Override
+    public long getExecutionTime() {
+        return mStore.getExecutionTime();
+    }
+
+
+    @Override
+    public int getEntryCount() {
+        return mStore.countEntries();
+    }
+
+
+    @Override
+    public int getBackendEntryCount() {
+        return mStore.countBackendEntries();
+    }
+
+
+    @Override
+    public int getValueCacheSize() {
+        return mStore.getValueCacheEntries();
+    }
+
+
+    @Override
+    public int getValueCacheMaxSize() {
+        return mStore.getValueCacheSize();
+    }
+
+
+    @Override
+    public double getValueCacheHitRatio() {
+        CacheStats stats = mStore.getValueCacheStats();
+        return stats == null ? 0.0 : stats.hitRate();
+    }
+
+
+    @Override
+    public int getKeyNameCacheSize() {
+        return mStore.getKeyNameCacheEntries();
+    }
+
+
+    @Override
+    public double getKeyNameCacheHitRatio() {
+        long hits = mStore.getKeyNameCacheHits();
+        long requests = hits + mStore.getKeyNameCacheMisses();
+        return requests == 0 ? 1.0 : (double) hits / requests;
+    }
+
+
+    @Override
+    public long getFlushCount() {
+        return mStore.getFlushCount();
+    }
+
+
+    @Override
+    public long getMaxFlushLatency() {
+        return mStore.getMaxFlushNanos();
+    }
+
+
+    @Override
+    public void clearCaches() {
+        mStore.clearCaches();
+    }
+
+
+    @Override
+    public boolean flush() {
+        return mStore.flush();
+    }
+
+
+    @Override
+    public void resetStatistics() {
+        mStore.resetStatistics();
+    }
+
+}
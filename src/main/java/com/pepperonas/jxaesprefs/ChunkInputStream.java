@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs;
+
+import com.pepperonas.jxaesprefs.backend.PrefsBackend;
+import com.pepperonas.jxaesprefs.utils.FastBase64;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the entries written by a {@link ChunkOutputStream} back as one stream, loading one chunk
+ * at a time when it is needed.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+class ChunkInputStream extends InputStream {
+
+    private final PrefsBackend mBackend;
+    private final String mPrefix;
+    private final int mChunks;
+    private int mNext;
+    /**
+     * The current chunk, reused as long as the chunks fit.
+     */
+    private byte[] mBuffer;
+    private int mLength;
+    private int mPosition;
+
+
+    /**
+     * @param backend the backend
+     * @param prefix  the name of the entries, followed by the number of the chunk
+     * @param chunks  the number of chunks
+     */
+    ChunkInputStream(PrefsBackend backend, String prefix, int chunks) {
+        mBackend = backend;
+        mPrefix = prefix;
+        mChunks = chunks;
+    }
+
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return mBuffer[mPosition++] & 0xff;
+    }
+
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, mLength - mPosition);
+        System.arraycopy(mBuffer, mPosition, b, off, n);
+        mPosition += n;
+        return n;
+    }
+
+
+    @Override
+    public int available() {
+        return mLength - mPosition;
+    }
+
+
+    /**
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        while (mPosition == mLength) {
+            if (mNext == mChunks) {
+                return false;
+            }
+            String chunk = mBackend.get(mPrefix + mNext);
+            if (chunk == null) {
+                throw new IOException("Chunk " + mNext + " of " + mChunks + " is missing, the value was "
+                        + "overwritten or removed");
+            }
+            try {
+                int length = FastBase64.decodedLength(chunk, 0, chunk.length());
+                if (mBuffer == null || mBuffer.length < length) {
+                    mBuffer = new byte[length];
+                }
+                mLength = FastBase64.decode(chunk, 0, chunk.length(), mBuffer, 0);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Chunk " + mNext + " is damaged", e);
+            }
+            mPosition = 0;
+            mNext++;
+        }
+        return true;
+    }
+
+}
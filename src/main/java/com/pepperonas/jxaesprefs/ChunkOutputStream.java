@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs;
+
+import com.pepperonas.jxaesprefs.backend.PrefsBackend;
+import com.pepperonas.jxaesprefs.utils.FastBase64;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a stream of bytes Base64 encoded into numbered entries of a backend, each one as long as
+ * its {@link PrefsBackend#maxValueLength()} allows. Only one chunk is buffered at a time.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+abstract class ChunkOutputStream extends OutputStream {
+
+    private final PrefsBackend mBackend;
+    private final String mPrefix;
+    /**
+     * One chunk, sized so that its Base64 encoding fits into a value.
+     */
+    private final byte[] mBuffer;
+    /**
+     * The encoding of one chunk, reused for every chunk.
+     */
+    private final char[] mChars;
+    private int mCount;
+    private int mChunks;
+    private boolean mClosed;
+
+
+    /**
+     * @param backend the backend
+     * @param prefix  the name of the entries, followed by the number of the chunk
+     */
+    ChunkOutputStream(PrefsBackend backend, String prefix) {
+        mBackend = backend;
+        mPrefix = prefix;
+        mBuffer = new byte[backend.maxValueLength() / 4 * 3];
+        mChars = new char[FastBase64.encodedLength(mBuffer.length)];
+    }
+
+
+    /**
+     * Called once after the last chunk was written.
+     *
+     * @param chunks the number of chunks
+     */
+    protected abstract void onClose(int chunks) throws IOException;
+
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        mBuffer[mCount++] = (byte) b;
+        if (mCount == mBuffer.length) {
+            writeChunk();
+        }
+    }
+
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (len > 0) {
+            int n = Math.min(len, mBuffer.length - mCount);
+            System.arraycopy(b, off, mBuffer, mCount, n);
+            mCount += n;
+            off += n;
+            len -= n;
+            if (mCount == mBuffer.length) {
+                writeChunk();
+            }
+        }
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        if (mCount > 0) {
+            writeChunk();
+        }
+        onClose(mChunks);
+    }
+
+
+    private void writeChunk() {
+        int length = FastBase64.encode(mBuffer, 0, mCount, mChars, 0);
+        mBackend.put(mPrefix + mChunks, new String(mChars, 0, length));
+        mChunks++;
+        mCount = 0;
+    }
+
+
+    private void ensureOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+}
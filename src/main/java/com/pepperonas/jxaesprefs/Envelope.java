@@ -0,0 +1,456 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs;
+
+import com.pepperonas.jxaesprefs.jfr.Tracer;
+import com.pepperonas.jxaesprefs.utils.CipherSuite;
+import com.pepperonas.jxaesprefs.utils.CryptContext;
+import com.pepperonas.jxaesprefs.utils.FastBase64;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The single-entry storage format of a value.
+ * <p>
+ * A sealed value is {@code '$'} followed by the Base64 encoding of
+ * <pre>
+ * [version:1][type:1][iv:16][cipher text]                  version 1, AES-CBC
+ * [version:2][suite:1][type:1][nonce][cipher text]         version 2, any {@link CipherSuite}
+ * </pre>
+ * CBC values are always written in version 1, so they stay readable by earlier releases. GCM
+ * authenticates the version 2 header with the cipher text, so a value whose suite or type was
+ * changed fails to open instead of being decoded as another type. Legacy
+ * values are plain Base64 cipher text with the IV in a second entry, they can never start
+ * with {@code '$'}.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+final class Envelope {
+
+    static final char MARKER = '$';
+
+    static final byte VERSION_1 = 1;
+    static final byte VERSION_2 = 2;
+
+    /**
+     * UTF-8 text.
+     */
+    static final byte TYPE_TEXT = 0;
+
+    /**
+     * Raw bytes.
+     */
+    static final byte TYPE_BYTES = 1;
+
+    /**
+     * Primitives, fixed width and big-endian.
+     */
+    static final byte TYPE_INT = 2;
+    static final byte TYPE_LONG = 3;
+    static final byte TYPE_FLOAT = 4;
+    static final byte TYPE_DOUBLE = 5;
+    static final byte TYPE_BOOLEAN = 6;
+
+    /**
+     * A list of Strings, each element prefixed by its UTF-8 length or -1 for null.
+     */
+    static final byte TYPE_LIST = 7;
+
+    private static final int HEADER_LENGTH = 2 + CryptContext.IV_LENGTH;
+
+    /**
+     * The length of a version 2 header without the nonce.
+     */
+    private static final int HEADER_2_LENGTH = 3;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+
+    private Envelope() {
+    }
+
+
+    /**
+     * @param stored a stored value
+     * @return true if the value is in the single-entry format
+     */
+    static boolean isSealed(String stored) {
+        return !stored.isEmpty() && stored.charAt(0) == MARKER;
+    }
+
+
+    /**
+     * Encrypt a text with a fresh IV.
+     *
+     * @return the value to store, or null if the cipher failed
+     */
+    static String sealText(CryptContext crypt, CipherSuite suite, String text) {
+        byte[] plain = text.getBytes(UTF_8);
+        return seal(crypt, suite, TYPE_TEXT, plain, 0, plain.length);
+    }
+
+
+    /**
+     * Encrypt a String, or a boxed int, long, float, double or boolean in its fixed-width binary
+     * form, with a fresh IV.
+     *
+     * @return the value to store, or null if the cipher failed
+     * @throws IllegalArgumentException if the value has an unsupported type
+     */
+    static String sealValue(CryptContext crypt, CipherSuite suite, Object value) {
+        if (value instanceof String) {
+            return sealText(crypt, suite, (String) value);
+        }
+
+        byte[] plain = new byte[8];
+        if (value instanceof Integer) {
+            putInt(plain, 0, (Integer) value);
+            return seal(crypt, suite, TYPE_INT, plain, 0, 4);
+        } else if (value instanceof Long) {
+            putLong(plain, 0, (Long) value);
+            return seal(crypt, suite, TYPE_LONG, plain, 0, 8);
+        } else if (value instanceof Float) {
+            putInt(plain, 0, Float.floatToIntBits((Float) value));
+            return seal(crypt, suite, TYPE_FLOAT, plain, 0, 4);
+        } else if (value instanceof Double) {
+            putLong(plain, 0, Double.doubleToLongBits((Double) value));
+            return seal(crypt, suite, TYPE_DOUBLE, plain, 0, 8);
+        } else if (value instanceof Boolean) {
+            plain[0] = (byte) ((Boolean) value ? 1 : 0);
+            return seal(crypt, suite, TYPE_BOOLEAN, plain, 0, 1);
+        }
+        throw new IllegalArgumentException("Unsupported value: " + (value == null ? "null" : value.getClass()
+                .getName()));
+    }
+
+
+    /**
+     * Encrypt all elements of a list at once, with a fresh IV.
+     *
+     * @return the value to store, or null if the cipher failed
+     */
+    static String sealList(CryptContext crypt, CipherSuite suite, List<String> values) {
+        byte[][] elements = new byte[values.size()][];
+        int length = 4;
+        for (int i = 0; i < elements.length; i++) {
+            String value = values.get(i);
+            elements[i] = value == null ? null : value.getBytes(UTF_8);
+            length += 4 + (value == null ? 0 : elements[i].length);
+        }
+
+        byte[] plain = new byte[length];
+        putInt(plain, 0, elements.length);
+        int offset = 4;
+        for (byte[] element : elements) {
+            if (element == null) {
+                putInt(plain, offset, -1);
+                offset += 4;
+            } else {
+                putInt(plain, offset, element.length);
+                System.arraycopy(element, 0, plain, offset + 4, element.length);
+                offset += 4 + element.length;
+            }
+        }
+        return seal(crypt, suite, TYPE_LIST, plain, 0, plain.length);
+    }
+
+
+    static String seal(CryptContext crypt, CipherSuite suite, byte type, byte[] plain, int offset, int length) {
+        byte[] nonce = crypt.newNonce(suite);
+        byte[] header = suite == CipherSuite.CBC
+                ? new byte[]{VERSION_1, type}
+                : new byte[]{VERSION_2, suite.getId(), type};
+        long phase = Tracer.startPhase();
+        byte[] cipherText = crypt.encrypt(suite, nonce, aadOf(suite, header), plain, offset, length);
+        Tracer.endPhase(Tracer.Phase.CIPHER, phase);
+        if (cipherText == null) {
+            return null;
+        }
+
+        byte[] sealed = new byte[header.length + nonce.length + cipherText.length];
+        System.arraycopy(header, 0, sealed, 0, header.length);
+        System.arraycopy(nonce, 0, sealed, header.length, nonce.length);
+        System.arraycopy(cipherText, 0, sealed, sealed.length - cipherText.length, cipherText.length);
+        phase = Tracer.startPhase();
+        String stored = MARKER + FastBase64.encodeToString(sealed);
+        Tracer.endPhase(Tracer.Phase.BASE64, phase);
+        return stored;
+    }
+
+
+    /**
+     * Decrypt a sealed value and seal it again with the given suite, keeping its type.
+     *
+     * @return the value to store, or null if the value is damaged or was not sealed by this
+     * password
+     */
+    static String reseal(CryptContext crypt, CipherSuite suite, String stored) {
+        return reseal(crypt, crypt, suite, stored);
+    }
+
+
+    /**
+     * Decrypt a sealed value with one key and seal it with another, keeping its type.
+     *
+     * @return the value to store, or null if the value is damaged or was not sealed by the
+     * password of from
+     */
+    static String reseal(CryptContext from, CryptContext to, CipherSuite suite, String stored) {
+        byte[] sealed = decode(stored);
+        if (sealed == null) {
+            return null;
+        }
+        byte[] plain = decrypt(from, sealed);
+        return plain == null ? null : seal(to, suite, typeOf(sealed), plain, 0, plain.length);
+    }
+
+
+    /**
+     * Decrypt a sealed value into a String (for text and bytes) or a boxed primitive.
+     *
+     * @return the value, or null if the value is damaged or was not sealed by this password
+     */
+    static Object openValue(CryptContext crypt, String stored) {
+        byte[] sealed = decode(stored);
+        if (sealed == null) {
+            return null;
+        }
+        byte[] plain = decrypt(crypt, sealed);
+        return plain == null ? null : toValue(typeOf(sealed), plain);
+    }
+
+
+    /**
+     * Decrypt a sealed value into bytes, primitives are returned as their UTF-8 encoded text.
+     *
+     * @return the bytes, or null if the value is damaged or was not sealed by this password
+     */
+    static byte[] openBytes(CryptContext crypt, String stored) {
+        byte[] sealed = decode(stored);
+        if (sealed == null) {
+            return null;
+        }
+        byte[] plain = decrypt(crypt, sealed);
+        byte type = typeOf(sealed);
+        if (plain == null || type == TYPE_TEXT || type == TYPE_BYTES) {
+            return plain;
+        }
+        Object value = toValue(type, plain);
+        return value == null ? null : String.valueOf(value).getBytes(UTF_8);
+    }
+
+
+    /**
+     * Decrypt a sealed list.
+     *
+     * @return the list, or null if the value is damaged, not a list or was not sealed by this
+     * password
+     */
+    static List<String> openList(CryptContext crypt, String stored) {
+        byte[] sealed = decode(stored);
+        if (sealed == null || typeOf(sealed) != TYPE_LIST) {
+            return null;
+        }
+        byte[] plain = decrypt(crypt, sealed);
+        if (plain == null || plain.length < 4) {
+            return null;
+        }
+
+        int size = getInt(plain, 0);
+        if (size < 0 || size > (plain.length - 4) / 4) {
+            return null;
+        }
+        List<String> values = new ArrayList<String>(size);
+        int offset = 4;
+        for (int i = 0; i < size; i++) {
+            if (offset + 4 > plain.length) {
+                return null;
+            }
+            int length = getInt(plain, offset);
+            offset += 4;
+            if (length == -1) {
+                values.add(null);
+                continue;
+            }
+            if (length < 0 || length > plain.length - offset) {
+                return null;
+            }
+            values.add(new String(plain, offset, length, UTF_8));
+            offset += length;
+        }
+        return values;
+    }
+
+
+    private static Object toValue(byte type, byte[] plain) {
+        switch (type) {
+            case TYPE_TEXT:
+            case TYPE_BYTES:
+                return new String(plain, UTF_8);
+            case TYPE_INT:
+                return plain.length == 4 ? getInt(plain, 0) : null;
+            case TYPE_LONG:
+                return plain.length == 8 ? getLong(plain, 0) : null;
+            case TYPE_FLOAT:
+                return plain.length == 4 ? Float.intBitsToFloat(getInt(plain, 0)) : null;
+            case TYPE_DOUBLE:
+                return plain.length == 8 ? Double.longBitsToDouble(getLong(plain, 0)) : null;
+            case TYPE_BOOLEAN:
+                return plain.length == 1 ? plain[0] != 0 : null;
+            default:
+                return null;
+        }
+    }
+
+
+    /**
+     * @return the decoded header and cipher text, or null if the value is damaged
+     */
+    private static byte[] decode(String stored) {
+        if (!isSealed(stored)) {
+            return null;
+        }
+        byte[] sealed;
+        long phase = Tracer.startPhase();
+        try {
+            sealed = FastBase64.decode(stored, 1, stored.length() - 1);
+        } catch (IllegalArgumentException e) {
+            return null;
+        } finally {
+            Tracer.endPhase(Tracer.Phase.BASE64, phase);
+        }
+        if (sealed.length < 2) {
+            return null;
+        } else if (sealed[0] == VERSION_1) {
+            return sealed.length < HEADER_LENGTH ? null : sealed;
+        } else if (sealed[0] == VERSION_2) {
+            CipherSuite suite = CipherSuite.forId(sealed[1]);
+            return suite == null || sealed.length < HEADER_2_LENGTH + suite.getNonceLength() ? null : sealed;
+        }
+        return null;
+    }
+
+
+    /**
+     * @param stored a stored value
+     * @return the suite the value was sealed with, or null if it is in the legacy format or
+     * damaged
+     */
+    static CipherSuite suiteOf(String stored) {
+        if (!isSealed(stored) || stored.length() < 5) {
+            return null;
+        }
+        byte[] header = new byte[3];
+        try {
+            // the first 4 characters hold the first 3 bytes
+            FastBase64.decode(stored, 1, 4, header, 0);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (header[0] == VERSION_1) {
+            return CipherSuite.CBC;
+        }
+        return header[0] == VERSION_2 ? CipherSuite.forId(header[1]) : null;
+    }
+
+
+    private static byte typeOf(byte[] sealed) {
+        return sealed[0] == VERSION_1 ? sealed[1] : sealed[2];
+    }
+
+
+    private static byte[] decrypt(CryptContext crypt, byte[] sealed) {
+        CipherSuite suite;
+        int offset;
+        if (sealed[0] == VERSION_1) {
+            suite = CipherSuite.CBC;
+            offset = 2;
+        } else {
+            suite = CipherSuite.forId(sealed[1]);
+            offset = HEADER_2_LENGTH;
+        }
+        byte[] header = new byte[offset];
+        System.arraycopy(sealed, 0, header, 0, offset);
+        byte[] nonce = new byte[suite.getNonceLength()];
+        System.arraycopy(sealed, offset, nonce, 0, nonce.length);
+        offset += nonce.length;
+        long phase = Tracer.startPhase();
+        byte[] plain = crypt.decrypt(suite, nonce, aadOf(suite, header), sealed, offset, sealed.length - offset);
+        Tracer.endPhase(Tracer.Phase.CIPHER, phase);
+        return plain;
+    }
+
+
+    /**
+     * @return the header as additional authenticated data if the suite supports it, else null
+     */
+    private static byte[] aadOf(CipherSuite suite, byte[] header) {
+        return suite == CipherSuite.GCM ? header : null;
+    }
+
+
+    private static void putInt(byte[] b, int offset, int v) {
+        b[offset] = (byte) (v >>> 24);
+        b[offset + 1] = (byte) (v >>> 16);
+        b[offset + 2] = (byte) (v >>> 8);
+        b[offset + 3] = (byte) v;
+    }
+
+
+    private static void putLong(byte[] b, int offset, long v) {
+        putInt(b, offset, (int) (v >>> 32));
+        putInt(b, offset + 4, (int) v);
+    }
+
+
+    private static int getInt(byte[] b, int offset) {
+        return (b[offset] & 0xff) << 24 | (b[offset + 1] & 0xff) << 16 | (b[offset + 2] & 0xff) << 8
+                | (b[offset + 3] & 0xff);
+    }
+
+
+    private static long getLong(byte[] b, int offset) {
+        return (long) getInt(b, offset) << 32 | (getInt(b, offset + 4) & 0xffffffffL);
+    }
+
+
+    /**
+     * Decrypt a value of the legacy two-entry format.
+     *
+     * @param cipherText the Base64 encoded cipher text
+     * @param iv         the IV from the second entry
+     * @return the text, or null if the value is damaged or was not encrypted with this password
+     */
+    static String openLegacy(CryptContext crypt, String cipherText, long iv) {
+        byte[] encrypted;
+        long phase = Tracer.startPhase();
+        try {
+            encrypted = FastBase64.decodeDefault(cipherText);
+        } catch (IllegalArgumentException e) {
+            return null;
+        } finally {
+            Tracer.endPhase(Tracer.Phase.BASE64, phase);
+        }
+        phase = Tracer.startPhase();
+        byte[] plain = crypt.decrypt(CryptContext.ivBytes(iv), encrypted, 0, encrypted.length);
+        Tracer.endPhase(Tracer.Phase.CIPHER, phase);
+        return plain == null ? null : new String(plain, UTF_8);
+    }
+
+}
@@ -0,0 +1,463 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs;
+
+import com.pepperonas.jxaesprefs.backend.PrefsBackend;
+import com.pepperonas.jxaesprefs.utils.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.prefs.BackingStoreException;
+
+/**
+ * Rewrites the entries of a store in the current format and cipher suite in the background,
+ * while the store stays in use.
+ * <p>
+ * The entry names are enumerated once, sorted and processed in batches on a fork-join pool of
+ * their own. Each entry is rewritten under the lock of its key and only if it is unchanged, so
+ * concurrent writes always win, and readers keep reading both formats. After each batch the last
+ * name is saved as a checkpoint in the backend, a migration started later with the same suite
+ * resumes after it. The checkpoint is removed when the migration is done.
+ * <p>
+ * The rate is limited to a number of entries per second, counting every entry that is read,
+ * whether it needs to be rewritten or not.
+ * <p>
+ * A migration returned by {@link AesStore#rekey(String)} moves the entries to the new password
+ * instead, with a checkpoint of its own, and finishes the rekey when it is done. If any entry
+ * could not be moved it ends {@link State#FAILED} instead: the rekey stays pending, reads keep
+ * falling back to the previous password, and the checkpoint stays before the first failure so
+ * {@link AesStore#resumeRekey(String)} retries from there.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+public class Migration {
+
+    private static final String TAG = "Migration";
+
+    /**
+     * The entry holding the checkpoint, '_' is never part of an encrypted name.
+     */
+    static final String CHECKPOINT_KEY = "aes_migration";
+
+    static final String REKEY_CHECKPOINT_KEY = "aes_rekey_checkpoint";
+
+    private static final int DEFAULT_BATCH_SIZE = 256;
+
+    /**
+     * Below this many entries a task migrates in its own thread.
+     */
+    private static final int SPLIT_THRESHOLD = 16;
+
+    /**
+     * Batches are cut so a throttled migration checks the budget about this often per second.
+     */
+    private static final int BATCHES_PER_SECOND = 10;
+
+
+    public enum State {
+        NEW, RUNNING, STOPPED, DONE, FAILED
+    }
+
+
+    /**
+     * The result of migrating one entry.
+     */
+    enum Outcome {
+        /**
+         * Already in the target format, or nothing to migrate.
+         */
+        CURRENT,
+        MIGRATED,
+        /**
+         * Can't be decrypted.
+         */
+        FAILED
+    }
+
+
+    private final AesStore mStore;
+    private final PrefsBackend mBackend;
+    private final boolean mRekey;
+    private final String mCheckpointKey;
+
+    /**
+     * Saved with the checkpoint, a run only resumes from a checkpoint with the same tag.
+     */
+    private final String mCheckpointTag;
+
+    private int mOpsPerSecond = 0;
+    private int mParallelism = Runtime.getRuntime().availableProcessors();
+    private int mBatchSize = DEFAULT_BATCH_SIZE;
+
+    private volatile State mState = State.NEW;
+    private volatile boolean mStopRequested;
+    private volatile Thread mThread;
+    private final CountDownLatch mFinished = new CountDownLatch(1);
+
+    private volatile long mTotal;
+    private volatile long mResumed;
+    private final LongAdder mScanned = new LongAdder();
+    private final LongAdder mMigrated = new LongAdder();
+    private final LongAdder mFailed = new LongAdder();
+    private volatile long mStartNanos;
+    private volatile long mEndNanos;
+
+
+    Migration(AesStore store) {
+        this(store, false, CHECKPOINT_KEY, String.valueOf(store.getCipherSuite().getId()));
+    }
+
+
+    private Migration(AesStore store, boolean rekey, String checkpointKey, String checkpointTag) {
+        mStore = store;
+        mBackend = store.backend();
+        mRekey = rekey;
+        mCheckpointKey = checkpointKey;
+        mCheckpointTag = checkpointTag;
+    }
+
+
+    /**
+     * @param verifier identifies the new password
+     * @return a migration that moves the entries of a rekey
+     */
+    static Migration rekey(AesStore store, String verifier) {
+        return new Migration(store, true, REKEY_CHECKPOINT_KEY, verifier);
+    }
+
+
+    /**
+     * @param opsPerSecond the entries read per second at most, 0 for no limit (the default)
+     */
+    public Migration opsPerSecond(int opsPerSecond) {
+        requireNew();
+        if (opsPerSecond < 0) {
+            throw new IllegalArgumentException("opsPerSecond < 0");
+        }
+        mOpsPerSecond = opsPerSecond;
+        return this;
+    }
+
+
+    /**
+     * @param parallelism the number of threads, the number of processors by default
+     */
+    public Migration parallelism(int parallelism) {
+        requireNew();
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism <= 0");
+        }
+        mParallelism = parallelism;
+        return this;
+    }
+
+
+    /**
+     * @param batchSize the entries between two checkpoints, 256 by default
+     */
+    public Migration batchSize(int batchSize) {
+        requireNew();
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize <= 0");
+        }
+        mBatchSize = batchSize;
+        return this;
+    }
+
+
+    /**
+     * Start the migration on a background thread.
+     *
+     * @return this migration
+     * @throws IllegalStateException if it was started before
+     */
+    public synchronized Migration start() {
+        requireNew();
+        mState = State.RUNNING;
+        mStartNanos = System.nanoTime();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                migrate();
+            }
+        }, mRekey ? "JxAesPrefs-Rekey" : "JxAesPrefs-Migration");
+        thread.setDaemon(true);
+        mThread = thread;
+        thread.start();
+        return this;
+    }
+
+
+    /**
+     * Stop after the current batch. The checkpoint is kept, so a new migration resumes from it.
+     */
+    public void stop() {
+        mStopRequested = true;
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+
+    /**
+     * Wait until the migration is done, stopped or failed.
+     *
+     * @return false if the time elapsed first
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return mFinished.await(timeout, unit);
+    }
+
+
+    public State getState() {
+        return mState;
+    }
+
+
+    /**
+     * @return the entries this run has to read, without those before the checkpoint
+     */
+    public long getTotalCount() {
+        return mTotal;
+    }
+
+
+    /**
+     * @return the entries skipped because an earlier run got past them
+     */
+    public long getResumedCount() {
+        return mResumed;
+    }
+
+
+    public long getScannedCount() {
+        return mScanned.sum();
+    }
+
+
+    public long getMigratedCount() {
+        return mMigrated.sum();
+    }
+
+
+    /**
+     * @return the entries that could not be decrypted or moved, they are left as they are
+     */
+    public long getFailedCount() {
+        return mFailed.sum();
+    }
+
+
+    /**
+     * @return the fraction of entries read, between 0 and 1
+     */
+    public double getProgress() {
+        long total = mTotal;
+        if (mState == State.DONE) {
+            return 1.0;
+        }
+        return total == 0 ? 0.0 : (double) getScannedCount() / total;
+    }
+
+
+    /**
+     * @return the time since the start in ms
+     */
+    public long getElapsedTime() {
+        long start = mStartNanos;
+        if (start == 0) {
+            return 0;
+        }
+        long end = mEndNanos;
+        return TimeUnit.NANOSECONDS.toMillis((end == 0 ? System.nanoTime() : end) - start);
+    }
+
+
+    /**
+     * @return the entries read per second since the start
+     */
+    public double getRate() {
+        long elapsed = getElapsedTime();
+        return elapsed == 0 ? 0.0 : getScannedCount() * 1000.0 / elapsed;
+    }
+
+
+    @Override
+    public String toString() {
+        return TAG + "{state=" + mState + ", scanned=" + getScannedCount() + "/" + mTotal + ", migrated="
+                + getMigratedCount() + ", failed=" + getFailedCount() + ", rate=" + Math.round(getRate()) + "/s}";
+    }
+
+
+    private void requireNew() {
+        if (mState != State.NEW) {
+            throw new IllegalStateException(TAG + " already started");
+        }
+    }
+
+
+    private void migrate() {
+        ForkJoinPool pool = new ForkJoinPool(mParallelism);
+        try {
+            String[] names = mBackend.keys();
+            Arrays.sort(names);
+
+            int from = 0;
+            String checkpoint = readCheckpoint();
+            if (checkpoint != null) {
+                // the first name after the checkpoint
+                int index = Arrays.binarySearch(names, checkpoint);
+                from = index >= 0 ? index + 1 : -index - 1;
+            }
+            mResumed = from;
+            mTotal = names.length - from;
+
+            int batchSize = mOpsPerSecond == 0
+                    ? mBatchSize : Math.max(1, Math.min(mBatchSize, mOpsPerSecond / BATCHES_PER_SECOND));
+            long budgetStart = System.nanoTime();
+            long done = 0;
+            for (int i = from; i < names.length && !mStopRequested; i += batchSize) {
+                int to = Math.min(i + batchSize, names.length);
+                pool.invoke(new MigrateTask(names, i, to));
+                done += to - i;
+                if (!mRekey || mFailed.sum() == 0) {
+                    // a rekey must not skip entries it failed to move when it is resumed.
+                    mBackend.put(mCheckpointKey, mCheckpointTag + ":" + names[to - 1]);
+                }
+                throttle(budgetStart, done);
+            }
+
+            if (mStopRequested) {
+                mState = State.STOPPED;
+            } else if (mRekey && mFailed.sum() > 0) {
+                // the previous password is the only key to the entries that were not moved.
+                mState = State.FAILED;
+                if (mStore.getLogMode() != AesPrefs.LogMode.NONE) {
+                    Log.e(TAG, "Rekey of " + mBackend.name() + " failed to move " + mFailed.sum()
+                            + " entries, see AesStore.resumeRekey(String)");
+                }
+            } else {
+                mBackend.remove(mCheckpointKey);
+                if (mRekey) {
+                    mStore.finishRekey();
+                }
+                mState = State.DONE;
+            }
+            mStore.flush();
+        } catch (BackingStoreException e) {
+            mState = State.FAILED;
+            Log.e(TAG, "Migration of " + mBackend.name() + " failed", e);
+        } catch (RuntimeException e) {
+            mState = State.FAILED;
+            Log.e(TAG, "Migration of " + mBackend.name() + " failed", e);
+        } finally {
+            pool.shutdown();
+            mEndNanos = System.nanoTime();
+            mFinished.countDown();
+        }
+
+        if (mStore.getLogMode() != AesPrefs.LogMode.NONE) {
+            Log.i(TAG, mBackend.name() + ": " + this);
+        }
+    }
+
+
+    /**
+     * @return the last name of the finished batches of an earlier run with the same suite, or of the
+     * same rekey, or null
+     */
+    private String readCheckpoint() {
+        String checkpoint = mBackend.get(mCheckpointKey);
+        if (checkpoint == null) {
+            return null;
+        }
+        int colon = checkpoint.indexOf(':');
+        if (colon < 0 || !checkpoint.substring(0, colon).equals(mCheckpointTag)) {
+            return null;
+        }
+        return checkpoint.substring(colon + 1);
+    }
+
+
+    /**
+     * Sleep until done entries are within the budget since budgetStart.
+     */
+    private void throttle(long budgetStart, long done) {
+        if (mOpsPerSecond == 0) {
+            return;
+        }
+        long due = budgetStart + done * TimeUnit.SECONDS.toNanos(1) / mOpsPerSecond;
+        long wait;
+        while (!mStopRequested && (wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, wait);
+        }
+    }
+
+
+    /**
+     * Migrates a range of names, splitting large ranges for the fork-join pool.
+     */
+    private class MigrateTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String[] mNames;
+        private final int mFrom;
+        private final int mTo;
+
+
+        MigrateTask(String[] names, int from, int to) {
+            mNames = names;
+            mFrom = from;
+            mTo = to;
+        }
+
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom > SPLIT_THRESHOLD) {
+                int mid = (mFrom + mTo) >>> 1;
+                invokeAll(new MigrateTask(mNames, mFrom, mid), new MigrateTask(mNames, mid, mTo));
+                return;
+            }
+            for (int i = mFrom; i < mTo; i++) {
+                Outcome outcome;
+                try {
+                    outcome = mRekey ? mStore.rekeyEntry(mNames[i]) : mStore.migrateEntry(mNames[i]);
+                } catch (RuntimeException e) {
+                    if (mStore.getLogMode() != AesPrefs.LogMode.NONE) {
+                        Log.e(TAG, "Migration of " + mNames[i] + " failed", e);
+                    }
+                    outcome = Outcome.FAILED;
+                }
+                if (outcome == Outcome.MIGRATED) {
+                    mMigrated.increment();
+                } else if (outcome == Outcome.FAILED) {
+                    mFailed.increment();
+                }
+                mScanned.increment();
+            }
+        }
+    }
+
+}
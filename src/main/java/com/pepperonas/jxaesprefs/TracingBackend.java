@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs;
+
+import com.pepperonas.jxaesprefs.backend.PrefsBackend;
+import com.pepperonas.jxaesprefs.jfr.Tracer;
+
+import java.util.Map;
+import java.util.prefs.BackingStoreException;
+
+/**
+ * Adds the time spent in a backend to the phases of the current {@link Tracer} operation. Reads of
+ * IV entries count as {@link Tracer.Phase#IV_LOOKUP}, everything else as
+ * {@link Tracer.Phase#BACKEND}.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+class TracingBackend implements PrefsBackend {
+
+    private final PrefsBackend mBackend;
+
+
+    TracingBackend(PrefsBackend backend) {
+        mBackend = backend;
+    }
+
+
+    @Override
+    public String name() {
+        return mBackend.name();
+    }
+
+
+    @Override
+    public String get(String key) {
+        long start = Tracer.startPhase();
+        try {
+            return mBackend.get(key);
+        } finally {
+            Tracer.endPhase(isIv(key) ? Tracer.Phase.IV_LOOKUP : Tracer.Phase.BACKEND, start);
+        }
+    }
+
+
+    @Override
+    public void put(String key, String value) {
+        long start = Tracer.startPhase();
+        try {
+            mBackend.put(key, value);
+        } finally {
+            Tracer.endPhase(Tracer.Phase.BACKEND, start);
+        }
+    }
+
+
+    @Override
+    public void remove(String key) {
+        long start = Tracer.startPhase();
+        try {
+            mBackend.remove(key);
+        } finally {
+            Tracer.endPhase(Tracer.Phase.BACKEND, start);
+        }
+    }
+
+
+    @Override
+    public void batch(Map<String, String> entries) {
+        long start = Tracer.startPhase();
+        try {
+            mBackend.batch(entries);
+        } finally {
+            Tracer.endPhase(Tracer.Phase.BACKEND, start);
+        }
+    }
+
+
+    @Override
+    public String[] keys() throws BackingStoreException {
+        long start = Tracer.startPhase();
+        try {
+            return mBackend.keys();
+        } finally {
+            Tracer.endPhase(Tracer.Phase.BACKEND, start);
+        }
+    }
+
+
+    @Override
+    public void clear() throws BackingStoreException {
+        long start = Tracer.startPhase();
+        try {
+            mBackend.clear();
+        } finally {
+            Tracer.endPhase(Tracer.Phase.BACKEND, start);
+        }
+    }
+
+
+    @Override
+    public void flush() throws BackingStoreException {
+        long start = Tracer.startPhase();
+        try {
+            mBackend.flush();
+        } finally {
+            Tracer.endPhase(Tracer.Phase.BACKEND, start);
+        }
+    }
+
+
+    @Override
+    public int maxValueLength() {
+        return mBackend.maxValueLength();
+    }
+
+
+    @Override
+    public void addChangeListener(ChangeListener listener) {
+        mBackend.addChangeListener(listener);
+    }
+
+
+    @Override
+    public void removeChangeListener(ChangeListener listener) {
+        mBackend.removeChangeListener(listener);
+    }
+
+
+    /**
+     * @return true for the IV entry of a legacy value, one longer than its Base64 name
+     */
+    private static boolean isIv(String key) {
+        return key.length() % 4 == 1 && key.endsWith(AesStore.TAIL);
+    }
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs;
+
+import com.pepperonas.jxaesprefs.utils.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Buffers writes by encrypted key name and hands them to a {@link Writer} in batches on a
+ * background thread. Only the names are encrypted, the queued values are plain and must never be
+ * logged.
+ * <p>
+ * Repeated writes to the same key are coalesced. An entry stays visible through {@link #get(String)}
+ * until it has been written, so readers always see their own writes. The number of pending keys is
+ * bounded by the capacity, a full queue is handled according to the {@link AesStore.Backpressure}.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+class WriteBehindQueue {
+
+    private static final String TAG = "WriteBehindQueue";
+
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Receives the drained entries, values are a String, a boxed primitive, a byte[] or a List of
+     * Strings.
+     */
+    interface Writer {
+
+        void write(Map<String, Object> entries);
+    }
+
+
+    private final ConcurrentHashMap<String, Object> mPending = new ConcurrentHashMap<String, Object>();
+    private final Semaphore mPermits;
+    private final AesStore.Backpressure mBackpressure;
+    private final long mDelayNanos;
+    private final Writer mWriter;
+
+    /**
+     * Only one drain at a time, so an entry is never written twice concurrently.
+     */
+    private final ReentrantLock mDrainLock = new ReentrantLock();
+
+    private final Thread mFlusher;
+    private volatile boolean mRunning = true;
+
+
+    WriteBehindQueue(String name, int capacity, AesStore.Backpressure backpressure, long delayMillis, Writer writer) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity <= 0");
+        }
+        mPermits = new Semaphore(capacity);
+        mBackpressure = backpressure;
+        mDelayNanos = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        mWriter = writer;
+
+        mFlusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "AesStore-flusher " + name);
+        mFlusher.setDaemon(true);
+        mFlusher.start();
+    }
+
+
+    /**
+     * Enqueue a write.
+     *
+     * @param key   the encrypted key name
+     * @param value a String, a byte[] or a List of Strings
+     * @return false if the queue is full and the caller has to write the value itself
+     * @throws IllegalStateException if the queue is full and the backpressure is FAIL, or the
+     *                               queue is closed
+     */
+    boolean offer(String key, Object value) {
+        if (!mRunning) {
+            throw new IllegalStateException("Write-behind queue closed");
+        }
+
+        // coalesce with a pending write, which already holds a permit.
+        if (mPending.replace(key, value) != null) {
+            return true;
+        }
+
+        if (!mPermits.tryAcquire()) {
+            LockSupport.unpark(mFlusher);
+            switch (mBackpressure) {
+                case CALLER_RUNS:
+                    return false;
+                case FAIL:
+                    throw new IllegalStateException("Write-behind queue full");
+                default:
+                    mPermits.acquireUninterruptibly();
+            }
+        }
+
+        if (mPending.put(key, value) != null) {
+            // another writer inserted the key meanwhile.
+            mPermits.release();
+        } else if (mPending.size() == 1) {
+            LockSupport.unpark(mFlusher);
+        }
+        return true;
+    }
+
+
+    /**
+     * Replace the value of a pending write without taking a permit, so it never waits for room.
+     * While the key is not pending, no drain has it left to write either.
+     *
+     * @param key   the encrypted key name
+     * @param value a String, a byte[] or a List of Strings
+     * @return false if the key is not pending and the caller has to write the value itself
+     * @throws IllegalStateException if the queue is closed
+     */
+    boolean replace(String key, Object value) {
+        if (!mRunning) {
+            throw new IllegalStateException("Write-behind queue closed");
+        }
+        return mPending.replace(key, value) != null;
+    }
+
+
+    /**
+     * @param key the encrypted key name
+     * @return the pending value, or null if there is none
+     */
+    Object get(String key) {
+        return mPending.get(key);
+    }
+
+
+    /**
+     * @return the number of pending keys
+     */
+    int size() {
+        return mPending.size();
+    }
+
+
+    /**
+     * Write all pending entries in the calling thread. If the writer fails, the entries stay
+     * pending and are written by the next drain, unless newer writes to their keys replace them.
+     *
+     * @throws RuntimeException the failure of the writer
+     */
+    void drain() {
+        mDrainLock.lock();
+        try {
+            if (mPending.isEmpty()) {
+                return;
+            }
+            Map<String, Object> batch = new LinkedHashMap<String, Object>(mPending);
+            // the entries were acknowledged, so nothing is removed unless it was written.
+            mWriter.write(batch);
+            for (Map.Entry<String, Object> entry : batch.entrySet()) {
+                // keep entries that were overwritten while writing.
+                if (mPending.remove(entry.getKey(), entry.getValue())) {
+                    mPermits.release();
+                }
+            }
+        } finally {
+            mDrainLock.unlock();
+        }
+    }
+
+
+    /**
+     * Drop all pending entries without writing them.
+     */
+    void discard() {
+        mDrainLock.lock();
+        try {
+            for (String key : mPending.keySet()) {
+                if (mPending.remove(key) != null) {
+                    mPermits.release();
+                }
+            }
+        } finally {
+            mDrainLock.unlock();
+        }
+    }
+
+
+    /**
+     * Stop the flusher and write all pending entries.
+     *
+     * @throws RuntimeException if the pending entries can't be written
+     */
+    void close() {
+        mRunning = false;
+        LockSupport.unpark(mFlusher);
+        try {
+            mFlusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        drain();
+    }
+
+
+    private void loop() {
+        while (mRunning) {
+            if (mPending.isEmpty()) {
+                // timed, in case two writers raced past the wake-up in offer().
+                LockSupport.parkNanos(this, IDLE_NANOS);
+                continue;
+            }
+            if (mDelayNanos > 0 && mPermits.availablePermits() > 0) {
+                // give repeated writes a chance to coalesce.
+                LockSupport.parkNanos(this, mDelayNanos);
+            }
+            try {
+                drain();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Write failed, keeping " + mPending.size() + " entries", e);
+                // don't spin on a backend that keeps failing.
+                LockSupport.parkNanos(this, IDLE_NANOS);
+            }
+        }
+    }
+
+}
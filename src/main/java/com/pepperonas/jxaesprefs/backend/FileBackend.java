@@ -0,0 +1,687 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs.backend;
+
+import com.pepperonas.jxaesprefs.utils.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.prefs.BackingStoreException;
+import java.util.zip.CRC32;
+
+/**
+ * A backend that appends every change as a record to a memory-mapped log file. An index of key to
+ * record is kept in memory, so a put is one append and a get is one lookup plus a copy out of the
+ * mapped file, whatever the number of entries.
+ * <p>
+ * Overwritten and removed records stay in the file until it is compacted, which happens on a
+ * background thread of the backend once they take up more than half of it. A record is
+ * <pre>
+ * [length:4][crc32:4][type:1][key length:4][key][value]
+ * </pre>
+ * A damaged record at the end of the file, e.g. after a crash, is dropped on open together with
+ * anything behind it. The file is locked while the backend is open and must be closed after use,
+ * an {@link com.pepperonas.jxaesprefs.AesStore} does not close its backend. The file may grow up
+ * to 2 GB.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+public class FileBackend implements PrefsBackend, Closeable {
+
+    private static final String TAG = "FileBackend";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    private static final int HEADER_LENGTH = 4 + 4 + 1 + 4;
+
+    private static final int MAX_VALUE_LENGTH = 64 * 1024;
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    /**
+     * Compact once garbage is more than this share of the file, and at least COMPACT_MIN_BYTES.
+     */
+    private static final double COMPACT_RATIO = 0.5;
+    private static final int COMPACT_MIN_BYTES = 1024 * 1024;
+
+    private final File mFile;
+
+    /**
+     * Guards the mapping and the index: appends hold the write lock, reads the read lock.
+     */
+    private final ReadWriteLock mLock = new ReentrantReadWriteLock();
+
+    /**
+     * Held by compaction, and by everything that shrinks the file.
+     */
+    private final ReentrantLock mCompactLock = new ReentrantLock();
+
+    private final AtomicBoolean mCompacting = new AtomicBoolean();
+
+    /**
+     * Runs the compactions, created with the first one and shut down by close. Guarded by this.
+     */
+    private ExecutorService mCompactor;
+    private boolean mCompactorClosed;
+
+    private FileChannel mChannel;
+    private FileLock mFileLock;
+    private MappedByteBuffer mMap;
+    private Map<String, Slot> mIndex = new ConcurrentHashMap<String, Slot>();
+
+    /**
+     * The end of the last record.
+     */
+    private int mEnd;
+
+    /**
+     * The bytes of records that are overwritten or removed.
+     */
+    private long mGarbage;
+
+    private boolean mClosed;
+
+
+    /**
+     * Open a log file, or create it if it does not exist.
+     *
+     * @param file the file
+     * @throws IOException if the file can't be opened or is used by another backend
+     */
+    public FileBackend(File file) throws IOException {
+        mFile = file;
+        mChannel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            mFileLock = mChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by this process.
+            mFileLock = null;
+        }
+        if (mFileLock == null) {
+            mChannel.close();
+            throw new IOException(file + " is used by another backend");
+        }
+        try {
+            load();
+        } catch (IOException e) {
+            mFileLock.release();
+            mChannel.close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Reads the index from the file and drops a damaged tail.
+     */
+    private void load() throws IOException {
+        long size = mChannel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException(mFile + " is larger than 2 GB");
+        }
+        mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, INITIAL_CAPACITY));
+
+        int position = 0;
+        while (position + HEADER_LENGTH <= size) {
+            int length = mMap.getInt(position);
+            if (length < HEADER_LENGTH || position + (long) length > size
+                    || mMap.getInt(position + 4) != crc(mMap, position, length)) {
+                break;
+            }
+            byte type = mMap.get(position + 8);
+            int keyLength = mMap.getInt(position + 9);
+            if (keyLength < 0 || keyLength > length - HEADER_LENGTH) {
+                break;
+            }
+            String key = decode(mMap, position + HEADER_LENGTH, keyLength);
+            Slot previous;
+            if (type == PUT) {
+                previous = mIndex.put(key, new Slot(position, length, keyLength));
+            } else {
+                previous = mIndex.remove(key);
+                mGarbage += length;
+            }
+            if (previous != null) {
+                mGarbage += previous.mLength;
+            }
+            position += length;
+        }
+        mEnd = position;
+
+        if (mEnd < size) {
+            // a file that was not closed ends with the zeros of the mapping.
+            if (mEnd + 4 > size || mMap.getInt(mEnd) != 0) {
+                Log.w(TAG, "Dropping " + (size - mEnd) + " damaged bytes at the end of " + mFile);
+            }
+            // nothing behind the last good record may ever be read as a record again.
+            mMap = null;
+            mChannel.truncate(mEnd);
+            mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(mEnd, INITIAL_CAPACITY));
+        }
+    }
+
+
+    @Override
+    public String name() {
+        return mFile.getPath();
+    }
+
+
+    @Override
+    public String get(String key) {
+        mLock.readLock().lock();
+        try {
+            ensureOpen();
+            Slot slot = mIndex.get(key);
+            if (slot == null) {
+                return null;
+            }
+            int valueOffset = slot.mOffset + HEADER_LENGTH + slot.mKeyLength;
+            return decode(mMap, valueOffset, slot.mOffset + slot.mLength - valueOffset);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+
+    @Override
+    public void put(String key, String value) {
+        checkValue(value);
+        mLock.writeLock().lock();
+        try {
+            ensureOpen();
+            append(PUT, key, value);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        compactIfNeeded();
+    }
+
+
+    @Override
+    public void remove(String key) {
+        mLock.writeLock().lock();
+        try {
+            ensureOpen();
+            if (mIndex.containsKey(key)) {
+                append(REMOVE, key, null);
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        compactIfNeeded();
+    }
+
+
+    /**
+     * Appends all changes under one lock. They are not atomic on a crash, a prefix of them may
+     * survive.
+     */
+    @Override
+    public void batch(Map<String, String> entries) {
+        for (String value : entries.values()) {
+            if (value != null) {
+                checkValue(value);
+            }
+        }
+        mLock.writeLock().lock();
+        try {
+            ensureOpen();
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                if (entry.getValue() != null) {
+                    append(PUT, entry.getKey(), entry.getValue());
+                } else if (mIndex.containsKey(entry.getKey())) {
+                    append(REMOVE, entry.getKey(), null);
+                }
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        compactIfNeeded();
+    }
+
+
+    @Override
+    public String[] keys() throws BackingStoreException {
+        mLock.readLock().lock();
+        try {
+            ensureOpen();
+            return mIndex.keySet().toArray(new String[0]);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+
+    @Override
+    public void clear() throws BackingStoreException {
+        mCompactLock.lock();
+        mLock.writeLock().lock();
+        try {
+            ensureOpen();
+            mMap = null;
+            mChannel.truncate(0);
+            mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_CAPACITY);
+            mIndex.clear();
+            mEnd = 0;
+            mGarbage = 0;
+        } catch (IOException e) {
+            throw new BackingStoreException(e);
+        } finally {
+            mLock.writeLock().unlock();
+            mCompactLock.unlock();
+        }
+    }
+
+
+    @Override
+    public void flush() throws BackingStoreException {
+        mLock.readLock().lock();
+        try {
+            ensureOpen();
+            mMap.force();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+
+    @Override
+    public int maxValueLength() {
+        return MAX_VALUE_LENGTH;
+    }
+
+
+    /**
+     * Ignored, only this backend writes its file.
+     */
+    @Override
+    public void addChangeListener(ChangeListener listener) {
+    }
+
+
+    @Override
+    public void removeChangeListener(ChangeListener listener) {
+    }
+
+
+    /**
+     * @return the number of bytes in the file that belong to overwritten or removed entries
+     */
+    public long getGarbageBytes() {
+        mLock.readLock().lock();
+        try {
+            return mGarbage;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * @return the number of bytes of all records in the file
+     */
+    public long getFileBytes() {
+        mLock.readLock().lock();
+        try {
+            return mEnd;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Rewrite the file with the current entries only. Writes continue while the entries are
+     * copied, only the switch to the new file blocks them.
+     *
+     * @throws IOException if the new file can't be written
+     */
+    public void compact() throws IOException {
+        mCompactLock.lock();
+        try {
+            compactLocked();
+        } finally {
+            mCompactLock.unlock();
+        }
+    }
+
+
+    private void compactLocked() throws IOException {
+        Map<String, Slot> snapshot;
+        MappedByteBuffer source;
+        int snapshotEnd;
+        long live;
+        mLock.readLock().lock();
+        try {
+            ensureOpen();
+            snapshot = new HashMap<String, Slot>(mIndex);
+            source = mMap;
+            snapshotEnd = mEnd;
+            live = mEnd - mGarbage;
+        } finally {
+            mLock.readLock().unlock();
+        }
+
+        File target = new File(mFile.getPath() + ".compact");
+        FileChannel channel = new RandomAccessFile(target, "rw").getChannel();
+        boolean switched = false;
+        try {
+            channel.truncate(0);
+            FileLock fileLock = channel.lock();
+            Compaction compaction = new Compaction(channel, (int) Math.max(live * 5 / 4, INITIAL_CAPACITY));
+
+            // records before the snapshot end never change, the old mapping stays valid while
+            // they are copied.
+            for (Map.Entry<String, Slot> entry : snapshot.entrySet()) {
+                compaction.copy(entry.getKey(), source, entry.getValue());
+            }
+
+            mLock.writeLock().lock();
+            try {
+                ensureOpen();
+                // catch up with the writes since the snapshot.
+                int position = snapshotEnd;
+                while (position < mEnd) {
+                    int length = mMap.getInt(position);
+                    int keyLength = mMap.getInt(position + 9);
+                    String key = decode(mMap, position + HEADER_LENGTH, keyLength);
+                    if (mMap.get(position + 8) == PUT) {
+                        compaction.copy(key, mMap, new Slot(position, length, keyLength));
+                    } else {
+                        compaction.remove(key);
+                    }
+                    position += length;
+                }
+
+                compaction.mMap.force();
+                Files.move(target.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                switched = true;
+
+                mFileLock.release();
+                mChannel.close();
+                mChannel = channel;
+                mFileLock = fileLock;
+                mMap = compaction.mMap;
+                mIndex = compaction.mIndex;
+                mEnd = compaction.mEnd;
+                mGarbage = compaction.mGarbage;
+            } finally {
+                mLock.writeLock().unlock();
+            }
+        } finally {
+            if (!switched) {
+                channel.close();
+                target.delete();
+            }
+        }
+    }
+
+
+    private void compactIfNeeded() {
+        boolean needed;
+        mLock.readLock().lock();
+        try {
+            needed = !mClosed && mGarbage >= COMPACT_MIN_BYTES && mGarbage > mEnd * COMPACT_RATIO;
+        } finally {
+            mLock.readLock().unlock();
+        }
+        if (!needed || !mCompacting.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            compactor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    } catch (Exception e) {
+                        Log.e(TAG, "Compaction of " + mFile + " failed", e);
+                    } finally {
+                        mCompacting.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closed meanwhile.
+            mCompacting.set(false);
+        }
+    }
+
+
+    private synchronized ExecutorService compactor() {
+        if (mCompactorClosed) {
+            throw new RejectedExecutionException(mFile + " is closed");
+        }
+        if (mCompactor == null) {
+            mCompactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG + "-" + mFile.getName());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mCompactor;
+    }
+
+
+    /**
+     * Force all changes to disk, shrink the file to its records and release it.
+     */
+    @Override
+    public void close() throws IOException {
+        mCompactLock.lock();
+        mLock.writeLock().lock();
+        try {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mMap.force();
+            mMap = null;
+            mChannel.truncate(mEnd);
+            mFileLock.release();
+            mChannel.close();
+        } finally {
+            mLock.writeLock().unlock();
+            mCompactLock.unlock();
+        }
+        synchronized (this) {
+            mCompactorClosed = true;
+            if (mCompactor != null) {
+                mCompactor.shutdown();
+            }
+        }
+    }
+
+
+    /**
+     * Appends a record and updates the index. The caller must hold the write lock.
+     */
+    private void append(byte type, String key, String value) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        byte[] valueBytes = value == null ? new byte[0] : value.getBytes(UTF_8);
+        int length = HEADER_LENGTH + keyBytes.length + valueBytes.length;
+        ensureCapacity(length);
+
+        ByteBuffer buffer = mMap.duplicate();
+        buffer.position(mEnd + 8);
+        buffer.put(type).putInt(keyBytes.length).put(keyBytes).put(valueBytes);
+        mMap.putInt(mEnd + 4, crc(mMap, mEnd, length));
+        mMap.putInt(mEnd, length);
+
+        Slot previous;
+        if (type == PUT) {
+            previous = mIndex.put(key, new Slot(mEnd, length, keyBytes.length));
+        } else {
+            previous = mIndex.remove(key);
+            mGarbage += length;
+        }
+        if (previous != null) {
+            mGarbage += previous.mLength;
+        }
+        mEnd += length;
+    }
+
+
+    private void ensureCapacity(int length) {
+        if ((long) mEnd + length <= mMap.capacity()) {
+            return;
+        }
+        long capacity = Math.max((long) mMap.capacity() * 2, (long) mEnd + length);
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IllegalStateException(mFile + " is full");
+        }
+        try {
+            // the old mapping stays valid for a running compaction, the file only grows here.
+            mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't grow " + mFile, e);
+        }
+    }
+
+
+    private void checkValue(String value) {
+        if (value.length() > MAX_VALUE_LENGTH) {
+            throw new IllegalArgumentException("Value too long: " + value.length());
+        }
+    }
+
+
+    private void ensureOpen() {
+        if (mClosed) {
+            throw new IllegalStateException(mFile + " is closed");
+        }
+    }
+
+
+    /**
+     * @return the CRC32 of the record at position, without its length and checksum
+     */
+    private static int crc(ByteBuffer map, int position, int length) {
+        ByteBuffer record = map.duplicate();
+        record.position(position + 8).limit(position + length);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+
+    private static String decode(ByteBuffer map, int position, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer slice = map.duplicate();
+        slice.position(position);
+        slice.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+
+    /**
+     * The location of a record in the file.
+     */
+    private static final class Slot {
+
+        final int mOffset;
+        final int mLength;
+        final int mKeyLength;
+
+
+        Slot(int offset, int length, int keyLength) {
+            mOffset = offset;
+            mLength = length;
+            mKeyLength = keyLength;
+        }
+    }
+
+
+    /**
+     * The new file of a running compaction.
+     */
+    private static final class Compaction {
+
+        final FileChannel mChannel;
+        MappedByteBuffer mMap;
+        final Map<String, Slot> mIndex = new ConcurrentHashMap<String, Slot>();
+        int mEnd;
+        long mGarbage;
+
+
+        Compaction(FileChannel channel, int capacity) throws IOException {
+            mChannel = channel;
+            mMap = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+
+        void copy(String key, ByteBuffer source, Slot slot) throws IOException {
+            if ((long) mEnd + slot.mLength > mMap.capacity()) {
+                long capacity = Math.max((long) mMap.capacity() * 2, (long) mEnd + slot.mLength);
+                if (capacity > Integer.MAX_VALUE) {
+                    throw new IOException("Compacted file is too large");
+                }
+                mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+            ByteBuffer record = source.duplicate();
+            record.position(slot.mOffset).limit(slot.mOffset + slot.mLength);
+            ByteBuffer target = mMap.duplicate();
+            target.position(mEnd);
+            target.put(record);
+
+            Slot previous = mIndex.put(key, new Slot(mEnd, slot.mLength, slot.mKeyLength));
+            if (previous != null) {
+                mGarbage += previous.mLength;
+            }
+            mEnd += slot.mLength;
+        }
+
+
+        void remove(String key) {
+            Slot previous = mIndex.remove(key);
+            if (previous != null) {
+                mGarbage += previous.mLength;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs.backend;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
+import java.util.prefs.Preferences;
+
+/**
+ * The default backend, one {@link Preferences} node.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+public class PreferencesBackend implements PrefsBackend {
+
+    private final Preferences mNode;
+
+    private final ConcurrentHashMap<ChangeListener, PreferenceChangeListener> mListeners =
+            new ConcurrentHashMap<ChangeListener, PreferenceChangeListener>();
+
+
+    /**
+     * @param node the node
+     */
+    public PreferencesBackend(Preferences node) {
+        if (node == null) {
+            throw new NullPointerException("node must not be null");
+        }
+        mNode = node;
+    }
+
+
+    /**
+     * @return the node of this backend
+     */
+    public Preferences node() {
+        return mNode;
+    }
+
+
+    @Override
+    public String name() {
+        return mNode.absolutePath();
+    }
+
+
+    @Override
+    public String get(String key) {
+        return mNode.get(key, null);
+    }
+
+
+    @Override
+    public void put(String key, String value) {
+        mNode.put(key, value);
+    }
+
+
+    @Override
+    public void remove(String key) {
+        mNode.remove(key);
+    }
+
+
+    @Override
+    public void batch(Map<String, String> entries) {
+        // a node has no batches, its changes are written together on the next flush anyway.
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            if (entry.getValue() == null) {
+                mNode.remove(entry.getKey());
+            } else {
+                mNode.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+
+    @Override
+    public String[] keys() throws BackingStoreException {
+        return mNode.keys();
+    }
+
+
+    @Override
+    public void clear() throws BackingStoreException {
+        mNode.clear();
+    }
+
+
+    @Override
+    public void flush() throws BackingStoreException {
+        mNode.flush();
+    }
+
+
+    @Override
+    public int maxValueLength() {
+        return Preferences.MAX_VALUE_LENGTH;
+    }
+
+
+    @Override
+    public void addChangeListener(final ChangeListener listener) {
+        PreferenceChangeListener adapter = new PreferenceChangeListener() {
+            @Override
+            public void preferenceChange(PreferenceChangeEvent evt) {
+                listener.changed(evt.getKey(), evt.getNewValue());
+            }
+        };
+        if (mListeners.putIfAbsent(listener, adapter) == null) {
+            mNode.addPreferenceChangeListener(adapter);
+        }
+    }
+
+
+    @Override
+    public void removeChangeListener(ChangeListener listener) {
+        PreferenceChangeListener adapter = mListeners.remove(listener);
+        if (adapter != null) {
+            mNode.removePreferenceChangeListener(adapter);
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        return "PreferencesBackend{" + mNode.absolutePath() + "}";
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs.backend;
+
+import java.util.Map;
+import java.util.prefs.BackingStoreException;
+
+/**
+ * The key-value storage behind an {@link com.pepperonas.jxaesprefs.AesStore}. Keys and values are
+ * already encrypted when they get here.
+ * <p>
+ * Implementations must be thread-safe. The store serializes writes to the same key itself, a
+ * backend only has to keep single operations and batches consistent.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+public interface PrefsBackend {
+
+    /**
+     * Receives changes of entries.
+     */
+    interface ChangeListener {
+
+        /**
+         * @param key      the key
+         * @param newValue the new value, or null if the entry was removed
+         */
+        void changed(String key, String newValue);
+    }
+
+
+    /**
+     * @return a name for log messages and thread names
+     */
+    String name();
+
+
+    /**
+     * @param key the key
+     * @return the value, or null if the key does not exist
+     */
+    String get(String key);
+
+
+    /**
+     * @param key   the key
+     * @param value the value, not longer than {@link #maxValueLength()}
+     */
+    void put(String key, String value);
+
+
+    /**
+     * @param key the key, nothing happens if it does not exist
+     */
+    void remove(String key);
+
+
+    /**
+     * Apply several changes at once.
+     *
+     * @param entries key to new value, a null value removes the key
+     */
+    void batch(Map<String, String> entries);
+
+
+    /**
+     * @return all keys
+     * @throws BackingStoreException if the backing store can't be read
+     */
+    String[] keys() throws BackingStoreException;
+
+
+    /**
+     * Remove all entries.
+     *
+     * @throws BackingStoreException if the backing store can't be written
+     */
+    void clear() throws BackingStoreException;
+
+
+    /**
+     * Write all changes to the backing store.
+     *
+     * @throws BackingStoreException if the backing store can't be written
+     */
+    void flush() throws BackingStoreException;
+
+
+    /**
+     * @return the maximum length of a value, longer values are split into chunks
+     */
+    int maxValueLength();
+
+
+    /**
+     * Register a listener for changes of the entries. Backends that can't be changed by anyone
+     * but their store may ignore listeners, the store tracks its own writes.
+     *
+     * @param listener the listener
+     */
+    void addChangeListener(ChangeListener listener);
+
+
+    /**
+     * @param listener a registered listener
+     */
+    void removeChangeListener(ChangeListener listener);
+
+}
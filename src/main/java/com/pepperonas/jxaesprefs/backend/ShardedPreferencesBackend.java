@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs.backend;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
+import java.util.prefs.Preferences;
+
+/**
+ * Spreads the entries over a fixed number of child nodes by the hash of their key, so a flush
+ * only rewrites the few small nodes that changed instead of one large node.
+ * <p>
+ * Entries that are still in the parent node, written before sharding was enabled, are read from
+ * there until they are written again. The number of shards must not change once entries were
+ * written, entries in the wrong shard are not found.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+public class ShardedPreferencesBackend implements PrefsBackend {
+
+    private static final String SHARD_PREFIX = "shard";
+
+    private final Preferences mParent;
+    private final Preferences[] mShards;
+
+    private final ConcurrentHashMap<ChangeListener, PreferenceChangeListener> mListeners =
+            new ConcurrentHashMap<ChangeListener, PreferenceChangeListener>();
+
+
+    /**
+     * @param parent the node that holds the shards
+     * @param shards the number of shards
+     */
+    public ShardedPreferencesBackend(Preferences parent, int shards) {
+        if (parent == null) {
+            throw new NullPointerException("parent must not be null");
+        }
+        if (shards <= 0) {
+            throw new IllegalArgumentException("shards <= 0");
+        }
+        mParent = parent;
+        mShards = new Preferences[shards];
+        for (int i = 0; i < shards; i++) {
+            mShards[i] = parent.node(SHARD_PREFIX + i);
+        }
+    }
+
+
+    /**
+     * @return the node that holds the shards
+     */
+    public Preferences node() {
+        return mParent;
+    }
+
+
+    /**
+     * @return the child nodes, in shard order
+     */
+    public List<Preferences> shards() {
+        List<Preferences> shards = new ArrayList<Preferences>(mShards.length);
+        Collections.addAll(shards, mShards);
+        return shards;
+    }
+
+
+    private Preferences shardOf(String key) {
+        // String.hashCode is specified, so a key maps to the same shard in every JVM.
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return mShards[(h & Integer.MAX_VALUE) % mShards.length];
+    }
+
+
+    @Override
+    public String name() {
+        return mParent.absolutePath() + "/" + SHARD_PREFIX + "[" + mShards.length + "]";
+    }
+
+
+    @Override
+    public String get(String key) {
+        String value = shardOf(key).get(key, null);
+        return value != null ? value : mParent.get(key, null);
+    }
+
+
+    @Override
+    public void put(String key, String value) {
+        shardOf(key).put(key, value);
+        if (mParent.get(key, null) != null) {
+            mParent.remove(key);
+        }
+    }
+
+
+    @Override
+    public void remove(String key) {
+        shardOf(key).remove(key);
+        mParent.remove(key);
+    }
+
+
+    @Override
+    public void batch(Map<String, String> entries) {
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            if (entry.getValue() == null) {
+                remove(entry.getKey());
+            } else {
+                put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+
+    @Override
+    public String[] keys() throws BackingStoreException {
+        Set<String> keys = new LinkedHashSet<String>();
+        Collections.addAll(keys, mParent.keys());
+        for (Preferences shard : mShards) {
+            Collections.addAll(keys, shard.keys());
+        }
+        return keys.toArray(new String[keys.size()]);
+    }
+
+
+    @Override
+    public void clear() throws BackingStoreException {
+        mParent.clear();
+        for (Preferences shard : mShards) {
+            shard.clear();
+        }
+    }
+
+
+    /**
+     * Flushes the parent, which includes all shards. Only nodes that changed are written.
+     */
+    @Override
+    public void flush() throws BackingStoreException {
+        mParent.flush();
+    }
+
+
+    @Override
+    public int maxValueLength() {
+        return Preferences.MAX_VALUE_LENGTH;
+    }
+
+
+    @Override
+    public void addChangeListener(final ChangeListener listener) {
+        PreferenceChangeListener adapter = new PreferenceChangeListener() {
+            @Override
+            public void preferenceChange(PreferenceChangeEvent evt) {
+                listener.changed(evt.getKey(), evt.getNewValue());
+            }
+        };
+        if (mListeners.putIfAbsent(listener, adapter) == null) {
+            mParent.addPreferenceChangeListener(adapter);
+            for (Preferences shard : mShards) {
+                shard.addPreferenceChangeListener(adapter);
+            }
+        }
+    }
+
+
+    @Override
+    public void removeChangeListener(ChangeListener listener) {
+        PreferenceChangeListener adapter = mListeners.remove(listener);
+        if (adapter != null) {
+            mParent.removePreferenceChangeListener(adapter);
+            for (Preferences shard : mShards) {
+                shard.removePreferenceChangeListener(adapter);
+            }
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        return "ShardedPreferencesBackend{" + name() + "}";
+    }
+
+}
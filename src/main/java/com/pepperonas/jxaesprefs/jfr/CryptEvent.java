@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * One call of {@link com.pepperonas.jxaesprefs.utils.Crypt#encrypt(String, String, long)} or
+ * {@link com.pepperonas.jxaesprefs.utils.Crypt#decrypt(String, String, long)}.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+@Name("com.pepperonas.jxaesprefs.Crypt")
+@Label("Crypt")
+@Category("JxAesPrefs")
+@Description("Key derivation, cipher setup and AES of one Crypt call")
+@StackTrace(false)
+class CryptEvent extends jdk.jfr.Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Size")
+    @Description("Characters of the input")
+    int size;
+
+    @Label("Cipher Setup")
+    @Description("SHA-256 key derivation, provider lookup and cipher initialization")
+    @Timespan(Timespan.NANOSECONDS)
+    long setup;
+
+    @Label("Cipher")
+    @Timespan(Timespan.NANOSECONDS)
+    long cipher;
+
+    @Label("Base64")
+    @Timespan(Timespan.NANOSECONDS)
+    long base64;
+}
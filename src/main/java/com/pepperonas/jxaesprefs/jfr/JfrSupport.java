@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs.jfr;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+/**
+ * Everything that touches the jdk.jfr API, only loaded once {@link Tracer} found it.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+final class JfrSupport {
+
+    private JfrSupport() {
+    }
+
+
+    /**
+     * Follow the state of all recordings.
+     *
+     * @return false if flight recordings are not available
+     */
+    static boolean install() {
+        if (!FlightRecorder.isAvailable()) {
+            return false;
+        }
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recordingStateChanged(Recording recording) {
+                update();
+            }
+        });
+        update();
+        return true;
+    }
+
+
+    private static void update() {
+        boolean running = false;
+        if (FlightRecorder.isInitialized()) {
+            for (Recording recording : FlightRecorder.getFlightRecorder().getRecordings()) {
+                if (recording.getState() == RecordingState.RUNNING) {
+                    running = true;
+                    break;
+                }
+            }
+        }
+        Tracer.sRecording = running;
+    }
+
+
+    static Object beginOperation() {
+        OperationEvent event = new OperationEvent();
+        event.begin();
+        return event;
+    }
+
+
+    static void commitOperation(Object begun, String operation, int keyHash, int valueSize, long[] phases) {
+        OperationEvent event = (OperationEvent) begun;
+        event.end();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.operation = operation;
+        event.keyHash = keyHash;
+        event.valueSize = valueSize;
+        event.keyName = phases[Tracer.Phase.KEY_NAME.ordinal()];
+        event.ivLookup = phases[Tracer.Phase.IV_LOOKUP.ordinal()];
+        event.backend = phases[Tracer.Phase.BACKEND.ordinal()];
+        event.base64 = phases[Tracer.Phase.BASE64.ordinal()];
+        event.cipher = phases[Tracer.Phase.CIPHER.ordinal()];
+        event.commit();
+    }
+
+
+    static Object beginCrypt() {
+        CryptEvent event = new CryptEvent();
+        event.begin();
+        return event;
+    }
+
+
+    static void commitCrypt(Object begun, String operation, int size, long setup, long cipher, long base64) {
+        CryptEvent event = (CryptEvent) begun;
+        event.end();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.operation = operation;
+        event.size = size;
+        event.setup = setup;
+        event.cipher = cipher;
+        event.base64 = base64;
+        event.commit();
+    }
+
+}
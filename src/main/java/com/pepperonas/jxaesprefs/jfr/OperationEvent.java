@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * One operation of an AesStore, its duration split into phases. Time that is in none of the
+ * phases went into locks, caches and conversions.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+@Name("com.pepperonas.jxaesprefs.Operation")
+@Label("AesStore Operation")
+@Category("JxAesPrefs")
+@Description("A get, put, batch or array operation of an AesStore")
+@StackTrace(false)
+class OperationEvent extends jdk.jfr.Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Key Hash")
+    @Description("Salted hash of the plain key, stable while the JVM runs")
+    int keyHash;
+
+    @Label("Value Size")
+    @Description("Characters of text, bytes, elements of arrays and entries of batches")
+    int valueSize;
+
+    @Label("Key Name Encryption")
+    @Timespan(Timespan.NANOSECONDS)
+    long keyName;
+
+    @Label("IV Lookup")
+    @Timespan(Timespan.NANOSECONDS)
+    long ivLookup;
+
+    @Label("Backing Store")
+    @Timespan(Timespan.NANOSECONDS)
+    long backend;
+
+    @Label("Base64")
+    @Timespan(Timespan.NANOSECONDS)
+    long base64;
+
+    @Label("Cipher")
+    @Timespan(Timespan.NANOSECONDS)
+    long cipher;
+}
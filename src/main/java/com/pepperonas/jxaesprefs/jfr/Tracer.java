@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs.jfr;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Collects the phases of store operations for the JDK Flight Recorder events {@code
+ * com.pepperonas.jxaesprefs.Operation} and {@code com.pepperonas.jxaesprefs.Crypt}.
+ * <p>
+ * While no recording is running every method returns after reading one volatile flag, and on a
+ * JVM without JFR nothing is ever recorded. Phases are collected per thread, so the work of a
+ * getAll that is decrypted in parallel is only partly attributed.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+public final class Tracer {
+
+    /**
+     * Where the time of an operation goes.
+     */
+    public enum Phase {
+        /**
+         * Encrypting the plain key into the name of its entry.
+         */
+        KEY_NAME,
+        /**
+         * Reading the IV entries of legacy values.
+         */
+        IV_LOOKUP,
+        /**
+         * Reading and writing the backing store, including its locks and flushes.
+         */
+        BACKEND,
+        BASE64,
+        CIPHER
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private static final boolean AVAILABLE;
+
+    /**
+     * Mixed into key hashes, so the hash of a short key can't be looked up in a table.
+     */
+    private static final int SALT = new SecureRandom().nextInt();
+
+    /**
+     * True while a flight recording is running, maintained by {@link JfrSupport}.
+     */
+    static volatile boolean sRecording;
+
+    private static final ThreadLocal<Trace> TRACE = new ThreadLocal<Trace>() {
+        @Override
+        protected Trace initialValue() {
+            return new Trace();
+        }
+    };
+
+    static {
+        boolean available;
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            available = JfrSupport.install();
+        } catch (Throwable e) {
+            // no JFR in this JVM, or it is not accessible.
+            available = false;
+        }
+        AVAILABLE = available;
+    }
+
+
+    private Tracer() {
+    }
+
+
+    private static final class Trace {
+
+        Object event;
+        final long[] nanos = new long[PHASES.length];
+    }
+
+
+    /**
+     * @return true if this JVM supports flight recordings
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+
+    /**
+     * @return true while phases are collected
+     */
+    public static boolean isRecording() {
+        return sRecording;
+    }
+
+
+    /**
+     * Start an operation in the calling thread. An operation that is never ended is dropped by the
+     * next one.
+     */
+    public static void beginOperation() {
+        if (!sRecording) {
+            return;
+        }
+        Trace trace = TRACE.get();
+        Arrays.fill(trace.nanos, 0L);
+        trace.event = JfrSupport.beginOperation();
+    }
+
+
+    /**
+     * End the operation of the calling thread and commit its event.
+     *
+     * @param operation the name of the operation
+     * @param key       the plain key, only its salted hash is recorded, or null
+     * @param value     the value, only its size is recorded
+     */
+    public static void endOperation(String operation, String key, Object value) {
+        if (sRecording) {
+            endOperation(operation, key, sizeOf(value));
+        }
+    }
+
+
+    /**
+     * End the operation of the calling thread and commit its event.
+     *
+     * @param operation the name of the operation
+     * @param key       the plain key, only its salted hash is recorded, or null
+     * @param size      the size of the value
+     */
+    public static void endOperation(String operation, String key, int size) {
+        if (!sRecording) {
+            return;
+        }
+        Trace trace = TRACE.get();
+        if (trace.event == null) {
+            return;
+        }
+        JfrSupport.commitOperation(trace.event, operation, key == null ? 0 : hash(key), size, trace.nanos);
+        trace.event = null;
+    }
+
+
+    /**
+     * @return the start of a phase, or 0 if nothing is recorded
+     */
+    public static long startPhase() {
+        return sRecording ? System.nanoTime() : 0L;
+    }
+
+
+    /**
+     * Add the time since start to a phase of the current operation.
+     *
+     * @param phase the phase
+     * @param start the value returned by {@link #startPhase()}
+     */
+    public static void endPhase(Phase phase, long start) {
+        if (start == 0L) {
+            return;
+        }
+        Trace trace = TRACE.get();
+        if (trace.event != null) {
+            trace.nanos[phase.ordinal()] += System.nanoTime() - start;
+        }
+    }
+
+
+    /**
+     * Start a call of {@link com.pepperonas.jxaesprefs.utils.Crypt}.
+     *
+     * @return the event, or null if nothing is recorded
+     */
+    public static Object beginCrypt() {
+        return sRecording ? JfrSupport.beginCrypt() : null;
+    }
+
+
+    /**
+     * Commit the event of a call of {@link com.pepperonas.jxaesprefs.utils.Crypt}.
+     *
+     * @param event  the value returned by {@link #beginCrypt()}, nothing happens if it is null
+     * @param setup  the nanoseconds spent deriving the key and initializing the cipher
+     * @param cipher the nanoseconds spent encrypting or decrypting
+     * @param base64 the nanoseconds spent in Base64
+     */
+    public static void endCrypt(Object event, String operation, int size, long setup, long cipher, long base64) {
+        if (event != null) {
+            JfrSupport.commitCrypt(event, operation, size, setup, cipher, base64);
+        }
+    }
+
+
+    static int hash(String key) {
+        int h = (key.hashCode() ^ SALT) * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+
+    static int sizeOf(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof String) {
+            return ((String) value).length();
+        } else if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        } else if (value instanceof Collection) {
+            return ((Collection<?>) value).size();
+        } else if (value instanceof Object[]) {
+            return ((Object[]) value).length;
+        } else if (value instanceof Map) {
+            return ((Map<?, ?>) value).size();
+        } else if (value instanceof Long || value instanceof Double) {
+            return 8;
+        } else if (value instanceof Boolean) {
+            return 1;
+        }
+        return 4;
+    }
+
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pepperonas.jxaesprefs.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands messages to another sink on a background thread, so callers never wait for a slow
+ * stream or its lock.
+ * <p>
+ * Messages go into a bounded ring buffer that any number of threads write to and one daemon
+ * thread drains. When the buffer is full new messages are dropped and counted, and the count is
+ * reported with the next message that fits.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+public class AsyncLogSink implements LogSink {
+
+    private static final String TAG = "AsyncLogSink";
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final LogSink mTarget;
+
+    private final AtomicReferenceArray<Message> mSlots;
+    private final int mMask;
+
+    /**
+     * The next slot to claim, written by all producers.
+     */
+    private final AtomicLong mTail = new AtomicLong();
+
+    /**
+     * The next slot to drain, only written by the drain thread.
+     */
+    private volatile long mHead;
+
+    private final LongAdder mDropped = new LongAdder();
+
+    /**
+     * The dropped messages already reported, only used by the drain thread.
+     */
+    private long mReported;
+
+    private final Thread mThread;
+    private volatile boolean mSleeping;
+    private volatile boolean mClosed;
+
+
+    private static final class Message {
+
+        final int level;
+        final String tag;
+        final String msg;
+        final Throwable tr;
+
+
+        Message(int level, String tag, String msg, Throwable tr) {
+            this.level = level;
+            this.tag = tag;
+            this.msg = msg;
+            this.tr = tr;
+        }
+    }
+
+
+    /**
+     * Instantiates a new sink with room for {@link #DEFAULT_CAPACITY} messages.
+     *
+     * @param target the sink the messages are delivered to
+     */
+    public AsyncLogSink(LogSink target) {
+        this(target, DEFAULT_CAPACITY);
+    }
+
+
+    /**
+     * Instantiates a new sink.
+     *
+     * @param target   the sink the messages are delivered to
+     * @param capacity the number of messages that can wait, rounded up to a power of two
+     */
+    public AsyncLogSink(LogSink target, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity <= 0");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mTarget = target;
+        mSlots = new AtomicReferenceArray<Message>(size);
+        mMask = size - 1;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "JxAesPrefs-Log");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+
+    @Override
+    public void write(int level, String tag, String msg, Throwable tr) {
+        if (mClosed) {
+            mTarget.write(level, tag, msg, tr);
+            return;
+        }
+
+        long tail;
+        do {
+            tail = mTail.get();
+            if (tail - mHead >= mSlots.length()) {
+                mDropped.increment();
+                return;
+            }
+        } while (!mTail.compareAndSet(tail, tail + 1));
+        mSlots.set((int) tail & mMask, new Message(level, tag, msg, tr));
+
+        if (mSleeping) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+
+    /**
+     * Wait until the drain thread has delivered every message written before this call, then
+     * flush the target.
+     */
+    @Override
+    public void flush() {
+        if (Thread.currentThread() != mThread) {
+            long tail = mTail.get();
+            while (mHead < tail && mThread.isAlive()) {
+                LockSupport.unpark(mThread);
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+            }
+        }
+        mTarget.flush();
+    }
+
+
+    /**
+     * Deliver the waiting messages and stop the drain thread. Later messages are written to the
+     * target directly.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        LockSupport.unpark(mThread);
+        if (Thread.currentThread() != mThread) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mTarget.close();
+    }
+
+
+    /**
+     * @return the number of messages dropped because the buffer was full
+     */
+    public long getDroppedCount() {
+        return mDropped.sum();
+    }
+
+
+    private void drain() {
+        while (true) {
+            long head = mHead;
+            if (head == mTail.get()) {
+                if (mClosed) {
+                    return;
+                }
+                mSleeping = true;
+                // check again, a producer may have missed the flag
+                if (head == mTail.get() && !mClosed) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                mSleeping = false;
+                continue;
+            }
+
+            int slot = (int) head & mMask;
+            Message message = mSlots.get(slot);
+            if (message == null) {
+                // claimed, but not yet published
+                Thread.yield();
+                continue;
+            }
+            mSlots.set(slot, null);
+            mHead = head + 1;
+            deliver(message);
+        }
+    }
+
+
+    private void deliver(Message message) {
+        long dropped = mDropped.sum() - mReported;
+        mReported += dropped;
+        try {
+            if (dropped > 0) {
+                mTarget.write(Log.WARN, TAG, dropped + " messages dropped, the buffer is full", null);
+            }
+            mTarget.write(message.level, message.tag, message.msg, message.tr);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
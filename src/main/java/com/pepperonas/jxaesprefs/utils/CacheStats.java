@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs.utils;
+
+/**
+ * Immutable snapshot of the statistics of a {@link LruCache}.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+public class CacheStats {
+
+    private final int mSize;
+    private final long mHits;
+    private final long mMisses;
+    private final long mEvictions;
+    private final long mLoads;
+    private final long mLoadTime;
+
+
+    public CacheStats(int size, long hits, long misses, long evictions, long loads, long loadTime) {
+        mSize = size;
+        mHits = hits;
+        mMisses = misses;
+        mEvictions = evictions;
+        mLoads = loads;
+        mLoadTime = loadTime;
+    }
+
+
+    /**
+     * @return the number of cached entries at the time of the snapshot
+     */
+    public int size() {
+        return mSize;
+    }
+
+
+    public long hitCount() {
+        return mHits;
+    }
+
+
+    public long missCount() {
+        return mMisses;
+    }
+
+
+    public long evictionCount() {
+        return mEvictions;
+    }
+
+
+    /**
+     * @return the number of values loaded into the cache after a miss
+     */
+    public long loadCount() {
+        return mLoads;
+    }
+
+
+    /**
+     * @return the total time spent loading values, in nanoseconds
+     */
+    public long totalLoadTime() {
+        return mLoadTime;
+    }
+
+
+    /**
+     * @return the ratio of hits to requests, or 1.0 if there were no requests
+     */
+    public double hitRate() {
+        long requests = mHits + mMisses;
+        return requests == 0 ? 1.0 : (double) mHits / requests;
+    }
+
+
+    /**
+     * @return the average time spent loading a value, in nanoseconds
+     */
+    public double averageLoadPenalty() {
+        return mLoads == 0 ? 0.0 : (double) mLoadTime / mLoads;
+    }
+
+
+    @Override
+    public String toString() {
+        return "CacheStats{size=" + mSize + ", hits=" + mHits + ", misses=" + mMisses + ", evictions=" + mEvictions
+                + ", loads=" + mLoads + ", loadTime=" + mLoadTime + "ns}";
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs.utils;
+
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * The AES modes values can be sealed with. The id is written into every sealed value, so a store
+ * reads values of all suites, whichever one it writes.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+public enum CipherSuite {
+
+    /**
+     * AES-CBC with PKCS#5 padding and a random 16 byte IV, the format of all earlier versions.
+     */
+    CBC(1, "AES/CBC/PKCS5Padding", 16),
+
+    /**
+     * AES-GCM with a random 12 byte nonce and a 128 bit tag. Authenticated, so a modified value
+     * fails to open instead of decrypting to garbage, and fast where the CPU has AES-NI and
+     * CLMUL.
+     */
+    GCM(2, "AES/GCM/NoPadding", 12),
+
+    /**
+     * AES-CTR with a random 16 byte initial counter block. No padding, so cipher text and plain
+     * text have the same length, but not authenticated either.
+     */
+    CTR(3, "AES/CTR/NoPadding", 16);
+
+    private static final int GCM_TAG_BITS = 128;
+
+    private final byte mId;
+    private final String mTransformation;
+    private final int mNonceLength;
+
+
+    CipherSuite(int id, String transformation, int nonceLength) {
+        mId = (byte) id;
+        mTransformation = transformation;
+        mNonceLength = nonceLength;
+    }
+
+
+    /**
+     * @return the id stored in the header of sealed values
+     */
+    public byte getId() {
+        return mId;
+    }
+
+
+    /**
+     * @return the transformation passed to {@link javax.crypto.Cipher#getInstance(String)}
+     */
+    public String getTransformation() {
+        return mTransformation;
+    }
+
+
+    /**
+     * @return the length of the IV or nonce in bytes
+     */
+    public int getNonceLength() {
+        return mNonceLength;
+    }
+
+
+    /**
+     * @param nonce the IV or nonce
+     * @return the parameters to initialize a cipher of this suite with
+     */
+    public AlgorithmParameterSpec parameterSpec(byte[] nonce) {
+        return this == GCM ? new GCMParameterSpec(GCM_TAG_BITS, nonce) : new IvParameterSpec(nonce);
+    }
+
+
+    /**
+     * @param id an id from the header of a sealed value
+     * @return the suite, or null if the id is unknown
+     */
+    public static CipherSuite forId(int id) {
+        for (CipherSuite suite : values()) {
+            if (suite.mId == id) {
+                return suite;
+            }
+        }
+        return null;
+    }
+
+}
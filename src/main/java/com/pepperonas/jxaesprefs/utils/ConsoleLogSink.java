@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pepperonas.jxaesprefs.utils;
+
+import java.io.PrintStream;
+
+/**
+ * Prints messages in the format {@code E/<log id><tag> - <message>}, the default target of
+ * {@link Log}.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+public class ConsoleLogSink implements LogSink {
+
+    private final PrintStream mOut;
+
+
+    /**
+     * Print to {@link System#out}.
+     */
+    public ConsoleLogSink() {
+        this(System.out);
+    }
+
+
+    /**
+     * @param out the stream to print to
+     */
+    public ConsoleLogSink(PrintStream out) {
+        mOut = out;
+    }
+
+
+    @Override
+    public void write(int level, String tag, String msg, Throwable tr) {
+        String line = Log.prefix(level) + Log.getUniqueLogId() + tag + " - " + msg;
+        mOut.println(tr == null ? line : line + '\n' + Log.getStackTraceString(tr));
+    }
+
+
+    @Override
+    public void flush() {
+        mOut.flush();
+    }
+
+
+    @Override
+    public void close() {
+        mOut.flush();
+    }
+
+}
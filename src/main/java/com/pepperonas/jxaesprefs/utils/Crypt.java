@@ -16,7 +16,7 @@
 
 package com.pepperonas.jxaesprefs.utils;
 
-import com.pepperonas.jxaesprefs.utils.android.Base64;
+import com.pepperonas.jxaesprefs.jfr.Tracer;
 
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
@@ -32,7 +32,41 @@ import javax.crypto.spec.SecretKeySpec;
  */
 public class Crypt {
 
+    /**
+     * The context of the last password the byte[] methods were called with, so repeated calls
+     * with the same password derive the key once and reuse the ciphers of each thread.
+     */
+    private static volatile LastContext mLastContext;
+
+
+    private static final class LastContext {
+
+        final String password;
+        final CryptContext crypt;
+
+
+        LastContext(String password, CryptContext crypt) {
+            this.password = password;
+            this.crypt = crypt;
+        }
+    }
+
+
+    /**
+     * @return the context of the password, reused while it is the last one used
+     */
+    private static CryptContext contextOf(String password) {
+        LastContext last = mLastContext;
+        if (last == null || !last.password.equals(password)) {
+            last = new LastContext(password, new CryptContext(password));
+            mLastContext = last;
+        }
+        return last.crypt;
+    }
+
     public static String encrypt(String password, String text, long iv) {
+        Object event = Tracer.beginCrypt();
+        long setup = event == null ? 0L : System.nanoTime();
         Cipher cipher = null;
         SecretKeySpec key;
         AlgorithmParameterSpec spec;
@@ -62,6 +96,7 @@ public class Crypt {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        long doFinal = event == null ? 0L : System.nanoTime();
         byte[] encrypted = new byte[0];
         try {
             if (cipher != null) {
@@ -70,17 +105,24 @@ public class Crypt {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        long base64 = event == null ? 0L : System.nanoTime();
         String encryptedText = null;
         try {
-            encryptedText = new String(Base64.encode(encrypted, Base64.NO_WRAP), "UTF-8");
+            encryptedText = FastBase64.encodeToString(encrypted);
         } catch (Exception e) {
             e.printStackTrace();
         }
+        if (event != null) {
+            Tracer.endCrypt(event, "encrypt", text.length(), doFinal - setup, base64 - doFinal,
+                    System.nanoTime() - base64);
+        }
         return encryptedText;
     }
 
 
     public static String decrypt(String password, String cryptedText, long iv) {
+        Object event = Tracer.beginCrypt();
+        long setup = event == null ? 0L : System.nanoTime();
         Cipher cipher = null;
         SecretKeySpec key;
         AlgorithmParameterSpec spec;
@@ -110,7 +152,9 @@ public class Crypt {
         } catch (Exception e) {
             e.printStackTrace();
         }
-        byte[] bytes = Base64.decode(cryptedText, Base64.DEFAULT);
+        long base64 = event == null ? 0L : System.nanoTime();
+        byte[] bytes = FastBase64.decodeDefault(cryptedText);
+        long doFinal = event == null ? 0L : System.nanoTime();
         byte[] decrypted = new byte[0];
         try {
             if (cipher != null) {
@@ -119,6 +163,10 @@ public class Crypt {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        if (event != null) {
+            Tracer.endCrypt(event, "decrypt", cryptedText.length(), base64 - setup,
+                    System.nanoTime() - doFinal, doFinal - base64);
+        }
         String decryptedText = null;
         try {
             decryptedText = new String(decrypted, "UTF-8");
@@ -128,4 +176,75 @@ public class Crypt {
         return decryptedText;
     }
 
-}
\ No newline at end of file
+
+    /**
+     * Encrypt raw bytes without a detour through Base64 or a String. A convenience wrapper that
+     * only keeps the context of the last password, code that alternates passwords should hold a
+     * {@link CryptContext} per password.
+     *
+     * @param password the password
+     * @param data     the plain bytes
+     * @param iv       the IV
+     * @return the cipher text, or null if the cipher failed
+     */
+    public static byte[] encrypt(String password, byte[] data, long iv) {
+        return contextOf(password).encrypt(CryptContext.ivBytes(iv), data, 0, data.length);
+    }
+
+
+    /**
+     * Decrypt raw bytes.
+     *
+     * @param password   the password
+     * @param cipherText the cipher text
+     * @param iv         the IV the bytes were encrypted with
+     * @return the plain bytes, or null if the cipher failed
+     */
+    public static byte[] decrypt(String password, byte[] cipherText, long iv) {
+        return contextOf(password).decrypt(CryptContext.ivBytes(iv), cipherText, 0, cipherText.length);
+    }
+
+
+    /**
+     * Encrypt raw bytes with the given suite and a fresh random nonce, instead of an IV derived
+     * from a timestamp. Reuses the context of the last password like
+     * {@link #encrypt(String, byte[], long)}.
+     *
+     * @param password the password
+     * @param data     the plain bytes
+     * @param suite    the suite
+     * @return the nonce followed by the cipher text, or null if the cipher failed
+     */
+    public static byte[] encrypt(String password, byte[] data, CipherSuite suite) {
+        CryptContext crypt = contextOf(password);
+        byte[] nonce = crypt.newNonce(suite);
+        byte[] cipherText = crypt.encrypt(suite, nonce, data, 0, data.length);
+        if (cipherText == null) {
+            return null;
+        }
+        byte[] sealed = new byte[nonce.length + cipherText.length];
+        System.arraycopy(nonce, 0, sealed, 0, nonce.length);
+        System.arraycopy(cipherText, 0, sealed, nonce.length, cipherText.length);
+        return sealed;
+    }
+
+
+    /**
+     * Decrypt bytes returned by {@link #encrypt(String, byte[], CipherSuite)}.
+     *
+     * @param password the password
+     * @param sealed   the nonce followed by the cipher text
+     * @param suite    the suite the bytes were encrypted with
+     * @return the plain bytes, or null if the cipher failed or the bytes were modified (GCM)
+     */
+    public static byte[] decrypt(String password, byte[] sealed, CipherSuite suite) {
+        int nonceLength = suite.getNonceLength();
+        if (sealed.length < nonceLength) {
+            return null;
+        }
+        byte[] nonce = new byte[nonceLength];
+        System.arraycopy(sealed, 0, nonce, 0, nonceLength);
+        return contextOf(password).decrypt(suite, nonce, sealed, nonceLength, sealed.length - nonceLength);
+    }
+
+}
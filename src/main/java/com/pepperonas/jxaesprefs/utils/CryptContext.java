@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Holds the AES key derived from a password together with one ready {@link Cipher} per thread and
+ * {@link CipherSuite}, so repeated calls skip the SHA-256 derivation and the provider lookup done
+ * by {@link Crypt}.
+ * <p>
+ * The output is byte-for-byte compatible with {@link Crypt#encrypt(String, String, long)} and
+ * {@link Crypt#decrypt(String, String, long)}.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+public class CryptContext {
+
+    private static final String TAG = "CryptContext";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final int IV_LENGTH = CipherSuite.CBC.getNonceLength();
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKeySpec mKey;
+
+    /**
+     * One cipher per thread for each suite, indexed by ordinal.
+     */
+    private final ThreadLocal<Cipher[]> mCiphers = new ThreadLocal<Cipher[]>() {
+        @Override
+        protected Cipher[] initialValue() {
+            return new Cipher[CipherSuite.values().length];
+        }
+    };
+
+
+    /**
+     * Derives the AES key from the given password.
+     *
+     * @param password the password
+     */
+    public CryptContext(String password) {
+        mKey = new SecretKeySpec(deriveKey(password), "AES");
+    }
+
+
+    /**
+     * Encrypt a text.
+     *
+     * @param text the plain text
+     * @param iv   the IV (stored in the first 8 of 16 bytes)
+     * @return the Base64 encoded cipher text, or null if the cipher failed
+     */
+    public String encrypt(String text, long iv) {
+        try {
+            Cipher cipher = init(Cipher.ENCRYPT_MODE, iv);
+            byte[] encrypted = cipher.doFinal(text.getBytes(UTF_8));
+            return FastBase64.encodeToString(encrypted);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+
+    /**
+     * Decrypt a text.
+     *
+     * @param cryptedText the Base64 encoded cipher text
+     * @param iv          the IV the text was encrypted with
+     * @return the plain text, or an empty string if the cipher failed
+     */
+    public String decrypt(String cryptedText, long iv) {
+        byte[] decrypted = new byte[0];
+        try {
+            Cipher cipher = init(Cipher.DECRYPT_MODE, iv);
+            decrypted = cipher.doFinal(FastBase64.decodeDefault(cryptedText));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return new String(decrypted, UTF_8);
+    }
+
+
+    /**
+     * Decrypt a text that may have been encrypted with another key, without printing the failure.
+     *
+     * @param cryptedText the Base64 encoded cipher text
+     * @param iv          the IV the text was encrypted with
+     * @return the plain text, or null if the cipher failed
+     */
+    public String tryDecrypt(String cryptedText, long iv) {
+        try {
+            Cipher cipher = init(Cipher.DECRYPT_MODE, iv);
+            return new String(cipher.doFinal(FastBase64.decodeDefault(cryptedText)), UTF_8);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Encrypt raw bytes.
+     *
+     * @param iv     the 16 byte IV
+     * @param input  the plain bytes
+     * @param offset the offset of the plain bytes in input
+     * @param length the number of plain bytes
+     * @return the cipher text, or null if the cipher failed
+     */
+    public byte[] encrypt(byte[] iv, byte[] input, int offset, int length) {
+        return encrypt(CipherSuite.CBC, iv, input, offset, length);
+    }
+
+
+    /**
+     * Encrypt raw bytes with the given suite.
+     *
+     * @param suite  the suite
+     * @param nonce  the IV or nonce, {@link CipherSuite#getNonceLength()} bytes
+     * @param input  the plain bytes
+     * @param offset the offset of the plain bytes in input
+     * @param length the number of plain bytes
+     * @return the cipher text, for GCM followed by the tag, or null if the cipher failed
+     */
+    public byte[] encrypt(CipherSuite suite, byte[] nonce, byte[] input, int offset, int length) {
+        return encrypt(suite, nonce, null, input, offset, length);
+    }
+
+
+    /**
+     * Encrypt raw bytes with the given suite, for GCM authenticating additional data with them.
+     *
+     * @param suite  the suite
+     * @param nonce  the IV or nonce, {@link CipherSuite#getNonceLength()} bytes
+     * @param aad    the additional authenticated data, or null. Only GCM supports it
+     * @param input  the plain bytes
+     * @param offset the offset of the plain bytes in input
+     * @param length the number of plain bytes
+     * @return the cipher text, for GCM followed by the tag, or null if the cipher failed
+     */
+    public byte[] encrypt(CipherSuite suite, byte[] nonce, byte[] aad, byte[] input, int offset, int length) {
+        try {
+            return init(suite, Cipher.ENCRYPT_MODE, nonce, aad).doFinal(input, offset, length);
+        } catch (Exception e) {
+            Log.e(TAG, "encrypt with " + suite + " failed", e);
+            return null;
+        }
+    }
+
+
+    /**
+     * Decrypt raw bytes.
+     *
+     * @param iv     the 16 byte IV the bytes were encrypted with
+     * @param input  the cipher text
+     * @param offset the offset of the cipher text in input
+     * @param length the length of the cipher text
+     * @return the plain bytes, or null if the cipher failed
+     */
+    public byte[] decrypt(byte[] iv, byte[] input, int offset, int length) {
+        return decrypt(CipherSuite.CBC, iv, input, offset, length);
+    }
+
+
+    /**
+     * Decrypt raw bytes with the given suite.
+     *
+     * @param suite  the suite the bytes were encrypted with
+     * @param nonce  the IV or nonce the bytes were encrypted with
+     * @param input  the cipher text
+     * @param offset the offset of the cipher text in input
+     * @param length the length of the cipher text
+     * @return the plain bytes, or null if the cipher failed or, for GCM, the tag does not match
+     */
+    public byte[] decrypt(CipherSuite suite, byte[] nonce, byte[] input, int offset, int length) {
+        return decrypt(suite, nonce, null, input, offset, length);
+    }
+
+
+    /**
+     * Decrypt raw bytes with the given suite, for GCM checking the additional data they were
+     * encrypted with.
+     *
+     * @param suite  the suite the bytes were encrypted with
+     * @param nonce  the IV or nonce the bytes were encrypted with
+     * @param aad    the additional authenticated data, or null. Only GCM supports it
+     * @param input  the cipher text
+     * @param offset the offset of the cipher text in input
+     * @param length the length of the cipher text
+     * @return the plain bytes, or null if the cipher failed or, for GCM, the tag does not match
+     */
+    public byte[] decrypt(CipherSuite suite, byte[] nonce, byte[] aad, byte[] input, int offset, int length) {
+        try {
+            return init(suite, Cipher.DECRYPT_MODE, nonce, aad).doFinal(input, offset, length);
+        } catch (BadPaddingException e) {
+            // a wrong password or a modified value, also the AEADBadTagException of GCM.
+            return null;
+        } catch (Exception e) {
+            Log.e(TAG, "decrypt with " + suite + " failed", e);
+            return null;
+        }
+    }
+
+
+    /**
+     * Creates a CBC cipher of its own, for streams that may outlive the calling thread. Streams are
+     * always CBC, whichever {@link CipherSuite} values are sealed with.
+     *
+     * @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @param iv   the 16 byte IV
+     * @return the initialized cipher
+     * @throws GeneralSecurityException if the cipher is not available
+     */
+    public Cipher newCipher(int mode, byte[] iv) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(CipherSuite.CBC.getTransformation());
+        cipher.init(mode, mKey, new IvParameterSpec(iv));
+        return cipher;
+    }
+
+
+    /**
+     * @return a new random 16 byte IV
+     */
+    public byte[] newIv() {
+        return newNonce(CipherSuite.CBC);
+    }
+
+
+    /**
+     * @param suite the suite
+     * @return a new random IV or nonce for the suite
+     */
+    public byte[] newNonce(CipherSuite suite) {
+        byte[] nonce = new byte[suite.getNonceLength()];
+        RANDOM.nextBytes(nonce);
+        return nonce;
+    }
+
+
+    private Cipher init(int mode, long iv) throws Exception {
+        return init(CipherSuite.CBC, mode, ivBytes(iv), null);
+    }
+
+
+    private Cipher init(CipherSuite suite, int mode, byte[] nonce, byte[] aad) throws Exception {
+        Cipher[] ciphers = mCiphers.get();
+        Cipher cipher = ciphers[suite.ordinal()];
+        if (cipher == null) {
+            try {
+                cipher = Cipher.getInstance(suite.getTransformation());
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(TAG + ": " + suite.getTransformation() + " not available", e);
+            }
+            ciphers[suite.ordinal()] = cipher;
+        }
+        cipher.init(mode, mKey, suite.parameterSpec(nonce));
+        if (aad != null) {
+            cipher.updateAAD(aad);
+        }
+        return cipher;
+    }
+
+
+    /**
+     * @return the 16 byte IV of the legacy format, the long in the first 8 bytes
+     */
+    public static byte[] ivBytes(long iv) {
+        ByteBuffer bb = ByteBuffer.allocate(IV_LENGTH);
+        bb.putLong(0, iv);
+        return bb.array();
+    }
+
+
+    static byte[] deriveKey(String password) {
+        byte[] keyBytes = new byte[32];
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(password.getBytes());
+            System.arraycopy(digest.digest(), 0, keyBytes, 0, keyBytes.length);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return keyBytes;
+    }
+
+}
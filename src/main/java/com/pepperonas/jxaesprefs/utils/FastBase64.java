@@ -0,0 +1,434 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs.utils;
+
+import com.pepperonas.jxaesprefs.utils.android.Base64;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A Base64 codec (standard alphabet, padded, no line breaks) that writes into caller-supplied
+ * arrays and buffers, with offsets, and keeps no state besides its lookup tables.
+ * <p>
+ * Whole arrays and Strings are handed to {@link java.util.Base64}, whose loops current JVMs
+ * replace with vector instructions. Everything with an offset goes through the table-driven loops
+ * here, which allocate nothing.
+ * <p>
+ * The output is identical to {@link Base64} with {@link Base64#NO_WRAP}. The decoder is strict:
+ * it accepts missing padding but no line breaks or other characters outside the alphabet. Use
+ * {@link #decodeDefault(String)} for values that may have been encoded with line breaks.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+public final class FastBase64 {
+
+    private static final byte[] ENCODE = {
+            'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M',
+            'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z',
+            'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm',
+            'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z',
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '+', '/'
+    };
+
+    private static final char PAD = '=';
+
+    private static final java.util.Base64.Encoder ENCODER = java.util.Base64.getEncoder();
+    private static final java.util.Base64.Decoder DECODER = java.util.Base64.getDecoder();
+
+    /**
+     * Maps an ASCII character to its 6 bit value, or to -1. Shifting -1 keeps the sign bit, so a
+     * group with any invalid character decodes to a negative int.
+     */
+    private static final int[] DECODE = new int[128];
+
+    static {
+        for (int i = 0; i < DECODE.length; i++) {
+            DECODE[i] = -1;
+        }
+        for (int i = 0; i < ENCODE.length; i++) {
+            DECODE[ENCODE[i]] = i;
+        }
+    }
+
+
+    private FastBase64() {
+    }
+
+
+    /**
+     * @param length the number of bytes to encode
+     * @return the number of characters they encode to
+     */
+    public static int encodedLength(int length) {
+        return (length + 2) / 3 * 4;
+    }
+
+
+    /**
+     * @param src    the encoded characters
+     * @param offset the offset of the first character
+     * @param length the number of characters
+     * @return the number of bytes they decode to
+     * @throws IllegalArgumentException if length is not a valid Base64 length
+     */
+    public static int decodedLength(CharSequence src, int offset, int length) {
+        int data = length - padding(src, offset, length);
+        return decodedLength(data, length);
+    }
+
+
+    /**
+     * @param src    the encoded characters
+     * @param offset the offset of the first character
+     * @param length the number of characters
+     * @return the number of bytes they decode to
+     * @throws IllegalArgumentException if length is not a valid Base64 length
+     */
+    public static int decodedLength(byte[] src, int offset, int length) {
+        int data = length - padding(src, offset, length);
+        return decodedLength(data, length);
+    }
+
+
+    /**
+     * Encode bytes into a byte array.
+     *
+     * @return the number of bytes written to dst
+     */
+    public static int encode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        if (offset == 0 && length == src.length && dstOffset == 0) {
+            return ENCODER.encode(src, dst);
+        }
+        int end = offset + length;
+        int d = dstOffset;
+        int i = offset;
+        for (int last = end - 2; i < last; i += 3) {
+            int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff);
+            dst[d] = ENCODE[bits >>> 18];
+            dst[d + 1] = ENCODE[(bits >>> 12) & 0x3f];
+            dst[d + 2] = ENCODE[(bits >>> 6) & 0x3f];
+            dst[d + 3] = ENCODE[bits & 0x3f];
+            d += 4;
+        }
+        if (i < end) {
+            int b0 = src[i] & 0xff;
+            int b1 = i + 1 < end ? src[i + 1] & 0xff : 0;
+            dst[d] = ENCODE[b0 >>> 2];
+            dst[d + 1] = ENCODE[(b0 << 4 | b1 >>> 4) & 0x3f];
+            dst[d + 2] = i + 1 < end ? ENCODE[(b1 << 2) & 0x3f] : (byte) PAD;
+            dst[d + 3] = (byte) PAD;
+            d += 4;
+        }
+        return d - dstOffset;
+    }
+
+
+    /**
+     * Encode bytes into a char array, e.g. to build a String with a prefix in one copy.
+     *
+     * @return the number of chars written to dst
+     */
+    public static int encode(byte[] src, int offset, int length, char[] dst, int dstOffset) {
+        int end = offset + length;
+        int d = dstOffset;
+        int i = offset;
+        for (int last = end - 2; i < last; i += 3) {
+            int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff);
+            dst[d] = (char) ENCODE[bits >>> 18];
+            dst[d + 1] = (char) ENCODE[(bits >>> 12) & 0x3f];
+            dst[d + 2] = (char) ENCODE[(bits >>> 6) & 0x3f];
+            dst[d + 3] = (char) ENCODE[bits & 0x3f];
+            d += 4;
+        }
+        if (i < end) {
+            int b0 = src[i] & 0xff;
+            int b1 = i + 1 < end ? src[i + 1] & 0xff : 0;
+            dst[d] = (char) ENCODE[b0 >>> 2];
+            dst[d + 1] = (char) ENCODE[(b0 << 4 | b1 >>> 4) & 0x3f];
+            dst[d + 2] = i + 1 < end ? (char) ENCODE[(b1 << 2) & 0x3f] : PAD;
+            dst[d + 3] = PAD;
+            d += 4;
+        }
+        return d - dstOffset;
+    }
+
+
+    /**
+     * Encode the remaining bytes of src into dst, advancing the position of both buffers.
+     *
+     * @return the number of bytes written to dst
+     * @throws BufferOverflowException if dst has not enough room
+     */
+    public static int encode(ByteBuffer src, ByteBuffer dst) {
+        int length = src.remaining();
+        int encoded = encodedLength(length);
+        if (dst.remaining() < encoded) {
+            throw new BufferOverflowException();
+        }
+        if (src.hasArray() && dst.hasArray()) {
+            encode(src.array(), src.arrayOffset() + src.position(), length,
+                    dst.array(), dst.arrayOffset() + dst.position());
+            src.position(src.limit());
+            dst.position(dst.position() + encoded);
+            return encoded;
+        }
+        while (src.remaining() >= 3) {
+            int bits = (src.get() & 0xff) << 16 | (src.get() & 0xff) << 8 | (src.get() & 0xff);
+            dst.put(ENCODE[bits >>> 18]).put(ENCODE[(bits >>> 12) & 0x3f])
+                    .put(ENCODE[(bits >>> 6) & 0x3f]).put(ENCODE[bits & 0x3f]);
+        }
+        if (src.hasRemaining()) {
+            int b0 = src.get() & 0xff;
+            boolean two = src.hasRemaining();
+            int b1 = two ? src.get() & 0xff : 0;
+            dst.put(ENCODE[b0 >>> 2]).put(ENCODE[(b0 << 4 | b1 >>> 4) & 0x3f])
+                    .put(two ? ENCODE[(b1 << 2) & 0x3f] : (byte) PAD).put((byte) PAD);
+        }
+        return encoded;
+    }
+
+
+    /**
+     * @return the encoded bytes, the same as {@link Base64#encodeToString(byte[], int, int, int)}
+     * with {@link Base64#NO_WRAP}
+     */
+    public static String encodeToString(byte[] src, int offset, int length) {
+        if (offset == 0 && length == src.length) {
+            return ENCODER.encodeToString(src);
+        }
+        char[] chars = new char[encodedLength(length)];
+        encode(src, offset, length, chars, 0);
+        return new String(chars);
+    }
+
+
+    /**
+     * @return the encoded bytes
+     */
+    public static String encodeToString(byte[] src) {
+        return encodeToString(src, 0, src.length);
+    }
+
+
+    /**
+     * Decode characters into a byte array.
+     *
+     * @return the number of bytes written to dst
+     * @throws IllegalArgumentException if the input is not valid Base64
+     */
+    public static int decode(CharSequence src, int offset, int length, byte[] dst, int dstOffset) {
+        int data = length - padding(src, offset, length);
+        int decoded = decodedLength(data, length);
+        int end = offset + (data & ~3);
+        int d = dstOffset;
+        for (int i = offset; i < end; i += 4) {
+            int bits = value(src.charAt(i)) << 18 | value(src.charAt(i + 1)) << 12
+                    | value(src.charAt(i + 2)) << 6 | value(src.charAt(i + 3));
+            if (bits < 0) {
+                throw new IllegalArgumentException("Invalid Base64 input at " + (i - offset));
+            }
+            dst[d] = (byte) (bits >> 16);
+            dst[d + 1] = (byte) (bits >> 8);
+            dst[d + 2] = (byte) bits;
+            d += 3;
+        }
+        int rest = data & 3;
+        if (rest > 0) {
+            int bits = value(src.charAt(end)) << 18 | value(src.charAt(end + 1)) << 12
+                    | (rest == 3 ? value(src.charAt(end + 2)) << 6 : 0);
+            if (bits < 0) {
+                throw new IllegalArgumentException("Invalid Base64 input at " + (end - offset));
+            }
+            dst[d++] = (byte) (bits >> 16);
+            if (rest == 3) {
+                dst[d++] = (byte) (bits >> 8);
+            }
+        }
+        return decoded;
+    }
+
+
+    /**
+     * Decode ASCII bytes into a byte array. src and dst may be the same array when dstOffset is
+     * not after offset, since every group is read before it is written.
+     *
+     * @return the number of bytes written to dst
+     * @throws IllegalArgumentException if the input is not valid Base64
+     */
+    public static int decode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        if (offset == 0 && length == src.length && dstOffset == 0 && src != dst) {
+            return DECODER.decode(src, dst);
+        }
+        int data = length - padding(src, offset, length);
+        int decoded = decodedLength(data, length);
+        int end = offset + (data & ~3);
+        int d = dstOffset;
+        for (int i = offset; i < end; i += 4) {
+            int bits = value(src[i]) << 18 | value(src[i + 1]) << 12 | value(src[i + 2]) << 6
+                    | value(src[i + 3]);
+            if (bits < 0) {
+                throw new IllegalArgumentException("Invalid Base64 input at " + (i - offset));
+            }
+            dst[d] = (byte) (bits >> 16);
+            dst[d + 1] = (byte) (bits >> 8);
+            dst[d + 2] = (byte) bits;
+            d += 3;
+        }
+        int rest = data & 3;
+        if (rest > 0) {
+            int bits = value(src[end]) << 18 | value(src[end + 1]) << 12
+                    | (rest == 3 ? value(src[end + 2]) << 6 : 0);
+            if (bits < 0) {
+                throw new IllegalArgumentException("Invalid Base64 input at " + (end - offset));
+            }
+            dst[d++] = (byte) (bits >> 16);
+            if (rest == 3) {
+                dst[d++] = (byte) (bits >> 8);
+            }
+        }
+        return decoded;
+    }
+
+
+    /**
+     * Decode the remaining ASCII bytes of src into dst, advancing the position of both buffers.
+     *
+     * @return the number of bytes written to dst
+     * @throws IllegalArgumentException if the input is not valid Base64
+     * @throws BufferOverflowException  if dst has not enough room
+     */
+    public static int decode(ByteBuffer src, ByteBuffer dst) {
+        int length = src.remaining();
+        int start = src.position();
+        int pad = 0;
+        while (pad < 2 && pad < length && src.get(start + length - 1 - pad) == PAD) {
+            pad++;
+        }
+        int data = length - pad;
+        int decoded = decodedLength(data, length);
+        if (dst.remaining() < decoded) {
+            throw new BufferOverflowException();
+        }
+        if (src.hasArray() && dst.hasArray()) {
+            decode(src.array(), src.arrayOffset() + start, length,
+                    dst.array(), dst.arrayOffset() + dst.position());
+            src.position(src.limit());
+            dst.position(dst.position() + decoded);
+            return decoded;
+        }
+        int end = start + (data & ~3);
+        for (int i = start; i < end; i += 4) {
+            int bits = value(src.get(i)) << 18 | value(src.get(i + 1)) << 12 | value(src.get(i + 2)) << 6
+                    | value(src.get(i + 3));
+            if (bits < 0) {
+                throw new IllegalArgumentException("Invalid Base64 input at " + (i - start));
+            }
+            dst.put((byte) (bits >> 16)).put((byte) (bits >> 8)).put((byte) bits);
+        }
+        int rest = data & 3;
+        if (rest > 0) {
+            int bits = value(src.get(end)) << 18 | value(src.get(end + 1)) << 12
+                    | (rest == 3 ? value(src.get(end + 2)) << 6 : 0);
+            if (bits < 0) {
+                throw new IllegalArgumentException("Invalid Base64 input at " + (end - start));
+            }
+            dst.put((byte) (bits >> 16));
+            if (rest == 3) {
+                dst.put((byte) (bits >> 8));
+            }
+        }
+        src.position(src.limit());
+        return decoded;
+    }
+
+
+    /**
+     * @return the decoded bytes
+     * @throws IllegalArgumentException if the input is not valid Base64
+     */
+    public static byte[] decode(CharSequence src, int offset, int length) {
+        if (src instanceof String) {
+            String s = (String) src;
+            return DECODER.decode(offset == 0 && length == s.length() ? s : s.substring(offset, offset + length));
+        }
+        byte[] dst = new byte[decodedLength(src, offset, length)];
+        decode(src, offset, length, dst, 0);
+        return dst;
+    }
+
+
+    /**
+     * @return the decoded bytes
+     * @throws IllegalArgumentException if the input is not valid Base64
+     */
+    public static byte[] decode(CharSequence src) {
+        return decode(src, 0, src.length());
+    }
+
+
+    /**
+     * Decode a value the way {@link Base64#DEFAULT} does, for values that may contain line
+     * breaks. Input without them takes the fast path; only the rest goes through {@link Base64}.
+     *
+     * @return the decoded bytes
+     * @throws IllegalArgumentException if the input is not valid Base64
+     */
+    public static byte[] decodeDefault(String src) {
+        try {
+            return decode(src);
+        } catch (IllegalArgumentException e) {
+            return Base64.decode(src, Base64.DEFAULT);
+        }
+    }
+
+
+    private static int value(int c) {
+        return c < 128 && c >= 0 ? DECODE[c] : -1;
+    }
+
+
+    private static int padding(CharSequence src, int offset, int length) {
+        int pad = 0;
+        while (pad < 2 && pad < length && src.charAt(offset + length - 1 - pad) == PAD) {
+            pad++;
+        }
+        return pad;
+    }
+
+
+    private static int padding(byte[] src, int offset, int length) {
+        int pad = 0;
+        while (pad < 2 && pad < length && src[offset + length - 1 - pad] == PAD) {
+            pad++;
+        }
+        return pad;
+    }
+
+
+    /**
+     * @param data   the number of characters without padding
+     * @param length the number of characters with padding
+     */
+    private static int decodedLength(int data, int length) {
+        if ((data & 3) == 1 || (data != length && (length & 3) != 0)) {
+            throw new IllegalArgumentException("Invalid Base64 length " + length);
+        }
+        return data / 4 * 3 + ((data & 3) == 0 ? 0 : (data & 3) - 1);
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records latencies in nanoseconds without locks. Values are counted in log-linear buckets, eight
+ * per power of two, so a percentile is off by at most 12.5%. The maximum is exact.
+ * <p>
+ * Recording and {@link #snapshot()} may run concurrently; a snapshot taken during recording may
+ * miss the latest values but never sees half of one bucket update.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+public class LatencyHistogram {
+
+    /**
+     * Bits of the value below its highest one bit that select the bucket, 8 buckets per power of 2.
+     */
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    /**
+     * Values from 2^40 ns (18 minutes) on share the last bucket.
+     */
+    private static final int MAX_EXPONENT = 40;
+
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB_COUNT + SUB_COUNT;
+
+    private final LongAdder mCount = new LongAdder();
+    private final LongAdder mTotal = new LongAdder();
+    private final AtomicLong mMax = new AtomicLong();
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+
+
+    /**
+     * @param nanos the latency, negative values count as 0
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        mCount.increment();
+        mTotal.add(nanos);
+        mBuckets.incrementAndGet(bucket(nanos));
+        long max = mMax.get();
+        while (nanos > max && !mMax.compareAndSet(max, nanos)) {
+            max = mMax.get();
+        }
+    }
+
+
+    public LatencyStats snapshot() {
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = mBuckets.get(i);
+            count += buckets[i];
+        }
+        long max = mMax.get();
+        return new LatencyStats(count, mTotal.sum(), percentile(buckets, count, 0.5, max),
+                percentile(buckets, count, 0.9, max), percentile(buckets, count, 0.99, max), max);
+    }
+
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.reset();
+        mTotal.reset();
+        mMax.set(0);
+    }
+
+
+    /**
+     * @return the number of recorded values, cheaper than a snapshot
+     */
+    public long count() {
+        return mCount.sum();
+    }
+
+
+    /**
+     * @return the sum of all recorded values in nanoseconds, cheaper than a snapshot
+     */
+    public long total() {
+        return mTotal.sum();
+    }
+
+
+    static int bucket(long nanos) {
+        if (nanos < SUB_COUNT) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+
+    /**
+     * @return the highest value that falls into the bucket
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+        long sub = bucket % SUB_COUNT;
+        return ((SUB_COUNT + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+
+    private static long percentile(long[] buckets, long count, double percentile, long max) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile * count);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+}
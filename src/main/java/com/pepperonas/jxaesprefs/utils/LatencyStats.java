@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs.utils;
+
+/**
+ * Immutable snapshot of a {@link LatencyHistogram}, all times in nanoseconds.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+public class LatencyStats {
+
+    private final long mCount;
+    private final long mTotal;
+    private final long mP50;
+    private final long mP90;
+    private final long mP99;
+    private final long mMax;
+
+
+    public LatencyStats(long count, long total, long p50, long p90, long p99, long max) {
+        mCount = count;
+        mTotal = total;
+        mP50 = p50;
+        mP90 = p90;
+        mP99 = p99;
+        mMax = max;
+    }
+
+
+    public long count() {
+        return mCount;
+    }
+
+
+    /**
+     * @return the sum of all latencies
+     */
+    public long totalTime() {
+        return mTotal;
+    }
+
+
+    /**
+     * @return the average latency, or 0 if nothing was recorded
+     */
+    public double mean() {
+        return mCount == 0 ? 0.0 : (double) mTotal / mCount;
+    }
+
+
+    /**
+     * @return the median
+     */
+    public long p50() {
+        return mP50;
+    }
+
+
+    public long p90() {
+        return mP90;
+    }
+
+
+    public long p99() {
+        return mP99;
+    }
+
+
+    public long max() {
+        return mMax;
+    }
+
+
+    @Override
+    public String toString() {
+        return "LatencyStats{count=" + mCount + ", mean=" + NumberFormatUtils.decimalPlaces(mean(), 1) + "ns, p50="
+                + mP50 + "ns, p90=" + mP90 + "ns, p99=" + mP99 + "ns, max=" + mMax + "ns}";
+    }
+
+}
@@ -21,13 +21,90 @@ import java.io.StringWriter;
 import java.net.UnknownHostException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
+ * Logging in the style of android.util.Log.
+ * <p>
+ * Messages are filtered by level, globally and per tag, and optionally rate limited per tag
+ * before they reach the {@link LogSink}. By default the sink is an {@link AsyncLogSink} that
+ * prints from a background thread, so logging never waits for {@link System#out}. The overloads
+ * taking a {@link Supplier} only build the message if it is written.
+ *
  * @author Martin Pfeffer (pepperonas)
  */
 public class Log {
 
-    private static String mLogId = "";
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int ASSERT = 7;
+
+    /**
+     * A level above all others, to silence a tag.
+     */
+    public static final int SUPPRESS = Integer.MAX_VALUE;
+
+    private static volatile String mLogId = "";
+
+    private static volatile int mLevel = VERBOSE;
+
+    private static final ConcurrentHashMap<String, Integer> mTagLevels = new ConcurrentHashMap<String, Integer>();
+
+    private static final ConcurrentHashMap<String, RateLimit> mRateLimits = new ConcurrentHashMap<String, RateLimit>();
+
+    private static volatile LogSink mSink = new AsyncLogSink(new ConsoleLogSink());
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, "JxAesPrefs-Log-Shutdown"));
+    }
+
+
+    /**
+     * Allows a number of messages per second and counts the others.
+     */
+    private static final class RateLimit {
+
+        private static final long WINDOW_NANOS = 1000000000L;
+
+        final int mPerSecond;
+        private final AtomicLong mWindow = new AtomicLong(Long.MIN_VALUE);
+        private final AtomicInteger mCount = new AtomicInteger();
+        private final AtomicInteger mSuppressed = new AtomicInteger();
+
+
+        RateLimit(int perSecond) {
+            mPerSecond = perSecond;
+        }
+
+
+        /**
+         * @return -1 if the message must be dropped, else the number of messages dropped since
+         * the last one that passed
+         */
+        int acquire() {
+            long window = System.nanoTime() / WINDOW_NANOS;
+            long current = mWindow.get();
+            if (window != current && mWindow.compareAndSet(current, window)) {
+                mCount.set(0);
+            }
+            if (mCount.incrementAndGet() > mPerSecond) {
+                mSuppressed.incrementAndGet();
+                return -1;
+            }
+            return mSuppressed.getAndSet(0);
+        }
+    }
 
 
     public static void setUniqueLogId(String logId) {
@@ -35,6 +112,188 @@ public class Log {
     }
 
 
+    static String getUniqueLogId() {
+        return mLogId;
+    }
+
+
+    /**
+     * Set the level of all tags without a level of their own.
+     *
+     * @param level the lowest level that is written, {@link #VERBOSE} by default
+     */
+    public static void setLevel(int level) {
+        mLevel = level;
+    }
+
+
+    /**
+     * Set the level of a tag.
+     *
+     * @param tag   the tag
+     * @param level the lowest level that is written, or {@link #SUPPRESS}
+     */
+    public static void setLevel(String tag, int level) {
+        mTagLevels.put(tag, level);
+    }
+
+
+    /**
+     * Let a tag follow the global level again.
+     *
+     * @param tag the tag
+     */
+    public static void clearLevel(String tag) {
+        mTagLevels.remove(tag);
+    }
+
+
+    /**
+     * @param tag   the tag
+     * @param level the level
+     * @return true if a message of this level and tag passes the level filter
+     */
+    public static boolean isLoggable(String tag, int level) {
+        Integer tagLevel = mTagLevels.isEmpty() ? null : mTagLevels.get(tag);
+        return level >= (tagLevel == null ? mLevel : tagLevel);
+    }
+
+
+    /**
+     * Limit the messages of a tag. Messages over the limit are dropped, and their number is
+     * reported with the next message that passes.
+     *
+     * @param tag       the tag
+     * @param perSecond the messages allowed per second, or 0 to remove the limit
+     */
+    public static void setRateLimit(String tag, int perSecond) {
+        if (perSecond <= 0) {
+            mRateLimits.remove(tag);
+        } else {
+            mRateLimits.put(tag, new RateLimit(perSecond));
+        }
+    }
+
+
+    /**
+     * Limit the messages of a tag unless a limit was set before, for defaults that must not
+     * override a configuration made earlier.
+     *
+     * @param tag       the tag
+     * @param perSecond the messages allowed per second
+     */
+    public static void setDefaultRateLimit(String tag, int perSecond) {
+        if (perSecond > 0 && !mRateLimits.containsKey(tag)) {
+            mRateLimits.putIfAbsent(tag, new RateLimit(perSecond));
+        }
+    }
+
+
+    /**
+     * @param tag the tag
+     * @return the messages allowed per second, or 0 if the tag is not limited
+     */
+    public static int getRateLimit(String tag) {
+        RateLimit limit = mRateLimits.get(tag);
+        return limit == null ? 0 : limit.mPerSecond;
+    }
+
+
+    /**
+     * Replace the sink. The previous sink is flushed and closed.
+     *
+     * @param sink the new sink, for example {@link ConsoleLogSink} to print synchronously
+     */
+    public static void setSink(LogSink sink) {
+        if (sink == null) {
+            throw new NullPointerException("sink must not be null");
+        }
+        LogSink previous = mSink;
+        mSink = sink;
+        if (previous != sink) {
+            previous.close();
+        }
+    }
+
+
+    public static LogSink getSink() {
+        return mSink;
+    }
+
+
+    /**
+     * Block until every message logged so far was written.
+     */
+    public static void flush() {
+        mSink.flush();
+    }
+
+
+    /**
+     * Log a message if its level and the rate limit of its tag allow it.
+     *
+     * @param level the level
+     * @param tag   the tag
+     * @param msg   the message
+     * @param tr    an exception to log, or null
+     */
+    public static void println(int level, String tag, String msg, Throwable tr) {
+        if (isLoggable(tag, level) && acquire(tag)) {
+            mSink.write(level, tag, msg, tr);
+        }
+    }
+
+
+    /**
+     * Log a message if its level and the rate limit of its tag allow it, the message is only built
+     * in that case.
+     *
+     * @param level the level
+     * @param tag   the tag
+     * @param msg   supplies the message
+     * @param tr    an exception to log, or null
+     */
+    public static void println(int level, String tag, Supplier<String> msg, Throwable tr) {
+        if (isLoggable(tag, level) && acquire(tag)) {
+            mSink.write(level, tag, msg.get(), tr);
+        }
+    }
+
+
+    private static boolean acquire(String tag) {
+        if (mRateLimits.isEmpty()) {
+            return true;
+        }
+        RateLimit limit = mRateLimits.get(tag);
+        if (limit == null) {
+            return true;
+        }
+        int suppressed = limit.acquire();
+        if (suppressed > 0) {
+            mSink.write(WARN, tag, suppressed + " messages suppressed by the rate limit", null);
+        }
+        return suppressed >= 0;
+    }
+
+
+    static String prefix(int level) {
+        switch (level) {
+            case VERBOSE:
+                return "V/";
+            case DEBUG:
+                return "D/";
+            case INFO:
+                return "I/";
+            case WARN:
+                return "W/";
+            case ERROR:
+                return "E/";
+            default:
+                return "WTF/";
+        }
+    }
+
+
     /**
      * Send a VERBOSE log message.
      *
@@ -43,7 +302,7 @@ public class Log {
      * @param msg The message you would like logged.
      */
     public static void v(String tag, String msg) {
-        System.out.println("V/" + mLogId + tag + " - " + msg);
+        println(VERBOSE, tag, msg, null);
     }
 
 
@@ -55,7 +314,7 @@ public class Log {
      * @param msg The message you would like logged.
      */
     public static void i(String tag, String msg) {
-        System.out.println("I/" + mLogId + tag + " - " + msg);
+        println(INFO, tag, msg, null);
     }
 
 
@@ -67,7 +326,7 @@ public class Log {
      * @param msg The message you would like logged.
      */
     public static void d(String tag, String msg) {
-        System.out.println("D/" + mLogId + tag + " - " + msg);
+        println(DEBUG, tag, msg, null);
     }
 
 
@@ -107,7 +366,7 @@ public class Log {
      * @param msg The message you would like logged.
      */
     public static void w(String tag, String msg) {
-        System.out.println("W/" + mLogId + tag + " - " + msg);
+        println(WARN, tag, msg, null);
     }
 
 
@@ -120,7 +379,7 @@ public class Log {
      * @param tr  An exception to log.
      */
     public static void w(String tag, String msg, Throwable tr) {
-        System.out.println("W/" + mLogId + tag + " - " + msg + '\n' + getStackTraceString(tr));
+        println(WARN, tag, msg, tr);
     }
 
 
@@ -132,7 +391,7 @@ public class Log {
      * @param msg The message you would like logged.
      */
     public static void e(String tag, String msg) {
-        System.out.println("E/" + mLogId + tag + " - " + msg);
+        println(ERROR, tag, msg, null);
     }
 
 
@@ -145,7 +404,7 @@ public class Log {
      * @param tr  An exception to log.
      */
     public static void e(String tag, String msg, Throwable tr) {
-        System.out.println("E/" + mLogId + tag + " - " + msg + '\n' + getStackTraceString(tr));
+        println(ERROR, tag, msg, tr);
     }
 
 
@@ -157,7 +416,7 @@ public class Log {
      * @param msg The message you would like logged.
      */
     public static void wtf(String tag, String msg) {
-        System.out.println("WTF/" + mLogId + tag + " - " + msg);
+        println(ASSERT, tag, msg, null);
     }
 
 
@@ -170,7 +429,97 @@ public class Log {
      * @param tr  An exception to log.
      */
     public static void wtf(String tag, String msg, Throwable tr) {
-        System.out.println("WTF/" + mLogId + tag + " - " + msg + '\n' + getStackTraceString(tr));
+        println(ASSERT, tag, msg, tr);
+    }
+
+
+    /**
+     * Send a VERBOSE log message that is only built if it is written.
+     *
+     * @param tag Used to identify the source of a log message.
+     * @param msg Supplies the message you would like logged.
+     */
+    public static void v(String tag, Supplier<String> msg) {
+        println(VERBOSE, tag, msg, null);
+    }
+
+
+    /**
+     * Send a DEBUG log message that is only built if it is written.
+     *
+     * @param tag Used to identify the source of a log message.
+     * @param msg Supplies the message you would like logged.
+     */
+    public static void d(String tag, Supplier<String> msg) {
+        println(DEBUG, tag, msg, null);
+    }
+
+
+    /**
+     * Send an INFO log message that is only built if it is written.
+     *
+     * @param tag Used to identify the source of a log message.
+     * @param msg Supplies the message you would like logged.
+     */
+    public static void i(String tag, Supplier<String> msg) {
+        println(INFO, tag, msg, null);
+    }
+
+
+    /**
+     * Send a WARN log message that is only built if it is written.
+     *
+     * @param tag Used to identify the source of a log message.
+     * @param msg Supplies the message you would like logged.
+     */
+    public static void w(String tag, Supplier<String> msg) {
+        println(WARN, tag, msg, null);
+    }
+
+
+    /**
+     * Send a WARN log message that is only built if it is written, and log the exception.
+     *
+     * @param tag Used to identify the source of a log message.
+     * @param msg Supplies the message you would like logged.
+     * @param tr  An exception to log.
+     */
+    public static void w(String tag, Supplier<String> msg, Throwable tr) {
+        println(WARN, tag, msg, tr);
+    }
+
+
+    /**
+     * Send an ERROR log message that is only built if it is written.
+     *
+     * @param tag Used to identify the source of a log message.
+     * @param msg Supplies the message you would like logged.
+     */
+    public static void e(String tag, Supplier<String> msg) {
+        println(ERROR, tag, msg, null);
+    }
+
+
+    /**
+     * Send an ERROR log message that is only built if it is written, and log the exception.
+     *
+     * @param tag Used to identify the source of a log message.
+     * @param msg Supplies the message you would like logged.
+     * @param tr  An exception to log.
+     */
+    public static void e(String tag, Supplier<String> msg, Throwable tr) {
+        println(ERROR, tag, msg, tr);
+    }
+
+
+    /**
+     * Send a What a Terrible Failure log message that is only built if it is written.
+     *
+     * @param tag Used to identify the source of a log message.
+     * @param msg Supplies the message you would like logged.
+     */
+    public static void wtf(String tag, Supplier<String> msg) {
+        println(ASSERT, tag, msg, null);
     }
 
 
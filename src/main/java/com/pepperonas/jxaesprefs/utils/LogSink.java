@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pepperonas.jxaesprefs.utils;
+
+/**
+ * Where {@link Log} delivers the messages that passed its level and rate filters.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+public interface LogSink {
+
+    /**
+     * Write a message.
+     *
+     * @param level the level, one of {@link Log#VERBOSE} to {@link Log#ASSERT}
+     * @param tag   the tag
+     * @param msg   the message
+     * @param tr    the exception to log, or null
+     */
+    void write(int level, String tag, String msg, Throwable tr);
+
+
+    /**
+     * Block until every message written so far was delivered.
+     */
+    void flush();
+
+
+    /**
+     * Deliver what is left and release the sink, it is not used afterwards.
+     */
+    void close();
+
+}
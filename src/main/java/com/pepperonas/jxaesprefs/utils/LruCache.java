@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe LRU cache.
+ * <p>
+ * Entries are spread over independently locked segments, each of which is an access-ordered
+ * {@link LinkedHashMap}, so concurrent callers only contend when they hit the same segment.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+public class LruCache<K, V> {
+
+    private static final int MAX_SEGMENTS = 16;
+
+    private final Segment<K, V>[] mSegments;
+    private final int mMaxSize;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+    private final AtomicLong mLoads = new AtomicLong();
+    private final AtomicLong mLoadTime = new AtomicLong();
+
+
+    /**
+     * Instantiates a new cache.
+     *
+     * @param maxSize the maximum number of entries
+     */
+    @SuppressWarnings("unchecked")
+    public LruCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        int segments = Math.min(MAX_SEGMENTS, Integer.highestOneBit(maxSize));
+        int segmentSize = (maxSize + segments - 1) / segments;
+        mSegments = (Segment<K, V>[]) new Segment<?, ?>[segments];
+        for (int i = 0; i < segments; i++) {
+            mSegments[i] = new Segment<K, V>(segmentSize, mEvictions);
+        }
+    }
+
+
+    /**
+     * Get the cached value.
+     *
+     * @param key the key
+     * @return the value, or null if it is not cached
+     */
+    public V get(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        V value;
+        synchronized (segment) {
+            value = segment.get(key);
+        }
+        if (value == null) {
+            mMisses.incrementAndGet();
+        } else {
+            mHits.incrementAndGet();
+        }
+        return value;
+    }
+
+
+    /**
+     * Get the cached value without touching the statistics.
+     *
+     * @param key the key
+     * @return the value, or null if it is not cached
+     */
+    public V peek(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+
+    /**
+     * Put a value, evicting the least recently used entry of its segment if needed.
+     *
+     * @param key   the key
+     * @param value the value
+     */
+    public void put(K key, V value) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, value);
+        }
+    }
+
+
+    /**
+     * Put a value that was loaded after a miss and record how long loading it took.
+     *
+     * @param key      the key
+     * @param value    the value
+     * @param loadTime the load time in nanoseconds
+     */
+    public void putLoaded(K key, V value, long loadTime) {
+        put(key, value);
+        mLoads.incrementAndGet();
+        mLoadTime.addAndGet(loadTime);
+    }
+
+
+    /**
+     * Remove a value only if it is still mapped to the given one.
+     *
+     * @param key   the key
+     * @param value the expected value
+     */
+    public void remove(K key, V value) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            if (segment.get(key) == value) {
+                segment.remove(key);
+            }
+        }
+    }
+
+
+    /**
+     * Remove a value.
+     *
+     * @param key the key
+     */
+    public void remove(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            segment.remove(key);
+        }
+    }
+
+
+    /**
+     * Remove all values. The statistics are kept.
+     */
+    public void clear() {
+        for (Segment<K, V> segment : mSegments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+
+    /**
+     * @return the number of cached entries
+     */
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : mSegments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+
+    /**
+     * @return the maximum number of entries
+     */
+    public int maxSize() {
+        return mMaxSize;
+    }
+
+
+    public long hitCount() {
+        return mHits.get();
+    }
+
+
+    public long missCount() {
+        return mMisses.get();
+    }
+
+
+    public long evictionCount() {
+        return mEvictions.get();
+    }
+
+
+    /**
+     * @return a snapshot of the statistics
+     */
+    public CacheStats stats() {
+        return new CacheStats(size(), mHits.get(), mMisses.get(), mEvictions.get(), mLoads.get(), mLoadTime.get());
+    }
+
+
+    /**
+     * Reset all counters.
+     */
+    public void resetStats() {
+        mHits.set(0);
+        mMisses.set(0);
+        mEvictions.set(0);
+        mLoads.set(0);
+        mLoadTime.set(0);
+    }
+
+
+    private Segment<K, V> segmentFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return mSegments[h & (mSegments.length - 1)];
+    }
+
+
+    private static class Segment<K, V> extends LinkedHashMap<K, V> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int mCapacity;
+        private final AtomicLong mEvictions;
+
+
+        Segment(int capacity, AtomicLong evictions) {
+            super(16, 0.75f, true);
+            mCapacity = capacity;
+            mEvictions = evictions;
+        }
+
+
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            if (size() > mCapacity) {
+                mEvictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pepperonas.jxaesprefs.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands messages to the SLF4J logger of their tag. slf4j-api is an optional dependency, only
+ * load this class when it is on the class path.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+public class Slf4jLogSink implements LogSink {
+
+    @Override
+    public void write(int level, String tag, String msg, Throwable tr) {
+        Logger logger = LoggerFactory.getLogger(tag);
+        switch (level) {
+            case Log.VERBOSE:
+                logger.trace(msg, tr);
+                break;
+            case Log.DEBUG:
+                logger.debug(msg, tr);
+                break;
+            case Log.INFO:
+                logger.info(msg, tr);
+                break;
+            case Log.WARN:
+                logger.warn(msg, tr);
+                break;
+            default:
+                logger.error(msg, tr);
+                break;
+        }
+    }
+
+
+    @Override
+    public void flush() {
+    }
+
+
+    @Override
+    public void close() {
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pepperonas.jxaesprefs.utils;
+
+/**
+ * Hands messages to the {@code System.Logger} of their tag, so the platform logging of Java 9 and
+ * later decides where they end up. Only load this class on such a JVM.
+ *
+ * @author Martin Pfeffer (pepperonas)
+ */
+public class SystemLoggerSink implements LogSink {
+
+    @Override
+    public void write(int level, String tag, String msg, Throwable tr) {
+        System.Logger logger = System.getLogger(tag);
+        if (tr == null) {
+            logger.log(toLevel(level), msg);
+        } else {
+            logger.log(toLevel(level), msg, tr);
+        }
+    }
+
+
+    @Override
+    public void flush() {
+    }
+
+
+    @Override
+    public void close() {
+    }
+
+
+    private static System.Logger.Level toLevel(int level) {
+        switch (level) {
+            case Log.VERBOSE:
+                return System.Logger.Level.TRACE;
+            case Log.DEBUG:
+                return System.Logger.Level.DEBUG;
+            case Log.INFO:
+                return System.Logger.Level.INFO;
+            case Log.WARN:
+                return System.Logger.Level.WARNING;
+            default:
+                return System.Logger.Level.ERROR;
+        }
+    }
+
+}
@@ -0,0 +1,1049 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs;
+
+import com.pepperonas.jxaesprefs.backend.PrefsBackend;
+import com.pepperonas.jxaesprefs.jfr.Tracer;
+import com.pepperonas.jxaesprefs.utils.CipherSuite;
+import com.pepperonas.jxaesprefs.utils.Crypt;
+import com.pepperonas.jxaesprefs.utils.LatencyStats;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * @author Martin Pfeffer (pepperonas)
+ */
+public class AesStoreTest extends TestCase {
+
+    private Preferences mFirstNode;
+    private Preferences mSecondNode;
+
+
+    protected void setUp() {
+        Preferences root = Preferences.userNodeForPackage(AesStoreTest.class).node("AesStoreTest");
+        mFirstNode = root.node("first");
+        mSecondNode = root.node("second");
+    }
+
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFirstNode.parent().removeNode();
+        super.tearDown();
+    }
+
+
+    public void testSeparateNodes() {
+        AesStore first = new AesStore.Builder(mFirstNode, "first").logMode(AesPrefs.LogMode.NONE).build();
+        AesStore second = new AesStore.Builder(mSecondNode, "second").logMode(AesPrefs.LogMode.NONE).build();
+
+        first.put("key", "first value");
+        second.put("key", "second value");
+
+        assertEquals("first value", first.get("key", null));
+        assertEquals("second value", second.get("key", null));
+    }
+
+
+    public void testConcurrentReadersAndWriters() throws InterruptedException, BackingStoreException {
+        final AesStore store = new AesStore.Builder(mFirstNode, "password").logMode(AesPrefs.LogMode.NONE).build();
+        final AtomicInteger errors = new AtomicInteger();
+
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 200; i++) {
+                        String key = "key_" + (i % 10);
+                        if (id % 2 == 0) {
+                            store.put(key, "value " + i);
+                        } else {
+                            String value = store.get(key, "value -");
+                            if (!value.startsWith("value ")) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, errors.get());
+    }
+
+
+    public void testValueCacheReadYourWrites() throws InterruptedException {
+        final AesStore store = new AesStore.Builder(new MapBackend(), "password").logMode(AesPrefs.LogMode.NONE)
+                .valueCache(1).build();
+        store.putInt("counter", -1);
+        // with room for one value the readers keep evicting the counter and loading it again.
+        store.put("other", "value");
+        final AtomicInteger stale = new AtomicInteger();
+        final AtomicInteger done = new AtomicInteger();
+
+        Thread[] readers = new Thread[2];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (done.get() == 0) {
+                        store.getInt("counter", -2);
+                        store.get("other", null);
+                    }
+                }
+            });
+            readers[t].start();
+        }
+        try {
+            for (int i = 0; i < 5000; i++) {
+                store.putInt("counter", i);
+                if (store.getInt("counter", -2) != i) {
+                    stale.incrementAndGet();
+                }
+            }
+        } finally {
+            done.set(1);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+
+        assertEquals(0, stale.get());
+        assertEquals(4999, store.getInt("counter", -2));
+    }
+
+
+    public void testSingleEntryFormat() throws BackingStoreException {
+        AesStore store = new AesStore.Builder(mFirstNode, "password").logMode(AesPrefs.LogMode.NONE).build();
+        store.put("key", "value");
+
+        String encryptedKey = store.getEncryptedKey("key");
+        assertTrue(mFirstNode.get(encryptedKey, "").startsWith("$"));
+        assertNull(mFirstNode.get(encryptedKey + "=", null));
+        assertEquals("value", store.get("key", null));
+    }
+
+
+    public void testMigratesLegacyFormat() {
+        AesStore store = new AesStore.Builder(mFirstNode, "password").logMode(AesPrefs.LogMode.NONE).build();
+        String encryptedKey = store.getEncryptedKey("legacy");
+        long iv = System.currentTimeMillis();
+        mFirstNode.put(encryptedKey, Crypt.encrypt("password", "legacy value", iv));
+        mFirstNode.putLong(encryptedKey + "=", iv);
+
+        assertEquals("legacy value", store.get("legacy", null));
+        assertTrue(mFirstNode.get(encryptedKey, "").startsWith("$"));
+        assertNull(mFirstNode.get(encryptedKey + "=", null));
+        assertEquals("legacy value", store.get("legacy", null));
+    }
+
+
+    public void testCipherSuites() {
+        AesStore cbc = new AesStore.Builder(mFirstNode, "password").logMode(AesPrefs.LogMode.NONE).build();
+        cbc.put("text", "cbc value");
+        cbc.putInt("int", 7);
+        String encryptedKey = cbc.getEncryptedKey("text");
+        assertTrue(mFirstNode.get(encryptedKey, "").startsWith("$AQ"));
+
+        for (CipherSuite suite : new CipherSuite[]{CipherSuite.GCM, CipherSuite.CTR}) {
+            AesStore store = new AesStore.Builder(mFirstNode, "password").logMode(AesPrefs.LogMode.NONE)
+                    .cipherSuite(suite).build();
+            assertEquals(encryptedKey, store.getEncryptedKey("text"));
+            assertEquals(7, store.getInt("int", 0));
+            assertEquals(suite == CipherSuite.GCM ? "cbc value" : "gcm value", store.get("text", null));
+            assertEquals(suite, Envelope.suiteOf(mFirstNode.get(encryptedKey, "")));
+
+            store.put("text", "gcm value");
+            store.putBytes("bytes", new byte[]{1, 2, 3});
+            store.storeArray("array", Arrays.asList("a", null, "c"));
+            assertEquals("gcm value", store.get("text", null));
+            assertTrue(Arrays.equals(new byte[]{1, 2, 3}, store.getBytes("bytes", null)));
+            assertEquals(Arrays.asList("a", null, "c"), store.restoreArray("array"));
+            assertEquals("gcm value", cbc.get("text", null));
+        }
+
+        AesStore gcm = new AesStore.Builder(mFirstNode, "password").logMode(AesPrefs.LogMode.NONE)
+                .cipherSuite(CipherSuite.GCM).build();
+        gcm.put("text", "sealed");
+        String stored = mFirstNode.get(encryptedKey, "");
+        byte[] sealed = Base64.getDecoder().decode(stored.substring(1));
+        sealed[sealed.length - 1] ^= 1;
+        mFirstNode.put(encryptedKey, "$" + Base64.getEncoder().encodeToString(sealed));
+        assertNull(gcm.get("text", null));
+
+        // the header is authenticated, an int can't be turned into text
+        gcm.putInt("int", 7);
+        String intKey = gcm.getEncryptedKey("int");
+        sealed = Base64.getDecoder().decode(mFirstNode.get(intKey, "").substring(1));
+        assertEquals(Envelope.TYPE_INT, sealed[2]);
+        sealed[2] = Envelope.TYPE_TEXT;
+        mFirstNode.put(intKey, "$" + Base64.getEncoder().encodeToString(sealed));
+        assertNull(gcm.get("int", null));
+    }
+
+
+    public void testMigration() throws Exception {
+        MapBackend backend = new MapBackend();
+        AesStore cbc = new AesStore.Builder(backend, "password").logMode(AesPrefs.LogMode.NONE).build();
+        for (int i = 0; i < 40; i++) {
+            cbc.putInt("int " + i, i);
+        }
+        cbc.putBytes("bytes", new byte[]{(byte) 0xff, 0, 1});
+        cbc.storeArray("array", Collections.nCopies(50, "element"));
+        String legacyKey = cbc.getEncryptedKey("legacy");
+        backend.put(legacyKey, Crypt.encrypt("password", "legacy value", 42L));
+        backend.put(legacyKey + "=", "42");
+        String legacyArray = cbc.getEncryptedKey("legacy array");
+        backend.put(legacyArray + "_size", "1");
+        backend.put(legacyArray + "=", "42");
+        backend.put(legacyArray + "_0", Crypt.encrypt("password", "element", 42L));
+        backend.put(cbc.getEncryptedKey("broken"), "$broken");
+
+        AesStore gcm = new AesStore.Builder(backend, "password").logMode(AesPrefs.LogMode.NONE)
+                .cipherSuite(CipherSuite.GCM).migrateOnRead(false).build();
+        int entries = gcm.countEntries();
+
+        // a run that is stopped right away keeps its checkpoint
+        Migration stopped = gcm.newMigration().batchSize(4).opsPerSecond(40).start();
+        Thread.sleep(150);
+        stopped.stop();
+        assertTrue(stopped.await(5, TimeUnit.SECONDS));
+        assertEquals(Migration.State.STOPPED, stopped.getState());
+        assertTrue(stopped.getScannedCount() < stopped.getTotalCount());
+        assertNotNull(backend.get(Migration.CHECKPOINT_KEY));
+
+        Migration migration = gcm.newMigration().parallelism(2).batchSize(8).start();
+        assertTrue(migration.await(10, TimeUnit.SECONDS));
+        assertEquals(Migration.State.DONE, migration.getState());
+        // entries of legacy values are gone, so the index of the checkpoint moved
+        assertTrue(migration.getResumedCount() > 0);
+        assertEquals(migration.getTotalCount(), migration.getScannedCount());
+        assertEquals(1.0, migration.getProgress());
+        assertEquals(1, stopped.getFailedCount() + migration.getFailedCount());
+        assertEquals(entries - 1, stopped.getMigratedCount() + migration.getMigratedCount());
+        assertNull(backend.get(Migration.CHECKPOINT_KEY));
+
+        for (String name : backend.keys()) {
+            if (AesStore.isValueEntry(name) && !name.endsWith("]") && !name.equals(cbc.getEncryptedKey("broken"))) {
+                assertEquals(name, CipherSuite.GCM, Envelope.suiteOf(backend.get(name)));
+            }
+        }
+        assertNull(backend.get(legacyKey + "="));
+        assertNull(backend.get(legacyArray + "_size"));
+        for (int i = 0; i < 40; i++) {
+            assertEquals(i, gcm.getInt("int " + i, -1));
+        }
+        assertTrue(Arrays.equals(new byte[]{(byte) 0xff, 0, 1}, gcm.getBytes("bytes", null)));
+        assertEquals(Collections.nCopies(50, "element"), gcm.restoreArray("array"));
+        assertEquals("legacy value", gcm.get("legacy", null));
+        assertEquals(Collections.singletonList("element"), gcm.restoreArray("legacy array"));
+
+        Migration again = gcm.newMigration().start();
+        assertTrue(again.await(10, TimeUnit.SECONDS));
+        assertEquals(0, again.getMigratedCount());
+    }
+
+
+    public void testRekey() throws Exception {
+        MapBackend backend = new MapBackend();
+        AesStore store = new AesStore.Builder(backend, "old").logMode(AesPrefs.LogMode.NONE).valueCache(16).build();
+        for (int i = 0; i < 40; i++) {
+            store.putInt("int " + i, i);
+        }
+        store.putBytes("bytes", new byte[]{(byte) 0xff, 0, 1});
+        store.storeArray("array", Collections.nCopies(50, "element"));
+        String legacyKey = store.getEncryptedKey("legacy");
+        backend.put(legacyKey, Crypt.encrypt("old", "legacy value", 42L));
+        backend.put(legacyKey + "=", "42");
+        OutputStream closed = store.openOutputStream("stream");
+        closed.write(new byte[1000]);
+        closed.close();
+        OutputStream open = store.openOutputStream("open stream");
+        open.write(new byte[1000]);
+
+        Migration migration = store.rekey("new");
+        assertTrue(store.isRekeyPending());
+        try {
+            store.rekey("other");
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+
+        // nothing is moved yet, reads fall back to the previous password
+        assertEquals(7, store.getInt("int 7", -1));
+        assertEquals("legacy value", store.get("legacy", null));
+        assertEquals(Collections.nCopies(50, "element"), store.restoreArray("array"));
+        assertEquals(1000, readFully(store.openInputStream("stream")).length);
+        assertEquals(2, store.getAllInts(Arrays.asList("int 0", "int 39", "int 40")).size());
+        store.putInt("int 0", 100);
+        assertEquals(100, store.getInt("int 0", -1));
+        // the stream opened before is moved when it is closed
+        open.close();
+        assertEquals(1000, readFully(store.openInputStream("open stream")).length);
+
+        migration.parallelism(2).batchSize(8).start();
+        assertTrue(migration.await(10, TimeUnit.SECONDS));
+        assertEquals(Migration.State.DONE, migration.getState());
+        assertEquals(0, migration.getFailedCount());
+        assertFalse(store.isRekeyPending());
+        assertNull(backend.get(Migration.REKEY_CHECKPOINT_KEY));
+
+        AesStore reopened = new AesStore.Builder(backend, "new").logMode(AesPrefs.LogMode.NONE).build();
+        assertEquals(100, reopened.getInt("int 0", -1));
+        for (int i = 1; i < 40; i++) {
+            assertEquals(i, reopened.getInt("int " + i, -1));
+        }
+        assertTrue(Arrays.equals(new byte[]{(byte) 0xff, 0, 1}, reopened.getBytes("bytes", null)));
+        assertEquals(Collections.nCopies(50, "element"), reopened.restoreArray("array"));
+        assertEquals("legacy value", reopened.get("legacy", null));
+        assertEquals(1000, readFully(reopened.openInputStream("stream")).length);
+        assertEquals(1000, readFully(reopened.openInputStream("open stream")).length);
+        assertNull(backend.get(legacyKey + "="));
+        assertEquals(-1, new AesStore.Builder(backend, "old").logMode(AesPrefs.LogMode.NONE).build()
+                .getInt("int 1", -1));
+    }
+
+
+    public void testRekeyResumes() throws Exception {
+        MapBackend backend = new MapBackend();
+        AesStore store = new AesStore.Builder(backend, "old").logMode(AesPrefs.LogMode.NONE).build();
+        for (int i = 0; i < 40; i++) {
+            store.put("key " + i, "value " + i);
+        }
+
+        // a rekey that moved some entries before the process ended
+        Migration stopped = store.rekey("new").batchSize(4).opsPerSecond(40).start();
+        Thread.sleep(150);
+        stopped.stop();
+        assertTrue(stopped.await(5, TimeUnit.SECONDS));
+        assertTrue(stopped.getMigratedCount() > 0);
+        assertNotNull(backend.get(Migration.REKEY_CHECKPOINT_KEY));
+
+        // on a store with the previous password it can only continue to the same password
+        AesStore old = new AesStore.Builder(backend, "old").logMode(AesPrefs.LogMode.NONE).build();
+        try {
+            old.rekey("other");
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        AesStore current = new AesStore.Builder(backend, "new").logMode(AesPrefs.LogMode.NONE).build();
+        try {
+            current.resumeRekey("other");
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+
+        Migration resumed = current.resumeRekey("old");
+        assertEquals("value 39", current.get("key 39", null));
+        resumed.start();
+        assertTrue(resumed.await(10, TimeUnit.SECONDS));
+        assertEquals(Migration.State.DONE, resumed.getState());
+        assertEquals(40, stopped.getMigratedCount() + resumed.getMigratedCount());
+        assertFalse(current.isRekeyPending());
+        for (int i = 0; i < 40; i++) {
+            assertEquals("value " + i, current.get("key " + i, null));
+        }
+    }
+
+
+    public void testRekeyKeepsFailedEntries() throws Exception {
+        MapBackend backend = new MapBackend();
+        AesStore store = new AesStore.Builder(backend, "old").logMode(AesPrefs.LogMode.NONE).build();
+        for (int i = 0; i < 40; i++) {
+            store.put("key " + i, "value " + i);
+        }
+
+        Migration failed = store.rekey("new");
+        backend.mFailingKey = store.getEncryptedKey("key 7");
+        failed.batchSize(8).start();
+        assertTrue(failed.await(10, TimeUnit.SECONDS));
+        assertEquals(Migration.State.FAILED, failed.getState());
+        assertEquals(1, failed.getFailedCount());
+        assertTrue(store.isRekeyPending());
+
+        // the entry is still under the previous password and readable with it
+        assertEquals("value 7", store.get("key 7", null));
+        assertEquals("value 7", new AesStore.Builder(backend, "old").logMode(AesPrefs.LogMode.NONE).build()
+                .get("key 7", null));
+
+        backend.mFailingKey = null;
+        AesStore current = new AesStore.Builder(backend, "new").logMode(AesPrefs.LogMode.NONE).build();
+        Migration resumed = current.resumeRekey("old").start();
+        assertTrue(resumed.await(10, TimeUnit.SECONDS));
+        assertEquals(Migration.State.DONE, resumed.getState());
+        assertEquals(1, resumed.getMigratedCount());
+        assertFalse(current.isRekeyPending());
+        assertNull(backend.get(Migration.REKEY_CHECKPOINT_KEY));
+        for (int i = 0; i < 40; i++) {
+            assertEquals("value " + i, current.get("key " + i, null));
+        }
+    }
+
+
+    public void testBinaryPrimitives() {
+        AesStore store = new AesStore.Builder(mFirstNode, "password").logMode(AesPrefs.LogMode.NONE).build();
+        store.putInt("int", -42);
+        store.putLong("long", Long.MIN_VALUE);
+        store.putDouble("double", Math.PI);
+        store.putFloat("float", 1.5f);
+        store.putBoolean("boolean", true);
+
+        // a fixed-width value is shorter than its text, and than the sealed text of a long
+        String sealedLong = mFirstNode.get(store.getEncryptedKey("long"), "");
+        store.put("text", String.valueOf(Long.MIN_VALUE));
+        assertTrue(sealedLong.length() < mFirstNode.get(store.getEncryptedKey("text"), "").length());
+
+        assertEquals(-42, store.getInt("int", 0));
+        assertEquals(Long.MIN_VALUE, store.getLong("long", 0L));
+        assertEquals(Math.PI, store.getDouble("double", 0d));
+        assertEquals(1.5f, store.getFloat("float", 0f));
+        assertTrue(store.getBoolean("boolean", false));
+        assertEquals("-42", store.get("int", null));
+
+        // values stored as text are still read by the typed getters.
+        store.put("textInt", "7");
+        assertEquals(7, store.getInt("textInt", 0));
+        assertEquals(Long.MIN_VALUE, store.getLong("text", 0L));
+
+        AesStore cached = new AesStore.Builder(mFirstNode, "password").logMode(AesPrefs.LogMode.NONE)
+                .valueCache(16).build();
+        assertEquals(Integer.valueOf(-42), cached.getAllInts(Arrays.asList("int", "textInt")).get("int"));
+        assertEquals(Math.PI, cached.getDouble("double", 0d));
+        assertEquals(Math.PI, cached.getDouble("double", 0d));
+    }
+
+
+    public void testBytes() {
+        AesStore store = new AesStore.Builder(mFirstNode, "password").logMode(AesPrefs.LogMode.NONE).build();
+        byte[] blob = new byte[1000];
+        new Random(42).nextBytes(blob);
+
+        store.putBytes("blob", blob);
+        assertTrue(Arrays.equals(blob, store.getBytes("blob", null)));
+
+        store.putBytes("buffer", ByteBuffer.wrap(blob, 10, 20));
+        assertEquals(ByteBuffer.wrap(blob, 10, 20), store.getByteBuffer("buffer"));
+
+        store.put("text", "abc");
+        assertTrue(Arrays.equals("abc".getBytes(), store.getBytes("text", null)));
+        assertNull(store.getBytes("missing", null));
+    }
+
+
+    public void testPackedArray() throws BackingStoreException {
+        AesStore store = new AesStore.Builder(mFirstNode, "password").logMode(AesPrefs.LogMode.NONE).build();
+        List<String> values = new ArrayList<String>();
+        for (int i = 0; i < 10000; i++) {
+            values.add("value " + i);
+        }
+        values.set(3, null);
+        values.set(4, "");
+        int entries = mFirstNode.keys().length;
+
+        store.storeArray("large", values);
+        // one sealed list, split over a few chunks only
+        assertTrue(mFirstNode.keys().length < 40);
+        assertEquals(values, store.restoreArray("large"));
+
+        store.storeArray("large", Arrays.asList("a", "b"));
+        assertEquals(entries + 1, mFirstNode.keys().length);
+        assertEquals(Arrays.asList("a", "b"), store.restoreArray("large"));
+        assertEquals(Collections.<String>emptyList(), store.restoreArray("missing"));
+    }
+
+
+    public void testMigratesLegacyArray() throws BackingStoreException {
+        AesStore store = new AesStore.Builder(mFirstNode, "password").logMode(AesPrefs.LogMode.NONE).build();
+        String encryptedKey = store.getEncryptedKey("legacy");
+        int entries = mFirstNode.keys().length;
+        long iv = System.currentTimeMillis();
+        mFirstNode.putInt(encryptedKey + "_size", 2);
+        mFirstNode.putLong(encryptedKey + "=", iv);
+        mFirstNode.put(encryptedKey + "_0", Crypt.encrypt("password", "first", iv));
+        mFirstNode.put(encryptedKey + "_1", Crypt.encrypt("password", "second", iv));
+
+        assertEquals(Arrays.asList("first", "second"), store.restoreArray("legacy"));
+        assertEquals(entries + 1, mFirstNode.keys().length);
+        assertEquals(Arrays.asList("first", "second"), store.restoreArray("legacy"));
+    }
+
+
+    public void testStreams() throws IOException, BackingStoreException {
+        AesStore store = new AesStore.Builder(mFirstNode, "password").logMode(AesPrefs.LogMode.NONE).build();
+        byte[] document = new byte[100000];
+        new Random(42).nextBytes(document);
+        int entries = mFirstNode.keys().length;
+
+        OutputStream out = store.openOutputStream("document");
+        for (int i = 0; i < document.length; i += 1000) {
+            out.write(document, i, 1000);
+        }
+        out.close();
+        assertEquals(document.length, readFully(store.openInputStream("document")).length);
+        assertTrue(Arrays.equals(document, readFully(store.openInputStream("document"))));
+
+        // a new value replaces all chunks of the previous one
+        out = store.openOutputStream("document");
+        out.write("short".getBytes("UTF-8"));
+        out.close();
+        assertEquals("short", new String(readFully(store.openInputStream("document")), "UTF-8"));
+        assertEquals(entries + 2, mFirstNode.keys().length);
+
+        assertNull(store.openInputStream("missing"));
+    }
+
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[777];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+
+    public void testShards() throws BackingStoreException {
+        AesStore unsharded = new AesStore.Builder(mFirstNode, "password").logMode(AesPrefs.LogMode.NONE).build();
+        unsharded.put("old", "old value");
+
+        AesStore store = new AesStore.Builder(mFirstNode, "password").logMode(AesPrefs.LogMode.NONE).shards(4).build();
+        for (int i = 0; i < 100; i++) {
+            store.putInt("key" + i, i);
+        }
+        store.flush();
+        assertEquals(4, mFirstNode.childrenNames().length);
+        for (String child : mFirstNode.childrenNames()) {
+            int entries = mFirstNode.node(child).keys().length;
+            assertTrue(entries > 10 && entries < 50);
+        }
+
+        // entries written before sharding are read from the node until they are written again
+        assertEquals("old value", store.get("old", null));
+        assertEquals(2, mFirstNode.keys().length);
+        store.put("old", "new value");
+        assertEquals(1, mFirstNode.keys().length);
+        assertEquals("new value", store.get("old", null));
+        assertEquals(99, store.getInt("key99", 0));
+        assertEquals(101, store.countEntries());
+        assertEquals(102, store.countBackendEntries());
+
+        store.deleteAll();
+        assertEquals(0, store.countEntries());
+    }
+
+
+    public void testCustomBackend() throws IOException, BackingStoreException {
+        MapBackend backend = new MapBackend();
+        AesStore store = new AesStore.Builder(backend, "password").logMode(AesPrefs.LogMode.NONE).build();
+        assertNull(store.node());
+
+        store.put("key", "value");
+        store.putInt("int", 42);
+        store.storeArray("array", Collections.nCopies(100, "element"));
+        OutputStream out = store.openOutputStream("stream");
+        out.write(new byte[1000]);
+        out.close();
+
+        // nothing was written to a preferences node
+        assertEquals(0, mFirstNode.keys().length);
+        assertTrue(backend.mEntries.containsKey(store.getEncryptedKey("key")));
+        for (String value : backend.mEntries.values()) {
+            assertTrue(value.length() <= backend.maxValueLength());
+        }
+
+        AesStore reopened = new AesStore.Builder(backend, "password").logMode(AesPrefs.LogMode.NONE).build();
+        assertEquals("value", reopened.get("key", null));
+        assertEquals(42, reopened.getInt("int", 0));
+        assertEquals(Collections.nCopies(100, "element"), reopened.restoreArray("array"));
+        assertEquals(1000, readFully(reopened.openInputStream("stream")).length);
+
+        reopened.deleteAll();
+        assertTrue(backend.mEntries.isEmpty());
+    }
+
+
+    public void testDurability() throws InterruptedException {
+        MapBackend backend = new MapBackend();
+        AesStore store = new AesStore.Builder(backend, "password").logMode(AesPrefs.LogMode.NONE).build();
+        store.put("toggle", "on");
+        assertEquals(0, backend.mFlushes.get());
+
+        store.withDurability(AesStore.Durability.SYNC).put("credential", "secret");
+        assertEquals(1, backend.mFlushes.get());
+        assertEquals(1, store.getFlushCount());
+        assertTrue(store.getMaxFlushNanos() <= store.getFlushNanos());
+
+        store.setDurability(AesStore.Durability.ASYNC);
+        for (int i = 0; i < 100; i++) {
+            store.putInt("counter", i);
+        }
+        for (int i = 0; i < 100 && backend.mFlushes.get() == 1; i++) {
+            Thread.sleep(10);
+        }
+        // the puts share a few flushes
+        assertTrue(backend.mFlushes.get() > 1);
+        assertTrue(backend.mFlushes.get() < 100);
+
+        store.setDurability(AesStore.Durability.SYNC);
+        // wait for the last scheduled flush
+        int flushes;
+        do {
+            flushes = backend.mFlushes.get();
+            Thread.sleep(20);
+        } while (flushes != backend.mFlushes.get());
+        store.withDurability(AesStore.Durability.NONE).put("toggle", "off");
+        assertEquals(flushes, backend.mFlushes.get());
+    }
+
+
+    public void testLatencyStats() {
+        AesStore store = new AesStore.Builder(new MapBackend(), "password").logMode(AesPrefs.LogMode.NONE).build();
+        store.put("text", "value");
+        store.putInt("int", 1);
+        assertEquals("value", store.get("text", null));
+        assertEquals(1, store.getInt("int", 0));
+        assertEquals(1, store.getInt("int", 0));
+        assertEquals(-1, store.getInt("missing", -1));
+        store.storeArray("array", Arrays.asList("a", "b"));
+        store.restoreArray("array");
+
+        Map<AesStore.Operation, LatencyStats> stats = store.getLatencyStats();
+        assertEquals(1, stats.get(AesStore.Operation.PUT).count());
+        assertEquals(1, stats.get(AesStore.Operation.GET).count());
+        assertEquals(2, stats.get(AesStore.Operation.GET_INT).count());
+        assertEquals(1, stats.get(AesStore.Operation.MISS).count());
+        assertEquals(1, stats.get(AesStore.Operation.STORE_ARRAY).count());
+        assertEquals(1, stats.get(AesStore.Operation.RESTORE_ARRAY).count());
+        assertEquals(0, stats.get(AesStore.Operation.PUT_BYTES).count());
+        assertTrue(stats.get(AesStore.Operation.GET).max() > 0);
+        assertTrue(store.getLatencyStats(AesStore.Operation.GET_INT).p99() >= store.getLatencyStats(
+                AesStore.Operation.GET_INT).p50());
+
+        store.resetExecutionTime();
+        assertEquals(0, store.getExecutionTime());
+        assertEquals(2, store.getLatencyStats(AesStore.Operation.GET_INT).count());
+        store.resetLatencyStats();
+        assertEquals(0, store.getLatencyStats(AesStore.Operation.GET_INT).count());
+    }
+
+
+    public void testMBean() throws Exception {
+        MapBackend backend = new MapBackend();
+        AesStore store = new AesStore.Builder(backend, "password").logMode(AesPrefs.LogMode.NONE).build();
+        ObjectName name = store.registerMBean();
+        assertNotNull(name);
+        assertSame(name, store.registerMBean());
+        try {
+            store.put("text", "value");
+            store.putBytes("bytes", new byte[100]);
+            store.storeArray("array", Collections.nCopies(100, "element"));
+            store.get("text", null);
+            store.get("missing", null);
+            backend.put(store.getEncryptedKey("broken"), "$broken");
+            store.get("broken", null);
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(4, server.getAttribute(name, "EntryCount"));
+            assertTrue((Integer) server.getAttribute(name, "BackendEntryCount") > 4);
+            assertEquals(2L, server.getAttribute(name, "MissCount"));
+            assertEquals(1L, server.getAttribute(name, "ErrorCount"));
+            assertEquals(6L, server.getAttribute(name, "OperationCount"));
+            assertTrue((Double) server.getAttribute(name, "AverageLatency") > 0);
+            TabularData counts = (TabularData) server.getAttribute(name, "OperationCounts");
+            assertEquals(1L, counts.get(new Object[]{"PUT_BYTES"}).get("value"));
+
+            server.invoke(name, "resetStatistics", null, null);
+            assertEquals(0L, server.getAttribute(name, "OperationCount"));
+            assertEquals(0L, server.getAttribute(name, "ErrorCount"));
+            assertEquals(Boolean.TRUE, server.invoke(name, "flush", null, null));
+        } finally {
+            store.unregisterMBean();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+
+    public void testFlightRecording() throws Exception {
+        if (!Tracer.isAvailable()) {
+            return;
+        }
+        AesStore store = new AesStore.Builder(new MapBackend(), "password").logMode(AesPrefs.LogMode.NONE).build();
+        store.put("warm up", "value");
+
+        Recording recording = new Recording();
+        recording.enable("com.pepperonas.jxaesprefs.Operation").withThreshold(Duration.ZERO);
+        recording.enable("com.pepperonas.jxaesprefs.Crypt").withThreshold(Duration.ZERO);
+        recording.start();
+        try {
+            store.put("text", "value");
+            store.getInt("missing", 0);
+            Crypt.encrypt("password", "text", 42L);
+        } finally {
+            recording.stop();
+        }
+        assertFalse(Tracer.isRecording());
+
+        File file = File.createTempFile("AesStoreTest", ".jfr");
+        try {
+            recording.dump(file.toPath());
+            Map<String, RecordedEvent> events = new HashMap<String, RecordedEvent>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+                String type = event.getEventType().getName();
+                events.put(type.endsWith("Crypt") ? "Crypt" : event.getString("operation"), event);
+            }
+
+            RecordedEvent put = events.get("PUT");
+            assertNotNull(put);
+            assertEquals(5, put.getInt("valueSize"));
+            assertTrue(put.getDuration("cipher").toNanos() > 0);
+            assertTrue(put.getDuration("base64").toNanos() > 0);
+            assertTrue(put.getDuration("backend").toNanos() > 0);
+            assertTrue(put.getDuration("keyName").toNanos() > 0);
+
+            RecordedEvent miss = events.get("MISS");
+            assertNotNull(miss);
+            assertFalse(put.getInt("keyHash") == miss.getInt("keyHash"));
+            assertEquals(0, miss.getDuration("cipher").toNanos());
+
+            RecordedEvent crypt = events.get("Crypt");
+            assertNotNull(crypt);
+            assertEquals("encrypt", crypt.getString("operation"));
+            assertEquals(4, crypt.getInt("size"));
+        } finally {
+            file.delete();
+            recording.close();
+        }
+    }
+
+
+    /**
+     * A backend with tiny values, so everything large is chunked.
+     */
+    private static class MapBackend implements PrefsBackend {
+
+        final Map<String, String> mEntries = new ConcurrentHashMap<String, String>();
+        final AtomicInteger mFlushes = new AtomicInteger();
+        volatile boolean mFailWrites;
+        volatile String mFailingKey;
+
+
+        @Override
+        public String name() {
+            return "map";
+        }
+
+
+        @Override
+        public String get(String key) {
+            return mEntries.get(key);
+        }
+
+
+        @Override
+        public void put(String key, String value) {
+            if (mFailWrites || key.equals(mFailingKey)) {
+                throw new IllegalStateException("write failed");
+            }
+            assertTrue(value.length() <= maxValueLength());
+            mEntries.put(key, value);
+        }
+
+
+        @Override
+        public void remove(String key) {
+            mEntries.remove(key);
+        }
+
+
+        @Override
+        public void batch(Map<String, String> entries) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                if (entry.getValue() == null) {
+                    remove(entry.getKey());
+                } else {
+                    put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+
+        @Override
+        public String[] keys() {
+            return mEntries.keySet().toArray(new String[0]);
+        }
+
+
+        @Override
+        public void clear() {
+            mEntries.clear();
+        }
+
+
+        @Override
+        public void flush() throws BackingStoreException {
+            mFlushes.incrementAndGet();
+            try {
+                // as slow as a small fsync
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                throw new BackingStoreException(e);
+            }
+        }
+
+
+        @Override
+        public int maxValueLength() {
+            return 256;
+        }
+
+
+        @Override
+        public void addChangeListener(ChangeListener listener) {
+        }
+
+
+        @Override
+        public void removeChangeListener(ChangeListener listener) {
+        }
+    }
+
+
+    public void testPutAllAndBatch() {
+        AesStore store = new AesStore.Builder(mFirstNode, "password").logMode(AesPrefs.LogMode.NONE).build();
+
+        Map<String, Object> entries = new HashMap<String, Object>();
+        entries.put("string", "value");
+        entries.put("int", 42);
+        entries.put("boolean", true);
+        assertTrue(store.putAll(entries));
+
+        assertEquals("value", store.get("string", null));
+        assertEquals(42, store.getInt("int", 0));
+        assertTrue(store.getBoolean("boolean", false));
+
+        AesStore.Batch batch = store.beginBatch().putLong("long", 7L).putDouble("double", 0.5);
+        assertEquals(-1L, store.getLong("long", -1L));
+        assertTrue(batch.commit());
+        assertEquals(7L, store.getLong("long", -1L));
+        assertEquals(0.5, store.getDouble("double", 0));
+
+        try {
+            store.putAll(Collections.singletonMap("list", new Object()));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+
+    public void testGetAll() {
+        AesStore store = new AesStore.Builder(mFirstNode, "password").logMode(AesPrefs.LogMode.NONE).build();
+        List<String> keys = new ArrayList<String>();
+        AesStore.Batch batch = store.beginBatch();
+        for (int i = 0; i < 500; i++) {
+            keys.add("key_" + i);
+            batch.putInt("key_" + i, i);
+        }
+        batch.commit();
+        keys.add("missing");
+
+        Map<String, String> values = store.getAll(keys, true);
+        assertEquals(500, values.size());
+        assertEquals("123", values.get("key_123"));
+        assertFalse(values.containsKey("missing"));
+
+        Map<String, Integer> ints = store.getAllInts(keys);
+        assertEquals(Integer.valueOf(499), ints.get("key_499"));
+    }
+
+
+    public void testWriteBehind() {
+        AesStore store = new AesStore.Builder(mFirstNode, "password").logMode(AesPrefs.LogMode.NONE)
+                .writeBehind(16, AesStore.Backpressure.BLOCK).writeBehindDelay(10000).build();
+        try {
+            for (int i = 0; i < 100; i++) {
+                store.putInt("counter", i);
+            }
+            store.storeArray("array", Arrays.asList("a", "b"));
+
+            // read-your-writes before anything reached the node
+            assertEquals(99, store.getInt("counter", -1));
+            assertEquals(Arrays.asList("a", "b"), store.restoreArray("array"));
+            assertTrue(store.getPendingWrites() <= 2);
+
+            assertTrue(store.flush());
+            assertEquals(0, store.getPendingWrites());
+            assertNotNull(mFirstNode.get(store.getEncryptedKey("counter"), null));
+        } finally {
+            store.close();
+        }
+
+        AesStore reopened = new AesStore.Builder(mFirstNode, "password").logMode(AesPrefs.LogMode.NONE).build();
+        assertEquals(99, reopened.getInt("counter", -1));
+        assertEquals(Arrays.asList("a", "b"), reopened.restoreArray("array"));
+    }
+
+
+    public void testWriteBehindKeepsFailedWrites() {
+        MapBackend backend = new MapBackend();
+        AesStore store = new AesStore.Builder(backend, "password").logMode(AesPrefs.LogMode.NONE)
+                .writeBehind(16, AesStore.Backpressure.BLOCK).writeBehindDelay(10000).build();
+        try {
+            backend.mFailWrites = true;
+            store.putInt("counter", 1);
+            try {
+                store.flush();
+                fail();
+            } catch (IllegalStateException expected) {
+            }
+            try {
+                store.withDurability(AesStore.Durability.SYNC).put("text", "value");
+                fail();
+            } catch (IllegalStateException expected) {
+            }
+            assertEquals(2, store.getPendingWrites());
+            assertEquals(1, store.getInt("counter", -1));
+
+            // the retry writes the entries that were acknowledged before
+            backend.mFailWrites = false;
+            assertTrue(store.flush());
+            assertEquals(0, store.getPendingWrites());
+        } finally {
+            store.close();
+        }
+
+        AesStore reopened = new AesStore.Builder(backend, "password").logMode(AesPrefs.LogMode.NONE).build();
+        assertEquals(1, reopened.getInt("counter", -1));
+        assertEquals("value", reopened.get("text", null));
+    }
+
+
+    public void testWriteBehindBackpressure() {
+        AesStore store = new AesStore.Builder(mFirstNode, "password").logMode(AesPrefs.LogMode.NONE)
+                .writeBehind(1, AesStore.Backpressure.FAIL).writeBehindDelay(10000).build();
+        try {
+            store.put("first", "1");
+            try {
+                store.put("second", "2");
+                // the flusher may already have drained the first key
+            } catch (IllegalStateException expected) {
+                assertEquals(-1, store.getInt("second", -1));
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+
+    public void testLaunchCounter() throws InterruptedException {
+        final AesStore store = new AesStore.Builder(mFirstNode, "password").logMode(AesPrefs.LogMode.NONE).build();
+        store.initOrIncrementLaunchCounter();
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 25; i++) {
+                        store.initOrIncrementLaunchCounter();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(100, store.getLaunchCounter());
+    }
+
+
+    public void testLaunchCounterDuringRekey() throws Exception {
+        final AesStore store = new AesStore.Builder(new MapBackend(), "old").logMode(AesPrefs.LogMode.NONE)
+                .writeBehind(4, AesStore.Backpressure.BLOCK).writeBehindDelay(1).build();
+        try {
+            store.initOrIncrementLaunchCounter();
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                final int id = t;
+                threads[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < 200; i++) {
+                            // the other keys keep the write-behind queue busy.
+                            store.putInt("key " + id + " " + (i % 8), i);
+                            store.initOrIncrementLaunchCounter();
+                            store.initInstallationDate();
+                        }
+                    }
+                });
+                threads[t].start();
+            }
+            Migration migration = store.rekey("new").start();
+            for (Thread thread : threads) {
+                thread.join(TimeUnit.SECONDS.toMillis(20));
+                assertFalse(thread.isAlive());
+            }
+            assertTrue(migration.await(10, TimeUnit.SECONDS));
+
+            assertEquals(800, store.getLaunchCounter());
+            assertTrue(store.getInstallationDate() > 0);
+        } finally {
+            store.close();
+        }
+    }
+
+}
@@ -16,12 +16,14 @@
 
 package com.pepperonas.jxaesprefs;
 
+import com.pepperonas.jxaesprefs.utils.Crypt;
 import com.pepperonas.jxaesprefs.utils.Log;
 
 import junit.framework.TestCase;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.prefs.Preferences;
 
 /**
  * @author Martin Pfeffer (pepperonas)
@@ -113,6 +115,40 @@ public class JxAesPrefsTest extends TestCase {
     }
 
 
+    public void testKeyNameCache() {
+        AesPrefs.put("cached_key", "value");
+        long hits = AesPrefs.getKeyNameCacheHits();
+        assertEquals("value", AesPrefs.get("cached_key", null));
+        assertEquals(hits + 1, AesPrefs.getKeyNameCacheHits());
+    }
+
+
+    public void testValueCache() throws InterruptedException {
+        AesPrefs.enableValueCache(16);
+        try {
+            AesPrefs.put("value_cache_key", "first");
+            assertEquals("first", AesPrefs.get("value_cache_key", null));
+            assertEquals(1, AesPrefs.getValueCacheStats().hitCount());
+
+            // another writer changes the value behind the cache's back
+            long iv = System.currentTimeMillis() + 1;
+            String encryptedKey = AesPrefs.getEncryptedKey("value_cache_key");
+            Preferences prefs = Preferences.userNodeForPackage(JxAesPrefsTest.class);
+            prefs.put(encryptedKey, Crypt.encrypt("password", "second", iv));
+            prefs.putLong(encryptedKey + "=", iv);
+
+            String value = null;
+            for (int i = 0; i < 100 && !"second".equals(value); i++) {
+                Thread.sleep(20);
+                value = AesPrefs.get("value_cache_key", null);
+            }
+            assertEquals("second", value);
+        } finally {
+            AesPrefs.disableValueCache();
+        }
+    }
+
+
     public void testXGetEncryptedContent() {
         String s = AesPrefs.getEncryptedContent();
         Log.d(TAG, "testGetEncryptedContent\n" + s + "\n");
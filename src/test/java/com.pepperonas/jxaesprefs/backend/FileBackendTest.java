@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs.backend;
+
+import com.pepperonas.jxaesprefs.AesPrefs;
+import com.pepperonas.jxaesprefs.AesStore;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author Martin Pfeffer (pepperonas)
+ */
+public class FileBackendTest extends TestCase {
+
+    private File mFile;
+
+
+    @Override
+    protected void setUp() throws Exception {
+        mFile = File.createTempFile("FileBackendTest", ".log");
+    }
+
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+
+    public void testPutGetRemove() throws Exception {
+        FileBackend backend = new FileBackend(mFile);
+        backend.put("a", "1");
+        backend.put("b", "2");
+        backend.put("a", "3");
+        backend.remove("b");
+        Map<String, String> batch = new LinkedHashMap<String, String>();
+        batch.put("c", "4");
+        batch.put("a", null);
+        backend.batch(batch);
+
+        assertNull(backend.get("a"));
+        assertNull(backend.get("b"));
+        assertEquals("4", backend.get("c"));
+        assertEquals(Arrays.asList("c"), Arrays.asList(backend.keys()));
+        assertTrue(backend.getGarbageBytes() > 0);
+        backend.close();
+
+        FileBackend reopened = new FileBackend(mFile);
+        assertEquals("4", reopened.get("c"));
+        assertEquals(1, reopened.keys().length);
+        reopened.close();
+    }
+
+
+    public void testLockedWhileOpen() throws Exception {
+        FileBackend backend = new FileBackend(mFile);
+        try {
+            new FileBackend(mFile);
+            fail("a second backend must not open the same file");
+        } catch (IOException expected) {
+        } finally {
+            backend.close();
+        }
+    }
+
+
+    public void testCompact() throws Exception {
+        FileBackend backend = new FileBackend(mFile);
+        for (int i = 0; i < 1000; i++) {
+            backend.put("key" + (i % 10), "value" + i);
+        }
+        long before = backend.getFileBytes();
+        backend.compact();
+        assertEquals(0, backend.getGarbageBytes());
+        assertTrue(backend.getFileBytes() < before / 50);
+        backend.put("key0", "new");
+        backend.close();
+
+        FileBackend reopened = new FileBackend(mFile);
+        assertEquals("new", reopened.get("key0"));
+        assertEquals("value999", reopened.get("key9"));
+        assertEquals(10, reopened.keys().length);
+        reopened.close();
+    }
+
+
+    public void testCompactsInBackground() throws Exception {
+        FileBackend backend = new FileBackend(mFile);
+        char[] padding = new char[100];
+        Arrays.fill(padding, 'x');
+        // the writes go on while the background compactions copy the file
+        for (int i = 0; i < 50000; i++) {
+            backend.put("key" + (i % 100), i + new String(padding));
+        }
+        for (int i = 0; i < 100 && backend.getFileBytes() > 50000L * 100 / 2; i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(backend.getFileBytes() <= 50000L * 100 / 2);
+        for (int i = 0; i < 100; i++) {
+            assertEquals((49900 + i) + new String(padding), backend.get("key" + i));
+        }
+        backend.close();
+
+        FileBackend reopened = new FileBackend(mFile);
+        assertEquals(100, reopened.keys().length);
+        assertEquals(49999 + new String(padding), reopened.get("key99"));
+        reopened.close();
+    }
+
+
+    public void testDropsDamagedTail() throws Exception {
+        FileBackend backend = new FileBackend(mFile);
+        backend.put("a", "1");
+        backend.put("b", "2");
+        backend.close();
+
+        // cut the last record in half, as a crash during the append would
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        FileBackend reopened = new FileBackend(mFile);
+        assertEquals("1", reopened.get("a"));
+        assertNull(reopened.get("b"));
+        reopened.put("b", "3");
+        reopened.close();
+
+        reopened = new FileBackend(mFile);
+        assertEquals("3", reopened.get("b"));
+        reopened.close();
+    }
+
+
+    public void testStore() throws Exception {
+        FileBackend backend = new FileBackend(mFile);
+        AesStore store = new AesStore.Builder(backend, "password").logMode(AesPrefs.LogMode.NONE).build();
+        store.put("key", "value");
+        store.putLong("long", 42L);
+        store.storeArray("array", Arrays.asList("a", "b"));
+        store.flush();
+        backend.close();
+
+        backend = new FileBackend(mFile);
+        store = new AesStore.Builder(backend, "password").logMode(AesPrefs.LogMode.NONE).build();
+        assertEquals("value", store.get("key", null));
+        assertEquals(42L, store.getLong("long", 0L));
+        assertEquals(Arrays.asList("a", "b"), store.restoreArray("array"));
+        backend.close();
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs.utils;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * @author Martin Pfeffer (pepperonas)
+ */
+public class CryptContextTest extends TestCase {
+
+    private static final String PASSWORD = "password";
+
+
+    public void testEncryptMatchesCrypt() {
+        CryptContext crypt = new CryptContext(PASSWORD);
+        long iv = 1465422646000L;
+        assertEquals(Crypt.encrypt(PASSWORD, "Test String", iv), crypt.encrypt("Test String", iv));
+    }
+
+
+    public void testDecryptCryptOutput() {
+        CryptContext crypt = new CryptContext(PASSWORD);
+        long iv = System.currentTimeMillis();
+        String encrypted = Crypt.encrypt(PASSWORD, "\u00e4\u00f6\u00fc - 2015", iv);
+        assertEquals("\u00e4\u00f6\u00fc - 2015", crypt.decrypt(encrypted, iv));
+    }
+
+
+    public void testCipherSuites() {
+        CryptContext crypt = new CryptContext(PASSWORD);
+        byte[] plain = "\u00e4\u00f6\u00fc - 2015".getBytes();
+        for (CipherSuite suite : CipherSuite.values()) {
+            byte[] nonce = crypt.newNonce(suite);
+            assertEquals(suite.getNonceLength(), nonce.length);
+            byte[] encrypted = crypt.encrypt(suite, nonce, plain, 0, plain.length);
+            assertTrue(Arrays.equals(plain, crypt.decrypt(suite, nonce, encrypted, 0, encrypted.length)));
+            assertTrue(Arrays.equals(plain, Crypt.decrypt(PASSWORD, Crypt.encrypt(PASSWORD, plain, suite), suite)));
+            assertSame(suite, CipherSuite.forId(suite.getId()));
+        }
+
+        byte[] nonce = crypt.newNonce(CipherSuite.CTR);
+        assertEquals(plain.length, crypt.encrypt(CipherSuite.CTR, nonce, plain, 0, plain.length).length);
+
+        nonce = crypt.newNonce(CipherSuite.GCM);
+        byte[] encrypted = crypt.encrypt(CipherSuite.GCM, nonce, plain, 0, plain.length);
+        encrypted[0] ^= 1;
+        assertNull(crypt.decrypt(CipherSuite.GCM, nonce, encrypted, 0, encrypted.length));
+
+        byte[] aad = {2, 2, 0};
+        nonce = crypt.newNonce(CipherSuite.GCM);
+        encrypted = crypt.encrypt(CipherSuite.GCM, nonce, aad, plain, 0, plain.length);
+        assertTrue(Arrays.equals(plain, crypt.decrypt(CipherSuite.GCM, nonce, aad, encrypted, 0, encrypted.length)));
+        assertNull(crypt.decrypt(CipherSuite.GCM, nonce, new byte[]{2, 2, 1}, encrypted, 0, encrypted.length));
+        assertNull(crypt.decrypt(CipherSuite.GCM, nonce, encrypted, 0, encrypted.length));
+    }
+
+
+    public void testConcurrentUse() throws InterruptedException {
+        final CryptContext crypt = new CryptContext(PASSWORD);
+        final boolean[] failed = new boolean[1];
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 500; i++) {
+                        String text = "value " + id + "/" + i;
+                        if (!text.equals(crypt.decrypt(crypt.encrypt(text, i), i))) {
+                            failed[0] = true;
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse(failed[0]);
+    }
+
+}
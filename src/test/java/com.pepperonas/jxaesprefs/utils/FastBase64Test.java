@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs.utils;
+
+import com.pepperonas.jxaesprefs.utils.android.Base64;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * @author Martin Pfeffer (pepperonas)
+ */
+public class FastBase64Test extends TestCase {
+
+    public void testMatchesBase64() {
+        Random random = new Random(42);
+        for (int length = 0; length < 200; length++) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            String expected = Base64.encodeToString(bytes, Base64.NO_WRAP);
+
+            assertEquals(expected, FastBase64.encodeToString(bytes));
+            assertEquals(expected.length(), FastBase64.encodedLength(length));
+            assertEquals(length, FastBase64.decodedLength(expected, 0, expected.length()));
+            assertTrue(Arrays.equals(bytes, FastBase64.decode(expected)));
+            assertTrue(Arrays.equals(bytes, FastBase64.decode(new StringBuilder(expected))));
+            String unpadded = expected.replace("=", "");
+            assertTrue(Arrays.equals(bytes, FastBase64.decode(unpadded)));
+        }
+    }
+
+
+    public void testOffsets() {
+        byte[] bytes = "..Hello World..".getBytes();
+        byte[] encoded = new byte[FastBase64.encodedLength(11) + 3];
+        int length = FastBase64.encode(bytes, 2, 11, encoded, 3);
+        assertEquals("SGVsbG8gV29ybGQ=", new String(encoded, 3, length));
+
+        byte[] decoded = new byte[20];
+        assertEquals(11, FastBase64.decode(encoded, 3, length, decoded, 5));
+        assertEquals("Hello World", new String(decoded, 5, 11));
+        assertEquals(11, FastBase64.decode("$SGVsbG8gV29ybGQ=", 1, 16, decoded, 0));
+        assertEquals("Hello World", new String(decoded, 0, 11));
+    }
+
+
+    public void testByteBuffers() {
+        byte[] bytes = new byte[100];
+        new Random(7).nextBytes(bytes);
+        String expected = Base64.encodeToString(bytes, Base64.NO_WRAP);
+
+        ByteBuffer[] sources = {ByteBuffer.wrap(bytes), ByteBuffer.allocateDirect(bytes.length)};
+        sources[1].put(bytes).flip();
+        for (ByteBuffer src : sources) {
+            ByteBuffer encoded = ByteBuffer.allocateDirect(FastBase64.encodedLength(bytes.length));
+            assertEquals(expected.length(), FastBase64.encode(src, encoded));
+            assertFalse(src.hasRemaining());
+            encoded.flip();
+            byte[] chars = new byte[encoded.remaining()];
+            encoded.duplicate().get(chars);
+            assertEquals(expected, new String(chars));
+
+            ByteBuffer decoded = ByteBuffer.allocate(bytes.length);
+            assertEquals(bytes.length, FastBase64.decode(encoded, decoded));
+            assertTrue(Arrays.equals(bytes, decoded.array()));
+        }
+    }
+
+
+    public void testRejectsInvalidInput() {
+        String[] invalid = {"A", "AB=C", "ABC$", "AB\nCD==", "ABCDE===", "=AAA", "\u00e4BCD"};
+        for (String input : invalid) {
+            try {
+                FastBase64.decode(input);
+                fail(input);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            try {
+                FastBase64.decode(new StringBuilder(input));
+                fail(input);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+
+    public void testDecodeDefaultSkipsLineBreaks() {
+        byte[] bytes = new byte[120];
+        new Random(3).nextBytes(bytes);
+        String wrapped = Base64.encodeToString(bytes, Base64.DEFAULT);
+        assertTrue(wrapped.indexOf('\n') > 0);
+        assertTrue(Arrays.equals(bytes, FastBase64.decodeDefault(wrapped)));
+    }
+
+}
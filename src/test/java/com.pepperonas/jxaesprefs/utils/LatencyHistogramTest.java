@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs.utils;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Martin Pfeffer (pepperonas)
+ */
+public class LatencyHistogramTest extends TestCase {
+
+    public void testBuckets() {
+        for (long nanos = 0; nanos < 100000; nanos++) {
+            int bucket = LatencyHistogram.bucket(nanos);
+            assertTrue(nanos <= LatencyHistogram.upperBound(bucket));
+            assertTrue(bucket == 0 || nanos > LatencyHistogram.upperBound(bucket - 1));
+            // at most 12.5% above the value
+            assertTrue(LatencyHistogram.upperBound(bucket) <= nanos + nanos / 8);
+        }
+        assertEquals(LatencyHistogram.bucket(Long.MAX_VALUE), LatencyHistogram.bucket(1L << 50));
+    }
+
+
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.snapshot().p99());
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        LatencyStats stats = histogram.snapshot();
+        assertEquals(1000, stats.count());
+        assertEquals(500500000L, stats.totalTime());
+        assertEquals(1000000L, stats.max());
+        assertTrue(stats.p50() >= 500000 && stats.p50() <= 500000 * 9 / 8);
+        assertTrue(stats.p99() >= 990000 && stats.p99() <= 1000000);
+
+        histogram.reset();
+        assertEquals(0, histogram.snapshot().count());
+        assertEquals(0, histogram.snapshot().max());
+    }
+
+
+    public void testConcurrentRecording() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        histogram.record(i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000, histogram.count());
+        assertEquals(40000, histogram.snapshot().count());
+        assertEquals(9999, histogram.snapshot().max());
+    }
+
+}
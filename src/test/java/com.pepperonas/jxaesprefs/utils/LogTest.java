@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs.utils;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * @author Martin Pfeffer (pepperonas)
+ */
+public class LogTest extends TestCase {
+
+    private RecordingSink mSink;
+
+
+    @Override
+    protected void setUp() {
+        mSink = new RecordingSink();
+        Log.setSink(new AsyncLogSink(mSink, 4));
+        Log.setLevel("LogTest", Log.VERBOSE);
+    }
+
+
+    @Override
+    protected void tearDown() {
+        Log.setSink(new AsyncLogSink(new ConsoleLogSink()));
+        Log.clearLevel("LogTest");
+        Log.setRateLimit("LogTest", 0);
+    }
+
+
+    public void testDeliversInOrder() {
+        for (int i = 0; i < 3; i++) {
+            Log.d("LogTest", "message " + i);
+        }
+        Log.flush();
+        assertEquals(Arrays.asList("message 0", "message 1", "message 2"), mSink.messages());
+    }
+
+
+    public void testLevels() {
+        Log.setLevel("LogTest", Log.WARN);
+        final int[] built = new int[1];
+        Log.d("LogTest", new Supplier<String>() {
+            @Override
+            public String get() {
+                built[0]++;
+                return "debug";
+            }
+        });
+        Log.w("LogTest", "warn");
+        Log.setLevel("LogTest", Log.SUPPRESS);
+        Log.e("LogTest", "error");
+        Log.flush();
+        assertEquals(0, built[0]);
+        assertEquals(Collections.singletonList("warn"), mSink.messages());
+        assertTrue(Log.isLoggable("Other", Log.DEBUG));
+    }
+
+
+    public void testRateLimit() {
+        Log.setRateLimit("LogTest", 2);
+        Log.setDefaultRateLimit("LogTest", 100);
+        assertEquals(2, Log.getRateLimit("LogTest"));
+        for (int i = 0; i < 1000; i++) {
+            Log.e("LogTest", "miss " + i);
+        }
+        Log.flush();
+        List<String> messages = mSink.messages();
+        assertEquals("miss 0", messages.get(0));
+        assertEquals("miss 1", messages.get(1));
+        // a new second may have started in between
+        assertTrue(messages.toString(), messages.size() < 10);
+    }
+
+
+    public void testDropsWhenFull() throws InterruptedException {
+        mSink.block();
+        for (int i = 0; i < 20; i++) {
+            Log.i("LogTest", "message " + i);
+        }
+        mSink.release();
+        Log.flush();
+        AsyncLogSink async = (AsyncLogSink) Log.getSink();
+        assertTrue(async.getDroppedCount() > 0);
+        Log.i("LogTest", "last");
+        Log.flush();
+        List<String> messages = mSink.messages();
+        assertEquals("last", messages.get(messages.size() - 1));
+        assertTrue(messages.size() < 21);
+    }
+
+
+    private static class RecordingSink implements LogSink {
+
+        private final List<String> mMessages = new ArrayList<String>();
+        private boolean mBlocked;
+
+
+        @Override
+        public synchronized void write(int level, String tag, String msg, Throwable tr) {
+            while (mBlocked) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            if (tag.equals("LogTest")) {
+                mMessages.add(msg);
+            }
+        }
+
+
+        @Override
+        public void flush() {
+        }
+
+
+        @Override
+        public void close() {
+        }
+
+
+        synchronized List<String> messages() {
+            return new ArrayList<String>(mMessages);
+        }
+
+
+        synchronized void block() {
+            mBlocked = true;
+        }
+
+
+        synchronized void release() {
+            mBlocked = false;
+            notifyAll();
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2016 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.jxaesprefs.utils;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Martin Pfeffer (pepperonas)
+ */
+public class LruCacheTest extends TestCase {
+
+    public void testHitsAndMisses() {
+        LruCache<String, String> cache = new LruCache<String, String>(8);
+        assertNull(cache.get("a"));
+        cache.put("a", "1");
+        assertEquals("1", cache.get("a"));
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+    }
+
+
+    public void testEvictsLeastRecentlyUsed() {
+        LruCache<Integer, Integer> cache = new LruCache<Integer, Integer>(1);
+        cache.put(1, 1);
+        cache.put(2, 2);
+        assertNull(cache.get(1));
+        assertEquals(Integer.valueOf(2), cache.get(2));
+        assertEquals(1, cache.evictionCount());
+    }
+
+
+    public void testBounded() {
+        LruCache<Integer, Integer> cache = new LruCache<Integer, Integer>(100);
+        for (int i = 0; i < 10000; i++) {
+            cache.put(i, i);
+        }
+        assertTrue(cache.size() <= 112);
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+}